@@ -14,7 +14,8 @@ export class ImageScanResultsIssueDao {
         const knex = await this.databaseService.getConnection();
         let query = knex('image_scan_results_issues as i').count('i.id as count')
            .where('i.image_results_id', imageScanResultsId)
-           .andWhere('i.deleted_at', null);
+           .andWhere('i.deleted_at', null)
+           .andWhere('i.was_fixed', false);
 
         if (policyId) {
             query = query
@@ -37,7 +38,8 @@ export class ImageScanResultsIssueDao {
             .leftJoin('image_scan_results as im', function (){
                 this.on('im.id', '=', 'i.image_results_id')
             })
-            .where('im.image_id', imageId);
+            .where('im.image_id', imageId)
+            .andWhere('i.was_fixed', false);
         return (result && result[0] && result[0].count) ? result[0].count : 0;
     }
 
@@ -105,7 +107,8 @@ export class ImageScanResultsIssueDao {
             })
             .where({
                 'i.image_results_id': imageResultsId,
-                'i.deleted_at': null
+                'i.deleted_at': null,
+                'i.was_fixed': false
             });
         if (policyId) {
             query = query.andWhere('im.policy_id', policyId);
@@ -173,7 +176,8 @@ export class ImageScanResultsIssueDao {
             })
             .where({
                 'im.image_id': imageId,
-                'i.deleted_at': null
+                'i.deleted_at': null,
+                'i.was_fixed': false
             })
             .limit(limit)
             .offset(page * limit)
@@ -189,6 +193,7 @@ export class ImageScanResultsIssueDao {
             })
             .where({
                 'i.deleted_at': null,
+                'i.was_fixed': false,
                 'im.image_id': imageId,
                 'im.created_at': scanDate
             })
@@ -257,6 +262,7 @@ export class ImageScanResultsIssueDao {
             .where({
                 'im.image_id': imageId,
                 'i.deleted_at': null,
+                'i.was_fixed': false,
                 'im.created_at': scanDate
             })
             .orderBy(sortArray))
@@ -314,7 +320,8 @@ export class ImageScanResultsIssueDao {
             .where({
                 'im.id': imageScanResultId,
                 'im.policy_id': policyId,
-                'i.deleted_at': null
+                'i.deleted_at': null,
+                'i.was_fixed': false
             })
             // .limit(limit)
             // .offset(page * limit)
@@ -335,7 +342,10 @@ export class ImageScanResultsIssueDao {
         .leftJoin('images as i', 'i.id', 'pi.image_id')
         .leftJoin('image_scan_results as isr', knex.raw('isr.image_id = i.id AND isr.is_latest'))
         // Inner joining here prevents us from returning images that do not have any issues scan
-        .innerJoin('image_scan_results_issues as isrs', 'isrs.image_results_id', 'isr.id')
+        .innerJoin('image_scan_results_issues as isrs', function () {
+            this.on('isrs.image_results_id', '=', 'isr.id')
+                .andOnVal('isrs.was_fixed', '=', false);
+        })
         .where('pi.pod_id', '=', podId)
         .orderByRaw(`CASE
           WHEN isrs.severity ='Critical' THEN 5000
@@ -270,10 +270,25 @@ export class ImageController {
         @Param('clusterId') clusterId: number,
         @Param('imageId') imageId: number,
         @Body() imageTrawlerResultDto: ImageTrawlerResultDto
-        ):Promise<number[]>{
-        const createdAt = new Date().getTime();
-        return await this.imageService.saveImageScanDataByImageId(
-          clusterId, imageId, imageTrawlerResultDto, createdAt);
+        ):Promise<ImageScanResultDto>{
+        const targetImage = await this.resolveTargetImage(clusterId, imageId, imageTrawlerResultDto.imageHash);
+        await this.applyPolicyCompliance(clusterId, targetImage, imageTrawlerResultDto);
+
+        // Trawler sends the policies of a scan one at a time, they all share the time the scan started at
+        const createdAt = imageTrawlerResultDto.startedAt || Date.now();
+        await this.imageService.saveImageScanDataByImageId(clusterId, targetImage.id, imageTrawlerResultDto, createdAt);
+
+        // update image data from every policy of this scan saved so far
+        const totals = await this.imageService.getImageScanTotalsByScanDate(targetImage.id, createdAt);
+        const status = totals.compliant ? 'Compliant' : 'Non-compliant';
+
+        await this.imageService.updateImageScanDateByImageId(targetImage.id, status, totals.criticalIssues,
+            totals.majorIssues, totals.mediumIssues, totals.lowIssues, totals.negligibleIssues,
+            imageTrawlerResultDto.imageHash);
+
+        await this.imageService.setImageScanQueueStatus(targetImage.id, false);
+
+        return plainToInstance(ImageScanResultDto, {complaint: totals.compliant});
     }
 
     @ApiTags('M9Sweeper')
@@ -291,59 +306,10 @@ export class ImageController {
         @Body() trawlerScanResults: TrawlerScanResults
     ):Promise<ImageScanResultDto>{
         const imageHash = trawlerScanResults.data[0]?.imageHash;
+        const targetImage = await this.resolveTargetImage(clusterId, imageId, imageHash);
 
-        // imageID sent by Trawler is that of the first image with a matching name. Use it as a default value, but
-        // otherwise ignore it while comparing images by hash
-        const imageData = await this.imageService.getImageById(imageId);
-        let targetImage: ListOfImagesDto;
-        // if the image hash matches that of the image pulled by ID, or the pulled image has a temporary hash, overwrite it
-        // if Trawler did not send an image hash, update the default image sent by Trawler
-        if (!imageHash || imageHash === imageData.dockerImageId || imageData.dockerImageId.startsWith('TMP_')) {
-            targetImage = imageData;
-        } else {
-            // get the image that matches the image hash sent by Trawler if it exists, or create a new image if it doesn't
-            try {
-                targetImage = await this.imageService.getImageByImageHash(clusterId, imageHash);
-            } catch (e) {
-                // getImageByImageHash throws a Not Found error when executing properly but no images match the hash
-                // create a new image in that case, propagate other errors
-                if (e instanceof HttpException && e.getStatus() === HttpStatus.NOT_FOUND) {
-                    const newImage = new ImageDto();
-                    newImage.dockerImageId = imageHash;
-                    newImage.url = imageData.url;
-                    newImage.name = imageData.name;
-                    newImage.tag = imageData.tag;
-                    newImage.summary = imageData.summary;
-                    // Assume any new images are not running in the cluster.
-                    // The Cluster sync job should make it correct
-                    newImage.runningInCluster = false;
-                    targetImage = await this.imageService.createImage(newImage, clusterId, true);
-                } else {
-                    throw e;
-                }
-            }
-        }
-
-        await Promise.all(trawlerScanResults.data.map(async (rsByPolicy: ImageTrawlerResultDto) => {
-            const facadeDto = new ImageScanResultPerPolicyFacadeDto();
-            facadeDto.issues = rsByPolicy.issues;
-            facadeDto.policyId = rsByPolicy.policyId;
-            facadeDto.encounteredError = rsByPolicy.encounterError;
-
-            const results = await this.imageComplianceFacadeService.isImageClusterCompliant(clusterId, targetImage, [facadeDto]);
-
-            rsByPolicy.issues.map((issue) => {
-                const issueCompliance = results.complianceMap.getResultForCve(rsByPolicy.policyId, issue.scannerId, issue.type);
-                issue.isCompliant = issueCompliance.compliant;
-                issue.complianceReason = issueCompliance.complianceReason;
-                issue.severity = issueCompliance.severity || issue.severity;
-                return issue;
-            });
-
-            rsByPolicy.policyStatus = results.compliant;
-
-            return rsByPolicy;
-        }));
+        await Promise.all(trawlerScanResults.data.map((rsByPolicy: ImageTrawlerResultDto) =>
+          this.applyPolicyCompliance(clusterId, targetImage, rsByPolicy)));
 
         // save scan results
         const createdAt = Date.now();
@@ -368,6 +334,66 @@ export class ImageController {
         return plainToInstance(ImageScanResultDto, {complaint: status === 'Compliant'});
     }
 
+    /**
+     * Find the image that scan results sent by Trawler belong to. The image ID sent by Trawler is that of the first
+     * image with a matching name. Use it as a default value, but otherwise ignore it while comparing images by hash
+     */
+    private async resolveTargetImage(clusterId: number, imageId: number, imageHash: string): Promise<ListOfImagesDto> {
+        const imageData = await this.imageService.getImageById(imageId);
+        // if the image hash matches that of the image pulled by ID, or the pulled image has a temporary hash, overwrite it
+        // if Trawler did not send an image hash, update the default image sent by Trawler
+        if (!imageHash || imageHash === imageData.dockerImageId || imageData.dockerImageId.startsWith('TMP_')) {
+            return imageData;
+        }
+
+        // get the image that matches the image hash sent by Trawler if it exists, or create a new image if it doesn't
+        try {
+            return await this.imageService.getImageByImageHash(clusterId, imageHash);
+        } catch (e) {
+            // getImageByImageHash throws a Not Found error when executing properly but no images match the hash
+            // create a new image in that case, propagate other errors
+            if (e instanceof HttpException && e.getStatus() === HttpStatus.NOT_FOUND) {
+                const newImage = new ImageDto();
+                newImage.dockerImageId = imageHash;
+                newImage.url = imageData.url;
+                newImage.name = imageData.name;
+                newImage.tag = imageData.tag;
+                newImage.summary = imageData.summary;
+                // Assume any new images are not running in the cluster.
+                // The Cluster sync job should make it correct
+                newImage.runningInCluster = false;
+                return await this.imageService.createImage(newImage, clusterId, true);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Evaluate the issues found for a policy against the exceptions of the cluster and set the compliance of
+     * the issues and of the policy
+     */
+    private async applyPolicyCompliance(clusterId: number, targetImage: ListOfImagesDto,
+                                        rsByPolicy: ImageTrawlerResultDto): Promise<ImageTrawlerResultDto> {
+        const facadeDto = new ImageScanResultPerPolicyFacadeDto();
+        facadeDto.issues = rsByPolicy.issues;
+        facadeDto.policyId = rsByPolicy.policyId;
+        facadeDto.encounteredError = rsByPolicy.encounterError;
+
+        const results = await this.imageComplianceFacadeService.isImageClusterCompliant(clusterId, targetImage, [facadeDto]);
+
+        rsByPolicy.issues.map((issue) => {
+            const issueCompliance = results.complianceMap.getResultForCve(rsByPolicy.policyId, issue.scannerId, issue.type);
+            issue.isCompliant = issueCompliance.compliant;
+            issue.complianceReason = issueCompliance.complianceReason;
+            issue.severity = issueCompliance.severity || issue.severity;
+            return issue;
+        });
+
+        rsByPolicy.policyStatus = results.compliant;
+
+        return rsByPolicy;
+    }
+
     @Get('images/:imageId/trawler/scan/results')
     @AllowedAuthorityLevels(Authority.SUPER_ADMIN, Authority.ADMIN, Authority.READ_ONLY)
     @UseGuards(AuthGuard, AuthorityGuard)
@@ -409,10 +409,26 @@ export class ImageDao {
         const knex = await this.databaseService.getConnection();
 
         return knexnest(knex.transaction(async trx => {
-            // update all scan is_latest = false for previous scans
+            // lock the image, so a retry that arrives while the earlier attempt is still being saved waits for it
+            await trx.select('id').from('images').where('id', scanImageData.image_id).forUpdate();
+
+            // update all scan is_latest = false for previous scans, the other policies of this scan stay the latest
             await trx.into('image_scan_results').update({'is_latest': false}).where({
                 'image_id': scanImageData.image_id
+            }).andWhereNot('created_at', scanImageData.created_at);
+
+            // a retried upload of the same policy result replaces the rows saved by an earlier attempt
+            const previousResults = trx.select('id').from('image_scan_results').where({
+                'image_id': scanImageData.image_id,
+                'policy_id': scanImageData.policy_id,
+                'created_at': scanImageData.created_at
             });
+            await trx.from('image_scan_results_issues').whereIn('image_results_id', previousResults).delete();
+            await trx.from('image_scan_results').where({
+                'image_id': scanImageData.image_id,
+                'policy_id': scanImageData.policy_id,
+                'created_at': scanImageData.created_at
+            }).delete();
 
             scanImageData['is_latest'] = true; // set the new scan result to is_latest = true
 
@@ -717,7 +733,10 @@ export class ImageDao {
           ])
           .from('image_scan_results as i')
           .leftJoin('policies as p', 'i.policy_id', 'p.id')
-          .leftJoin('image_scan_results_issues as isc', 'isc.image_results_id', 'i.id')
+          .leftJoin('image_scan_results_issues as isc', function () {
+              this.on('isc.image_results_id', '=', 'i.id')
+                  .andOnVal('isc.was_fixed', '=', false);
+          })
           .where('i.image_id', imageId)
           .where('i.policy_id', policyId)
           .whereNull('i.deleted_at')
@@ -803,7 +822,10 @@ export class ImageDao {
         }
         if (options?.cve.length > 0) {
             query.leftJoin('image_scan_results as imr', 'imr.image_id', 'i.id')
-                .leftJoin('image_scan_results_issues as imi', 'imi.image_results_id', 'imr.id')
+                .leftJoin('image_scan_results_issues as imi', function () {
+                    this.on('imi.image_results_id', '=', 'imr.id')
+                        .andOnVal('imi.was_fixed', '=', false);
+                })
                 .where('imi.type', 'ilike', `%${options?.cve}%`)
                 .groupBy('i.id');
         }
@@ -948,6 +970,35 @@ export class ImageDao {
         return await query.then(imageScan => plainToInstance(ImageScanCountDto, imageScan));
     }
 
+    async getImageScanTotalsByScanDate(imageId: number, scanDate: number): Promise<{
+        criticalIssues: number, majorIssues: number, mediumIssues: number, lowIssues: number, negligibleIssues: number,
+        compliant: boolean
+    }> {
+        const knex = await this.databaseService.getConnection();
+        const result = await knex('image_scan_results as i')
+          .select(knex.raw(`COALESCE(SUM(i.critical_issues), 0) as "criticalIssues",
+                COALESCE(SUM(i.major_issues), 0) as "majorIssues",
+                COALESCE(SUM(i.medium_issues), 0) as "mediumIssues",
+                COALESCE(SUM(i.low_issues), 0) as "lowIssues",
+                COALESCE(SUM(i.negligible_issues), 0) as "negligibleIssues",
+                COALESCE(BOOL_AND(i.policy_status), true) as "compliant"`))
+          .where({
+              'i.image_id': imageId,
+              'i.deleted_at': null,
+              'i.created_at': scanDate
+          });
+
+        const totals = result[0];
+        return {
+            criticalIssues: +totals.criticalIssues,
+            majorIssues: +totals.majorIssues,
+            mediumIssues: +totals.mediumIssues,
+            lowIssues: +totals.lowIssues,
+            negligibleIssues: +totals.negligibleIssues,
+            compliant: totals.compliant
+        };
+    }
+
     async getDistinctDatesForImageScan(imageId: number): Promise<Array<{created_at: number}[]>> {
         const knex = await this.databaseService.getConnection();
         const query = knex('image_scan_results as i')
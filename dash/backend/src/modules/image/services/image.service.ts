@@ -475,6 +475,16 @@ export class ImageService {
           critical_issues, major_issues, medium_issues, low_issues, negligible_issues, imageHash);
     }
 
+    /**
+     * Sum up the issues and compliance of every policy saved for a scan of an image
+     */
+    async getImageScanTotalsByScanDate(imageId: number, scanDate: number): Promise<{
+        criticalIssues: number, majorIssues: number, mediumIssues: number, lowIssues: number, negligibleIssues: number,
+        compliant: boolean
+    }> {
+        return this.imageDao.getImageScanTotalsByScanDate(imageId, scanDate);
+    }
+
     async getK8sImageByDockerImageHash(imageHash: string): Promise<any> {
         return this.imageDao.getK8sImageByDockerImageHash(imageHash);
     }
@@ -134,7 +134,8 @@ export class ImageComplianceFacadeService {
             scanResult.scanners = await this.scannerService.getScannersByPolicyId(result.policyId);
             scanResult.exceptions = exceptions.filter(e => e.policyId && e.policyId === result.policyId);
 
-            scanResult.issues = result.issues.map(issue => {
+            // Issues Trawler reports as fixed since the previous scan are no longer in the image
+            scanResult.issues = result.issues.filter(issue => !issue.wasFixed).map(issue => {
                 const scanResultIssue = new ImageScanIssueDto();
                 scanResultIssue.cveCode = issue.type;
                 scanResultIssue.isFixable = issue.isFixable;
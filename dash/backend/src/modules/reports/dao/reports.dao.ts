@@ -82,7 +82,7 @@ export class ReportsDao {
             query = query.andWhere('isrs.is_fixable', fixAvailable);
         }
         query = query.leftJoin(knex.raw('image_scan_results as isr on isr.image_id = image_details.id and isr.is_latest=true'))
-            .innerJoin(knex.raw('image_scan_results_issues as isrs on isrs.image_results_id = isr.id'));
+            .innerJoin(knex.raw('image_scan_results_issues as isrs on isrs.image_results_id = isr.id and isrs.was_fixed = false'));
 
         const count = await knex
             .count('*', {as: 'entries'})
@@ -159,7 +159,7 @@ export class ReportsDao {
         query = query.leftJoin(
             knex.raw('image_scan_results as isr on isr.image_id = image_details.id and isr.is_latest=true')
         )
-            .innerJoin(knex.raw('image_scan_results_issues as isrs on isrs.image_results_id = isr.id'));
+            .innerJoin(knex.raw('image_scan_results_issues as isrs on isrs.image_results_id = isr.id and isrs.was_fixed = false'));
 
         const count = await knex
             .count('*', {as: 'entries'})
@@ -237,7 +237,7 @@ export class ReportsDao {
       ])
         .from(subQuery.as('image_details'))
         .leftJoin(knex.raw("image_scan_results as isr on isr.image_id = image_details.id and isr.is_latest=true"))
-        .leftJoin(knex.raw('image_scan_results_issues as isrs on isrs.image_results_id = isr.id'))
+        .leftJoin(knex.raw('image_scan_results_issues as isrs on isrs.image_results_id = isr.id and isrs.was_fixed = false'))
         .groupBy([
           'image_details.id',
           'image_details.image',
@@ -369,7 +369,7 @@ export class ReportsDao {
         ])
             .from(subQuery.as("hki"))
             .leftJoin(knex.raw("image_scan_results as r on hki.id = r.image_id and r.is_latest = true"))
-            .leftJoin("image_scan_results_issues as isrs", "isrs.image_results_id", "r.id")
+            .leftJoin(knex.raw('image_scan_results_issues as isrs on isrs.image_results_id = r.id and isrs.was_fixed = false'))
             .whereRaw(`hki.id is not null and hki.image is not null and r.deleted_at is null`)
             .groupBy(["hki.last_scanned", "hki.image", "hki.scan_results", "hki.namespaces"])
             .orderBy("hki.last_scanned");
@@ -440,7 +440,7 @@ export class ReportsDao {
         ])
             .from(subQuery.as("hki"))
             .leftJoin(knex.raw("image_scan_results as r on hki.id = r.image_id and r.is_latest = true"))
-            .leftJoin("image_scan_results_issues as isrs", "isrs.image_results_id", "r.id")
+            .leftJoin(knex.raw('image_scan_results_issues as isrs on isrs.image_results_id = r.id and isrs.was_fixed = false'))
             .whereRaw(`hki.id is not null and hki.image is not null and r.deleted_at is null`)
             .andWhere("hki.cluster_id", clusterId)
             .groupBy("hki.saved_date")
@@ -643,7 +643,7 @@ export class ReportsDao {
       ])
         .from(imageDetailsQuery.as('image_details'))
         .leftJoin(knex.raw('image_scan_results as isr on isr.image_id = image_details.id and isr.is_latest=true'))
-        .innerJoin(knex.raw('image_scan_results_issues as isrs on isrs.image_results_id = isr.id'));
+        .innerJoin(knex.raw('image_scan_results_issues as isrs on isrs.image_results_id = isr.id and isrs.was_fixed = false'));
 
       if (severityLevels) {
           if (severityLevels.includes(VulnerabilitySeverity.MAJOR)) {
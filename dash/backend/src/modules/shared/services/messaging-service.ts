@@ -15,7 +15,8 @@ export class MessagingService {
         try {
             const rChannel = await this.rabbitMQService.getChannel(queueName);
             if (rChannel) {
-                return await rChannel.sendToQueue(queueName, message);
+                // The timestamp lets consumers measure how long messages waited in the queue
+                return await rChannel.sendToQueue(queueName, message, {timestamp: Math.floor(Date.now() / 1000)});
             }
         } catch (e) {
             this.mineLoggerService.error({label: e.message, data: null}, e, MessagingService.name);
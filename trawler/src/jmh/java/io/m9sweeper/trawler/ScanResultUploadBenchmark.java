@@ -0,0 +1,64 @@
+package io.m9sweeper.trawler;
+
+import io.m9sweeper.trawler.framework.client.handler.JSON;
+import io.m9sweeper.trawler.framework.client.model.ImageTrawlerResultDto;
+import io.m9sweeper.trawler.framework.client.model.TrawlerScanResults;
+import io.m9sweeper.trawler.framework.docker.DockerImageBuilder;
+import io.m9sweeper.trawler.framework.docker.DockerRegistryBuilder;
+import io.m9sweeper.trawler.framework.scans.ScanResult;
+import io.m9sweeper.trawler.framework.scans.ScanResultBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast the scan results of a policy are mapped to the m9sweeper DTOs and serialized
+ * into the body that is uploaded to m9sweeper.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScanResultUploadBenchmark {
+
+    @Param({"10", "1000", "10000", "100000"})
+    public int vulnerabilities;
+
+    private List<ScanResult> scanResults;
+    private TrawlerScanResults body;
+    private JSON json;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        scanResults = List.of(new ScanResultBuilder(new DockerImageBuilder(1)
+                .withName("benchmark")
+                .withTag("latest")
+                .withRegistry(new DockerRegistryBuilder("docker.io", false, null, null).build())
+                .build())
+                .withPolicy(1L)
+                .withStartedAt(System.currentTimeMillis())
+                .withFinishedAt(System.currentTimeMillis())
+                .withEncounteredError(false)
+                .withSummary("")
+                .withHash("a".repeat(64))
+                .withIssues(SyntheticTrivyReport.issues(vulnerabilities))
+                .build());
+
+        body = new TrawlerScanResults();
+        body.setData(ScanRunner.toImageTrawlerResultDtos(scanResults));
+        json = new JSON();
+    }
+
+    @Benchmark
+    public List<ImageTrawlerResultDto> mapToDtos() {
+        return ScanRunner.toImageTrawlerResultDtos(scanResults);
+    }
+
+    @Benchmark
+    public String serialize() {
+        return json.serialize(body);
+    }
+}
@@ -0,0 +1,153 @@
+package io.m9sweeper.trawler;
+
+import com.google.gson.stream.JsonWriter;
+import io.m9sweeper.trawler.framework.scans.IssueSeverity;
+import io.m9sweeper.trawler.framework.scans.ScanResultIssue;
+import io.m9sweeper.trawler.framework.scans.ScanResultIssueBuilder;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Generates Trivy reports and issues shaped like the ones produced by real scans, for benchmarks.
+ * Vulnerabilities are spread over several results and cycle through the severities so the
+ * generated data is the same on every run.
+ */
+public class SyntheticTrivyReport {
+    private static final IssueSeverity[] SEVERITIES = {
+            IssueSeverity.CRITICAL, IssueSeverity.HIGH, IssueSeverity.MEDIUM, IssueSeverity.LOW, IssueSeverity.NEGLIGIBLE
+    };
+
+    // Trivy reports one result per OS package set or language lock file
+    private static final int VULNERABILITIES_PER_RESULT = 500;
+
+    private static final String DESCRIPTION = "A flaw was found in the way the library parses specially crafted input. " +
+            "A remote attacker could use this flaw to cause a denial of service or possibly execute arbitrary code " +
+            "with the privileges of the application that uses the library. This issue affects every version prior " +
+            "to the fixed version listed in the advisory.";
+
+    private SyntheticTrivyReport() {
+    }
+
+    /**
+     * Write a Trivy JSON report with the given number of vulnerabilities to a temporary file
+     *
+     * @param vulnerabilities the number of vulnerabilities in the report
+     * @return the report file, deleted when the JVM exits
+     * @throws IOException if the report could not be written
+     */
+    public static File write(int vulnerabilities) throws IOException {
+        File reportFile = File.createTempFile("syntheticTrivyReport-", ".json");
+        reportFile.deleteOnExit();
+
+        try (JsonWriter writer = new JsonWriter(new BufferedWriter(new FileWriter(reportFile, StandardCharsets.UTF_8)))) {
+            writer.beginObject();
+            writer.name("SchemaVersion").value(2);
+            writer.name("ArtifactName").value("docker.io/library/benchmark:latest");
+            writer.name("ArtifactType").value("container_image");
+            writer.name("Metadata").beginObject();
+            writer.name("OS").beginObject().name("Family").value("debian").name("Name").value("12.4").endObject();
+            writer.name("ImageID").value("sha256:" + "1".repeat(64));
+            writer.name("RepoTags").beginArray().value("benchmark:latest").endArray();
+            writer.name("RepoDigests").beginArray().value("benchmark@sha256:" + "a".repeat(64)).endArray();
+            writer.endObject();
+
+            writer.name("Results").beginArray();
+            for (int written = 0; written < vulnerabilities; ) {
+                writer.beginObject();
+                writer.name("Target").value("benchmark (debian 12.4) #" + written / VULNERABILITIES_PER_RESULT);
+                writer.name("Class").value("os-pkgs");
+                writer.name("Type").value("debian");
+                writer.name("Vulnerabilities").beginArray();
+                int end = Math.min(vulnerabilities, written + VULNERABILITIES_PER_RESULT);
+                for (; written < end; written++) {
+                    writeVulnerability(writer, written);
+                }
+                writer.endArray();
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+        return reportFile;
+    }
+
+    /**
+     * Build the issues a report with the given number of vulnerabilities is parsed into
+     *
+     * @param vulnerabilities the number of issues
+     * @return the issues
+     */
+    public static ArrayList<ScanResultIssue> issues(int vulnerabilities) {
+        ArrayList<ScanResultIssue> issues = new ArrayList<>(vulnerabilities);
+        for (int i = 0; i < vulnerabilities; i++) {
+            issues.add(new ScanResultIssueBuilder(1, "benchmark-trivy")
+                    .withName(title(i))
+                    .withDescription(DESCRIPTION)
+                    .withSeverity(SEVERITIES[i % SEVERITIES.length])
+                    .withIsCompliant(i % SEVERITIES.length > 1)
+                    .withType(cve(i))
+                    .withIsFixable(i % 2 == 0)
+                    .withVulnerabilityDescUrl(primaryUrl(i))
+                    .withExtraData("{\"VulnerabilityID\":\"" + cve(i) + "\",\"PkgName\":\"libexample" + i % 100 + "\"," +
+                            "\"InstalledVersion\":\"1.2.3-1\",\"FixedVersion\":\"1.2.4-1\",\"Severity\":\"" +
+                            SEVERITIES[i % SEVERITIES.length] + "\",\"Description\":\"" + DESCRIPTION + "\"}")
+                    .build());
+        }
+        return issues;
+    }
+
+    private static void writeVulnerability(JsonWriter writer, int i) throws IOException {
+        writer.beginObject();
+        writer.name("VulnerabilityID").value(cve(i));
+        writer.name("PkgID").value("libexample" + i % 100 + "@1.2.3-1");
+        writer.name("PkgName").value("libexample" + i % 100);
+        writer.name("InstalledVersion").value("1.2.3-1");
+        writer.name("FixedVersion").value(i % 2 == 0 ? "1.2.4-1" : "");
+        writer.name("Status").value(i % 2 == 0 ? "fixed" : "affected");
+        writer.name("Layer").beginObject()
+                .name("DiffID").value("sha256:" + "b".repeat(64))
+                .endObject();
+        writer.name("SeveritySource").value("nvd");
+        writer.name("PrimaryURL").value(primaryUrl(i));
+        writer.name("DataSource").beginObject()
+                .name("ID").value("debian")
+                .name("Name").value("Debian Security Tracker")
+                .name("URL").value("https://salsa.debian.org/security-tracker-team/security-tracker")
+                .endObject();
+        writer.name("Title").value(title(i));
+        writer.name("Description").value(DESCRIPTION);
+        writer.name("Severity").value(SEVERITIES[i % SEVERITIES.length].name());
+        writer.name("CweIDs").beginArray().value("CWE-787").endArray();
+        writer.name("CVSS").beginObject()
+                .name("nvd").beginObject()
+                .name("V3Vector").value("CVSS:3.1/AV:N/AC:L/PR:N/UI:N/S:U/C:H/I:H/A:H")
+                .name("V3Score").value(9.8)
+                .endObject()
+                .endObject();
+        writer.name("References").beginArray();
+        for (int reference = 0; reference < 8; reference++) {
+            writer.value("https://security.example.com/advisories/" + cve(i) + "/" + reference);
+        }
+        writer.endArray();
+        writer.name("PublishedDate").value("2023-01-01T00:00:00Z");
+        writer.name("LastModifiedDate").value("2023-06-01T00:00:00Z");
+        writer.endObject();
+    }
+
+    private static String cve(int i) {
+        return "CVE-2023-" + (10000 + i);
+    }
+
+    private static String title(int i) {
+        return "libexample: out-of-bounds write in parser (" + cve(i) + ")";
+    }
+
+    private static String primaryUrl(int i) {
+        return "https://avd.aquasec.com/nvd/" + cve(i).toLowerCase();
+    }
+}
@@ -0,0 +1,348 @@
+package io.m9sweeper.trawler.loadtest;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.squareup.okhttp.mockwebserver.Dispatcher;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.MockWebServer;
+import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import io.m9sweeper.trawler.SyntheticTrivyReport;
+import org.apache.qpid.server.SystemLauncher;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * End-to-end load test of Trawler's listener mode that needs no cluster, RabbitMQ server, m9sweeper or Trivy.
+ * <p>
+ * An embedded Qpid broker stands in for RabbitMQ, a MockWebServer answers the m9sweeper API calls, and a fake
+ * trivy script on the PATH writes a synthetic report of a configurable size after a configurable delay.
+ * Trawler runs in its own JVM exactly as it does in production. The load test publishes the scan jobs, waits
+ * for every job's scan results to be uploaded, and reports jobs per second, the latency from publishing a job
+ * to its upload, and the peak RSS of the Trawler process.
+ * <p>
+ * Options are passed as name=value arguments: jobs, vulnerabilities, trivyDelayMs, parallel, prefetch,
+ * trivyServerMode and timeoutSeconds. Trivy server mode defaults to on when more than one scan runs at a time,
+ * since Trawler runs local mode scans one at a time.
+ */
+public class TrawlerLoadTest {
+    private static final String QUEUE_NAME = "trawler_queue";
+
+    private static final Pattern UPLOAD_PATH = Pattern.compile("^/api/clusters/\\d+/images/(\\d+)/trawler/scan/results$");
+
+    private static final String FAKE_TRIVY = """
+            #!/usr/bin/env bash
+            # Stands in for trivy during load tests
+            case " $* " in
+              *" version "*)
+                echo '{"Version":"0.0.0-loadtest","VulnerabilityDB":{"Version":2,"UpdatedAt":"2024-01-01T00:00:00Z","DownloadedAt":"2024-01-01T00:00:00Z"}}'
+                exit 0;;
+              *" --download-db-only "*)
+                exit 0;;
+              *" server "*)
+                # The mock m9sweeper API answers the server's health checks
+                exec sleep infinity;;
+            esac
+
+            output=""
+            while [ $# -gt 0 ]; do
+              if [ "$1" = "-o" ]; then output="$2"; shift; fi
+              shift
+            done
+            sleep "$FAKE_TRIVY_DELAY"
+            cp "$FAKE_TRIVY_REPORT" "$output"
+            """;
+
+    private static final String BROKER_CONFIG = """
+            {
+              "name": "trawler-load-test",
+              "modelVersion": "7.0",
+              "authenticationproviders": [{
+                "name": "plain",
+                "type": "Plain",
+                "secureOnlyMechanisms": [],
+                "users": [{"name": "guest", "password": "guest", "type": "managed"}]
+              }],
+              "ports": [{
+                "name": "AMQP",
+                "port": "${qpid.amqp_port}",
+                "authenticationProvider": "plain",
+                "virtualhostaliases": [{"name": "defaultAlias", "type": "defaultAlias"}]
+              }],
+              "virtualhostnodes": [{
+                "name": "default",
+                "type": "Memory",
+                "defaultVirtualHostNode": "true",
+                "virtualHostInitialConfiguration": "{\\"type\\": \\"Memory\\"}"
+              }]
+            }
+            """;
+
+    private final int jobs;
+    private final int vulnerabilities;
+    private final long trivyDelayMs;
+    private final int parallel;
+    private final int prefetch;
+    private final boolean trivyServerMode;
+    private final long timeoutSeconds;
+
+    // When each job was published and when its scan results were uploaded, by image ID
+    private final Map<Long, Long> publishedAt = new ConcurrentHashMap<>();
+    private final Map<Long, Long> uploadedAt = new ConcurrentHashMap<>();
+
+    public TrawlerLoadTest(Map<String, String> options) {
+        this.jobs = Integer.parseInt(options.getOrDefault("jobs", "2000"));
+        this.vulnerabilities = Integer.parseInt(options.getOrDefault("vulnerabilities", "100"));
+        this.trivyDelayMs = Long.parseLong(options.getOrDefault("trivyDelayMs", "50"));
+        this.parallel = Integer.parseInt(options.getOrDefault("parallel", "4"));
+        this.prefetch = Integer.parseInt(options.getOrDefault("prefetch", "1"));
+        this.trivyServerMode = Boolean.parseBoolean(options.getOrDefault("trivyServerMode", String.valueOf(parallel > 1)));
+        this.timeoutSeconds = Long.parseLong(options.getOrDefault("timeoutSeconds", "600"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2) {
+                throw new IllegalArgumentException("Options must be passed as name=value: " + arg);
+            }
+            options.put(option[0], option[1]);
+        }
+        new TrawlerLoadTest(options).run();
+    }
+
+    public void run() throws Exception {
+        Path workDir = Files.createTempDirectory("trawler-load-test-");
+        int amqpPort = freePort();
+
+        SystemLauncher broker = startBroker(workDir, amqpPort);
+        MockWebServer dash = startDash();
+        Process trawler = null;
+        try {
+            trawler = startTrawler(workDir, amqpPort, dash);
+
+            long startedAt = System.nanoTime();
+            publishJobs(amqpPort);
+            System.out.println("Published " + jobs + " scan jobs");
+
+            long deadline = startedAt + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            long peakRssKb = 0;
+            while (uploadedAt.size() < jobs && System.nanoTime() < deadline && trawler.isAlive()) {
+                peakRssKb = Math.max(peakRssKb, peakRssKb(trawler));
+                Thread.sleep(200);
+            }
+            peakRssKb = Math.max(peakRssKb, peakRssKb(trawler));
+
+            report(startedAt, peakRssKb);
+        } finally {
+            if (trawler != null) {
+                trawler.destroy();
+                if (!trawler.waitFor(10, TimeUnit.SECONDS)) {
+                    trawler.destroyForcibly();
+                }
+            }
+            dash.shutdown();
+            broker.shutdown();
+        }
+    }
+
+    /**
+     * Start an in-memory AMQP 0-9-1 broker that accepts the guest user
+     */
+    private SystemLauncher startBroker(Path workDir, int amqpPort) throws Exception {
+        Path config = workDir.resolve("broker-config.json");
+        Files.writeString(config, BROKER_CONFIG);
+
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("type", "Memory");
+        attributes.put("initialConfigurationLocation", config.toUri().toString());
+        attributes.put("startupLoggedToSystemOut", false);
+        attributes.put("context", Map.of(
+                "qpid.amqp_port", String.valueOf(amqpPort),
+                "qpid.work_dir", workDir.resolve("broker").toString()));
+
+        SystemLauncher launcher = new SystemLauncher();
+        launcher.startup(attributes);
+        return launcher;
+    }
+
+    /**
+     * Start a mock of the m9sweeper API that knows one registry and one policy, and records scan result uploads.
+     * It also answers the health checks of the fake trivy server.
+     */
+    private MockWebServer startDash() throws IOException {
+        MockWebServer server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String path = request.getPath().split("\\?")[0];
+                if (path.equals("/healthz")) {
+                    return new MockResponse();
+                } else if (path.equals("/api/docker-registries")) {
+                    return json("{\"success\":true,\"data\":{\"totalCount\":1,\"list\":[{\"id\":1,\"name\":\"Docker Hub\"," +
+                            "\"hostname\":\"docker.io\",\"loginRequired\":false,\"authType\":\"NONE\",\"aliases\":[]}]}}");
+                } else if (path.startsWith("/api/policies/by-cluster/")) {
+                    return json("{\"success\":true,\"data\":[{\"id\":1,\"name\":\"Load Test\",\"enabled\":true,\"enforcement\":false," +
+                            "\"scanners\":[{\"id\":1,\"name\":\"Trivy\",\"type\":\"TRIVY\",\"enabled\":true,\"required\":true}]}]}");
+                }
+
+                Matcher upload = UPLOAD_PATH.matcher(path);
+                if (upload.matches()) {
+                    uploadedAt.putIfAbsent(Long.parseLong(upload.group(1)), System.nanoTime());
+                    return json("{\"success\":true,\"data\":{\"complaint\":true}}");
+                }
+                return new MockResponse().setResponseCode(404);
+            }
+        });
+        server.start();
+
+        // MockWebServer keeps every request it receives, drop them so the upload bodies do not pile up
+        Thread drainer = new Thread(() -> {
+            try {
+                while (true) {
+                    server.takeRequest();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "mock-dash-drainer");
+        drainer.setDaemon(true);
+        drainer.start();
+
+        return server;
+    }
+
+    /**
+     * Start Trawler in listener mode in its own JVM, with the fake trivy first on its PATH
+     */
+    private Process startTrawler(Path workDir, int amqpPort, MockWebServer dash) throws IOException {
+        Path bin = Files.createDirectories(workDir.resolve("bin"));
+        Path trivy = bin.resolve("trivy");
+        Files.writeString(trivy, FAKE_TRIVY);
+        Files.setPosixFilePermissions(trivy, PosixFilePermissions.fromString("rwxr-xr-x"));
+
+        File report = SyntheticTrivyReport.write(vulnerabilities);
+
+        ProcessBuilder processBuilder = new ProcessBuilder(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                "io.m9sweeper.trawler.Trawler");
+        // Run in the work directory so that a developer's .env file is not picked up
+        processBuilder.directory(workDir.toFile());
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectOutput(workDir.resolve("trawler.log").toFile());
+
+        Map<String, String> env = processBuilder.environment();
+        env.put("PATH", bin + File.pathSeparator + System.getenv("PATH"));
+        env.put("FAKE_TRIVY_DELAY", String.valueOf(trivyDelayMs / 1000.0));
+        env.put("FAKE_TRIVY_REPORT", report.getAbsolutePath());
+        env.put("M9SWEEPER_URL", dash.url("/").toString());
+        env.put("M9SWEEPER_API_KEY", "load-test");
+        env.put("RABBITMQ_HOSTNAME", "localhost");
+        env.put("RABBITMQ_PORT", String.valueOf(amqpPort));
+        env.put("RABBITMQ_USERNAME", "guest");
+        env.put("RABBITMQ_PASSWORD", "guest");
+        env.put("RABBITMQ_QUEUE_NAME", QUEUE_NAME);
+        env.put("TRAWLER_PARALLEL_SCANNERS", String.valueOf(parallel));
+        env.put("RABBITMQ_PREFETCH_COUNT", String.valueOf(prefetch));
+        env.put("TRIVY_SERVER_MODE", trivyServerMode ? "1" : "0");
+        env.put("TRIVY_SERVER_PORT", String.valueOf(dash.getPort()));
+
+        System.out.println("Starting Trawler, its output is in " + workDir.resolve("trawler.log"));
+        return processBuilder.start();
+    }
+
+    /**
+     * Publish one scan job per image, each for a distinct image digest so that no scan is shared or cached
+     */
+    private void publishJobs(int amqpPort) throws Exception {
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost("localhost");
+        factory.setPort(amqpPort);
+        factory.setUsername("guest");
+        factory.setPassword("guest");
+
+        try (Connection connection = factory.newConnection(); Channel channel = connection.createChannel()) {
+            channel.queueDeclare(QUEUE_NAME, true, false, false, null);
+            for (long imageId = 1; imageId <= jobs; imageId++) {
+                String message = "{\"image\":{\"id\":" + imageId + ",\"name\":\"library/load-test\",\"tag\":\"" + imageId + "\"," +
+                        "\"hash\":\"" + String.format("%064x", imageId) + "\"},\"cluster\":{\"id\":1,\"name\":\"load-test\"}," +
+                        "\"dockerRegistry\":{\"hostname\":\"docker.io\"}}";
+                publishedAt.put(imageId, System.nanoTime());
+                channel.basicPublish("", QUEUE_NAME,
+                        new AMQP.BasicProperties.Builder().timestamp(new Date()).build(),
+                        message.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private void report(long startedAt, long peakRssKb) {
+        List<Long> latencies = new ArrayList<>();
+        long finishedAt = startedAt;
+        for (Map.Entry<Long, Long> upload : uploadedAt.entrySet()) {
+            latencies.add(upload.getValue() - publishedAt.get(upload.getKey()));
+            finishedAt = Math.max(finishedAt, upload.getValue());
+        }
+        Collections.sort(latencies);
+
+        double seconds = (finishedAt - startedAt) / 1e9;
+        System.out.println();
+        System.out.println("Jobs completed:  " + latencies.size() + " of " + jobs);
+        System.out.printf("Throughput:      %.1f jobs/s%n", seconds > 0 ? latencies.size() / seconds : 0);
+        System.out.printf("Latency p50:     %.1f ms%n", percentile(latencies, 50) / 1e6);
+        System.out.printf("Latency p99:     %.1f ms%n", percentile(latencies, 99) / 1e6);
+        System.out.println("Peak RSS:        " + (peakRssKb > 0 ? peakRssKb / 1024 + " MiB" : "unknown"));
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+
+    /**
+     * Read the high water mark of a process' resident set size, only available on Linux
+     */
+    private static long peakRssKb(Process process) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", String.valueOf(process.pid()), "status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("\\D", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // The process has exited or this is not Linux
+        }
+        return 0;
+    }
+
+    private static MockResponse json(String body) {
+        return new MockResponse().setHeader("Content-Type", "application/json").setBody(body);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
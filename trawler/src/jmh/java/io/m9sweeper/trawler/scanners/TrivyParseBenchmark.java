@@ -0,0 +1,61 @@
+package io.m9sweeper.trawler.scanners;
+
+import io.m9sweeper.trawler.SyntheticTrivyReport;
+import io.m9sweeper.trawler.framework.docker.DockerImageBuilder;
+import io.m9sweeper.trawler.framework.docker.DockerRegistryBuilder;
+import io.m9sweeper.trawler.framework.policies.Policy;
+import io.m9sweeper.trawler.framework.scans.ScanConfig;
+import io.m9sweeper.trawler.framework.scans.ScanResultIssue;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast {@link Trivy} turns a Trivy JSON report into scan result issues.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TrivyParseBenchmark {
+
+    @Param({"10", "1000", "10000", "100000"})
+    public int vulnerabilities;
+
+    private File reportFile;
+    private ScanConfig scanConfig;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        reportFile = SyntheticTrivyReport.write(vulnerabilities);
+
+        scanConfig = new ScanConfig();
+        scanConfig.setScanId(1);
+        scanConfig.setScannerName("benchmark-trivy");
+        scanConfig.setImage(new DockerImageBuilder(1)
+                .withName("benchmark")
+                .withTag("latest")
+                .withRegistry(new DockerRegistryBuilder("docker.io", false, null, null).build())
+                .build());
+        scanConfig.setPolicy(new Policy());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        reportFile.delete();
+    }
+
+    @Benchmark
+    public List<ScanResultIssue> parseResults() {
+        Trivy trivy = new Trivy();
+        trivy.initScanner(scanConfig);
+        trivy.prepSystem();
+        trivy.parseReport(reportFile);
+        return trivy.getScanResult();
+    }
+}
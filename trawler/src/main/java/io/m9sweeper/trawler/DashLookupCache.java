@@ -0,0 +1,146 @@
+package io.m9sweeper.trawler;
+
+import io.m9sweeper.trawler.framework.client.api.M9SweeperApi;
+import io.m9sweeper.trawler.framework.client.model.DockerRegistriesDto;
+import io.m9sweeper.trawler.framework.client.model.DockerRegistriesResponseDto;
+import io.m9sweeper.trawler.framework.client.model.PoliciesByClusterResponse;
+import io.m9sweeper.trawler.framework.client.model.PolicyWithScannerDto;
+import io.m9sweeper.trawler.framework.scans.SingleFlight;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-through cache of the docker registries and policies Trawler looks up in m9sweeper for every scan job.
+ * <p>
+ * Docker registries are fetched as one list and indexed by hostname and by alias. When a hostname is not in
+ * the index the list is fetched again right away, since the registry may have been added since the last fetch.
+ * Policies are cached per cluster for a bounded number of clusters. Concurrent lookups that miss the cache
+ * share a single request to m9sweeper.
+ */
+public class DashLookupCache {
+    // The shortest time between two fetches of the docker registries caused by a hostname not being found
+    private static final long MIN_FORCED_REFRESH_INTERVAL = 10_000;
+
+    private final M9SweeperApi api;
+    private final long ttlMillis;
+    private final int maxClusters;
+
+    private final SingleFlight<String, Map<String, DockerRegistriesDto>> registryFetches = new SingleFlight<>();
+    private final SingleFlight<Long, List<PolicyWithScannerDto>> policyFetches = new SingleFlight<>();
+
+    // Docker registries indexed by hostname and alias, and when they were fetched
+    private volatile Map<String, DockerRegistriesDto> registriesByHostname = Map.of();
+    private volatile long registriesFetchedAt = 0;
+
+    // Policies of the most recently used clusters
+    private final LinkedHashMap<Long, CachedPolicies> policiesByCluster;
+
+    /**
+     * @param api the m9sweeper API client
+     * @param ttlMillis how long looked up values are used for, in milliseconds
+     * @param maxClusters the maximum number of clusters to cache policies for
+     */
+    public DashLookupCache(M9SweeperApi api, long ttlMillis, int maxClusters) {
+        this.api = api;
+        this.ttlMillis = ttlMillis;
+        this.maxClusters = maxClusters;
+        this.policiesByCluster = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedPolicies> eldest) {
+                return size() > DashLookupCache.this.maxClusters;
+            }
+        };
+    }
+
+    /**
+     * Get the docker registry with the given hostname or alias
+     *
+     * @param hostname the hostname or alias of the registry
+     * @return the registry, or null if m9sweeper has no registry for the hostname
+     * @throws Exception if the registries could not be fetched from m9sweeper
+     */
+    public DockerRegistriesDto getDockerRegistry(String hostname) throws Exception {
+        if (System.currentTimeMillis() - registriesFetchedAt > ttlMillis) {
+            refreshDockerRegistries();
+        }
+
+        DockerRegistriesDto registry = registriesByHostname.get(hostname);
+        if (registry == null && System.currentTimeMillis() - registriesFetchedAt > MIN_FORCED_REFRESH_INTERVAL) {
+            // The registry may have been added to m9sweeper since the registries were fetched
+            refreshDockerRegistries();
+            registry = registriesByHostname.get(hostname);
+        }
+        return registry;
+    }
+
+    /**
+     * Get the policies of a cluster
+     *
+     * @param clusterId the ID of the cluster
+     * @return the policies of the cluster, or null if m9sweeper did not return any
+     * @throws Exception if the policies could not be fetched from m9sweeper
+     */
+    public List<PolicyWithScannerDto> getPolicies(Long clusterId) throws Exception {
+        synchronized (policiesByCluster) {
+            CachedPolicies cached = policiesByCluster.get(clusterId);
+            if (cached != null && System.currentTimeMillis() - cached.fetchedAt <= ttlMillis) {
+                return cached.policies;
+            }
+        }
+
+        return policyFetches.execute(clusterId, () -> {
+            PoliciesByClusterResponse response = api.policyControllerGetPoliciesByClusterId(new BigDecimal(clusterId));
+            if (!response.isSuccess() || response.getData() == null || response.getData().isEmpty()) {
+                return null;
+            }
+
+            synchronized (policiesByCluster) {
+                policiesByCluster.put(clusterId, new CachedPolicies(response.getData(), System.currentTimeMillis()));
+            }
+            return response.getData();
+        });
+    }
+
+    /**
+     * Fetch all docker registries from m9sweeper and index them by hostname and alias
+     */
+    private void refreshDockerRegistries() throws Exception {
+        registryFetches.execute("registries", () -> {
+            DockerRegistriesResponseDto response = api.dockerRegistriesControllerGetDockerRegistries(
+                    null, null, "id", "asc",
+                    null, null, null);
+
+            Map<String, DockerRegistriesDto> index = new HashMap<>();
+            if (response.getData() != null && response.getData().getList() != null) {
+                for (DockerRegistriesDto registry : response.getData().getList()) {
+                    if (registry.getAliases() != null) {
+                        registry.getAliases().forEach(alias -> index.putIfAbsent(alias, registry));
+                    }
+                }
+                // A registry's own hostname takes precedence over another registry's alias
+                for (DockerRegistriesDto registry : response.getData().getList()) {
+                    index.put(registry.getHostname(), registry);
+                }
+            }
+
+            registriesByHostname = index;
+            registriesFetchedAt = System.currentTimeMillis();
+            return index;
+        });
+    }
+
+    /** The policies of a cluster and when they were fetched */
+    private static class CachedPolicies {
+        private final List<PolicyWithScannerDto> policies;
+        private final long fetchedAt;
+
+        private CachedPolicies(List<PolicyWithScannerDto> policies, long fetchedAt) {
+            this.policies = policies;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+}
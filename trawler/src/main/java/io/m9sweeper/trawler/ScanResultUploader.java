@@ -0,0 +1,461 @@
+package io.m9sweeper.trawler;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import io.m9sweeper.trawler.framework.client.ApiFutures;
+import io.m9sweeper.trawler.framework.client.ApiFutures.AsyncCall;
+import io.m9sweeper.trawler.framework.client.api.M9SweeperApi;
+import io.m9sweeper.trawler.framework.client.handler.ApiException;
+import io.m9sweeper.trawler.framework.client.model.ImageScanResultSaveResponse;
+import io.m9sweeper.trawler.framework.client.model.ImageTrawlerResultDto;
+import io.m9sweeper.trawler.framework.client.model.TrawlerScanResults;
+import io.m9sweeper.trawler.framework.metrics.Gauge;
+import io.m9sweeper.trawler.framework.metrics.TrawlerMetrics;
+import io.m9sweeper.trawler.framework.outbox.Outbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves scan results to m9sweeper in the background so that scan workers can start their next scan while
+ * m9sweeper is still persisting the results of the last one.
+ * <p>
+ * At most a fixed number of uploads are pending at a time, once that many are pending {@link #upload} blocks
+ * until one of them has finished. Uploads that fail because m9sweeper could not be reached or was overloaded
+ * are retried with a randomized exponential backoff. Uploads of the same image are sent one after the other, and an
+ * upload that is still being retried once a later upload of the image has been queued is dropped, so that older
+ * results never land after newer ones.
+ * <p>
+ * With an {@link Outbox}, every upload is written to it before it is first attempted. An upload that still fails
+ * once it is out of attempts is left in the outbox and counts as done, so the scan job is not run again. A background
+ * replayer saves the uploads left in the outbox, including the ones of an earlier run of Trawler, once m9sweeper is
+ * back, in the order they were made. An upload that was superseded by a later upload of the same image is dropped.
+ */
+public class ScanResultUploader {
+    // A part of the paths of the m9sweeper endpoints that scan results are saved to
+    public static final String UPLOAD_PATH = "/trawler/scan/results";
+
+    // The delay before the first retry, which doubles with every further retry up to the maximum
+    private static final long INITIAL_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 30_000;
+
+    // How often the outbox is checked for uploads to replay, and the most the replayer backs off to while they fail
+    private static final long REPLAY_INTERVAL = 30_000;
+    private static final long MAX_REPLAY_BACKOFF = 300_000;
+
+    private final M9SweeperApi api;
+    private final int maxAttempts;
+    private final Semaphore capacity;
+    private final Outbox outbox;
+
+    // The outbox IDs of the uploads that are still being attempted, which the replayer leaves alone
+    private final Set<Long> live = ConcurrentHashMap.newKeySet();
+
+    // What each upload in the outbox saves, by its outbox ID
+    private final Map<Long, String> keys = new ConcurrentHashMap<>();
+
+    // The outbox IDs of the uploads still being attempted that a later upload of the same image was saved over
+    private final Set<Long> superseded = ConcurrentHashMap.newKeySet();
+
+    // The latest upload queued for each image, by what it saves
+    private final Map<String, OutboxRecord> latest = new ConcurrentHashMap<>();
+
+    // Submits the uploads and schedules their retries, the requests themselves are sent by the API client
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "scan-result-uploader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Replays the uploads left in the outbox, one at a time
+    private ScheduledExecutorService replayer;
+    private long replayDelay = REPLAY_INTERVAL;
+
+    /**
+     * @param api the m9sweeper API client
+     * @param queueSize the maximum number of uploads that may be pending at a time
+     * @param maxAttempts how many times an upload is attempted before it is given up on
+     * @param outbox the outbox to keep uploads in until they are saved, or null to give up on them
+     */
+    public ScanResultUploader(M9SweeperApi api, int queueSize, int maxAttempts, Outbox outbox) {
+        this.api = api;
+        this.maxAttempts = maxAttempts;
+        this.capacity = new Semaphore(queueSize);
+        this.outbox = outbox;
+
+        if (outbox != null) {
+            TrawlerMetrics.register(new Gauge("trawler_outbox_pending",
+                    "Scan results in the outbox that have not been saved to m9sweeper yet.", outbox::size));
+            replayer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "scan-result-replayer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            replayer.schedule(this::loadKeys, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Queue the scan results of an image to be saved to m9sweeper, waiting for room in the queue if it is full.
+     *
+     * @param body the scan results
+     * @param clusterId the ID of the cluster the image belongs to
+     * @param imageId the ID of the image
+     * @return completes with the response of m9sweeper once the results are saved, or with null once they are
+     * left in the outbox, or exceptionally with the {@link ApiException} of the last attempt
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public CompletableFuture<ImageScanResultSaveResponse> upload(TrawlerScanResults body, long clusterId, long imageId) throws InterruptedException {
+        OutboxRecord record = new OutboxRecord(RESULTS, clusterId, imageId, null, body);
+        return enqueue(callback -> api.imageControllerSaveImageScanResultsAsync(body, new BigDecimal(clusterId), new BigDecimal(imageId), callback),
+                record, CompletableFuture.completedFuture(null));
+    }
+
+    /**
+     * Queue the scan result of a single policy of an image to be saved to m9sweeper, waiting for room in the queue
+     * if it is full. The result is sent once {@code after} has completed, whether successfully or not.
+     *
+     * @param body the scan result of the policy
+     * @param clusterId the ID of the cluster the image belongs to
+     * @param imageId the ID of the image
+     * @param after the upload to wait for before sending this one
+     * @return completes with the response of m9sweeper once the result is saved, or with null once it is left in
+     * the outbox, or exceptionally with the {@link ApiException} of the last attempt
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public CompletableFuture<ImageScanResultSaveResponse> uploadPolicy(ImageTrawlerResultDto body, long clusterId, long imageId,
+                                                                       CompletableFuture<?> after) throws InterruptedException {
+        OutboxRecord record = new OutboxRecord(POLICY, clusterId, imageId,
+                body.getPolicyId() == null ? null : body.getPolicyId().longValue(), body);
+        return enqueue(callback -> api.imageControllerSaveImageScanResultsPerPolicyAsync(body, new BigDecimal(clusterId), new BigDecimal(imageId), callback),
+                record, after);
+    }
+
+    private CompletableFuture<ImageScanResultSaveResponse> enqueue(AsyncCall<ImageScanResultSaveResponse> call, OutboxRecord record,
+                                                                   CompletableFuture<?> after) throws InterruptedException {
+        capacity.acquire();
+        TrawlerMetrics.UPLOADS_PENDING.inc();
+
+        long outboxId = writeToOutbox(record);
+        CompletableFuture<ImageScanResultSaveResponse> result = new CompletableFuture<>();
+        record.result = result;
+
+        // Wait for the attempt of the previous upload of the image that may be in flight
+        OutboxRecord previousUpload = latest.put(record.key(), record);
+        CompletableFuture<?> ready = previousUpload == null ? after : CompletableFuture.allOf(after, previousUpload.result);
+
+        result.whenComplete((response, error) -> {
+            live.remove(outboxId);
+            superseded.remove(outboxId);
+            latest.remove(record.key(), record);
+            TrawlerMetrics.UPLOADS_PENDING.dec();
+            capacity.release();
+        });
+        ready.whenCompleteAsync((previous, error) -> attempt(call, record, outboxId, 1, result), executor);
+        return result;
+    }
+
+    private void attempt(AsyncCall<ImageScanResultSaveResponse> call, OutboxRecord record, long outboxId, int attempt,
+                         CompletableFuture<ImageScanResultSaveResponse> result) {
+        if (superseded.contains(outboxId) || latest.get(record.key()) != record) {
+            // A later upload of the same image was saved or queued in the meantime, this one must not land after it
+            System.out.println("Dropping the scan results of image " + record.imageId + ", newer results were queued");
+            removeFromOutbox(outboxId);
+            result.complete(null);
+            return;
+        }
+
+        long startedAt = System.nanoTime();
+        ApiFutures.call(call).whenComplete((response, error) -> {
+            if (error == null) {
+                TrawlerMetrics.UPLOAD.observeSince(startedAt);
+                saved(record, outboxId);
+                result.complete(response);
+            } else if (error instanceof ApiException) {
+                retryOrFail(call, record, outboxId, attempt, result, (ApiException) error);
+            } else {
+                removeFromOutbox(outboxId);
+                result.completeExceptionally(error);
+            }
+        });
+    }
+
+    private void retryOrFail(AsyncCall<ImageScanResultSaveResponse> call, OutboxRecord record, long outboxId, int attempt,
+                             CompletableFuture<ImageScanResultSaveResponse> result, ApiException e) {
+        if (attempt >= maxAttempts && isRetryable(e) && outboxId > 0) {
+            System.err.println("Saving the scan results of image " + record.imageId + " failed " + attempt + " times, " +
+                    "they are kept in the outbox until m9sweeper is available again: " + e.getMessage());
+            result.complete(null);
+            return;
+        }
+        if (attempt >= maxAttempts || !isRetryable(e)) {
+            removeFromOutbox(outboxId);
+            result.completeExceptionally(e);
+            return;
+        }
+
+        // Half of the backoff is random, so that uploads that failed together are not retried together
+        long backoff = Math.min(MAX_BACKOFF, INITIAL_BACKOFF << (attempt - 1));
+        backoff = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        System.err.println("Saving the scan results of image " + record.imageId + " failed (attempt " + attempt + " of " +
+                maxAttempts + "), retrying in " + backoff + "ms: " + e.getMessage());
+        executor.schedule(() -> attempt(call, record, outboxId, attempt + 1, result), backoff, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Write an upload to the outbox before it is attempted
+     *
+     * @return the outbox ID of the upload, or 0 if it is not in the outbox
+     */
+    private long writeToOutbox(OutboxRecord record) {
+        if (outbox == null) {
+            return 0;
+        }
+
+        try {
+            // Marked live before the record is pending, so the replayer never sends it alongside the first attempt
+            return outbox.append(out -> record.writeTo(api, out), outboxId -> {
+                live.add(outboxId);
+                keys.put(outboxId, record.key());
+            });
+        } catch (IOException e) {
+            System.err.println("Unable to write the scan results of image " + record.imageId + " to the outbox: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    private void removeFromOutbox(long outboxId) {
+        if (outboxId > 0) {
+            keys.remove(outboxId);
+            try {
+                outbox.ack(outboxId);
+            } catch (IOException e) {
+                System.err.println("Unable to remove scan results from the outbox: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Remove a saved upload from the outbox, along with the earlier uploads of the same image that are still in it,
+     * so that they are not saved over it
+     */
+    private void saved(OutboxRecord record, long outboxId) {
+        if (outboxId <= 0) {
+            return;
+        }
+
+        String key = record.key();
+        for (Map.Entry<Long, String> entry : keys.entrySet()) {
+            if (entry.getKey() < outboxId && key.equals(entry.getValue())) {
+                TrawlerMetrics.OUTBOX_REPLAYS.inc("superseded");
+                if (live.contains(entry.getKey())) {
+                    // Stop retrying it, its retries would be saved over this upload
+                    superseded.add(entry.getKey());
+                }
+                removeFromOutbox(entry.getKey());
+            }
+        }
+        removeFromOutbox(outboxId);
+    }
+
+    private boolean isSuperseded(String key, long outboxId) {
+        for (Map.Entry<Long, String> entry : keys.entrySet()) {
+            if (entry.getKey() > outboxId && key.equals(entry.getValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read what the uploads left in the outbox by an earlier run of Trawler save, then start replaying them
+     */
+    private void loadKeys() {
+        try {
+            for (long outboxId : outbox.pendingIds()) {
+                Outbox.Entry entry = outbox.read(outboxId);
+                if (entry != null && !live.contains(outboxId)) {
+                    keys.putIfAbsent(outboxId, OutboxRecord.read(api, entry.getPayload(), false).key());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Unable to read the outbox: " + e.getMessage());
+        }
+        replay();
+    }
+
+    /**
+     * Save the uploads left in the outbox in order, stopping at the first one m9sweeper cannot save yet and backing
+     * off until it can
+     */
+    private void replay() {
+        try {
+            for (long outboxId : outbox.pendingIds()) {
+                if (live.contains(outboxId)) {
+                    continue;
+                }
+                Outbox.Entry entry = outbox.read(outboxId);
+                if (entry == null) {
+                    continue;
+                }
+
+                OutboxRecord record = OutboxRecord.read(api, entry.getPayload(), true);
+                if (isSuperseded(record.key(), outboxId)) {
+                    // Only the latest upload of an image needs to be saved
+                    TrawlerMetrics.OUTBOX_REPLAYS.inc("superseded");
+                    removeFromOutbox(outboxId);
+                    continue;
+                }
+
+                try {
+                    ApiFutures.call(record.toCall(api)).get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof ApiException && isRetryable((ApiException) e.getCause())) {
+                        replayDelay = Math.min(MAX_REPLAY_BACKOFF, replayDelay * 2);
+                        System.err.println("m9sweeper is still unavailable, " + outbox.size() + " scan results stay in " +
+                                "the outbox, retrying in " + replayDelay + "ms: " + e.getCause().getMessage());
+                        return;
+                    }
+                    System.err.println("Dropping the scan results of image " + record.imageId + " from the outbox, " +
+                            "m9sweeper refused them: " + e.getCause().getMessage());
+                    TrawlerMetrics.OUTBOX_REPLAYS.inc("dropped");
+                    removeFromOutbox(outboxId);
+                    continue;
+                }
+
+                System.out.println("Saved the scan results of image " + record.imageId + " from the outbox");
+                TrawlerMetrics.OUTBOX_REPLAYS.inc("saved");
+                saved(record, outboxId);
+            }
+            replayDelay = REPLAY_INTERVAL;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Unable to replay the outbox: " + e.getMessage());
+        } finally {
+            if (!Thread.currentThread().isInterrupted()) {
+                replayer.schedule(this::replay, replayDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Whether an upload may succeed if it is tried again. A code of 0 means no response was received.
+     */
+    private static boolean isRetryable(ApiException e) {
+        return e.getCode() == 0 || e.getCode() == 429 || e.getCode() >= 500;
+    }
+
+    private static final String RESULTS = "results";
+    private static final String POLICY = "policy";
+
+    /**
+     * An upload as it is written to the outbox, a JSON object with the body of the upload embedded as it is sent
+     */
+    static class OutboxRecord {
+        String kind;
+        long clusterId;
+        long imageId;
+        Long policyId;
+        Object dto;
+
+        // Completes once the upload is done, only set for uploads made by this run of Trawler
+        CompletableFuture<ImageScanResultSaveResponse> result;
+
+        private OutboxRecord() {
+        }
+
+        OutboxRecord(String kind, long clusterId, long imageId, Long policyId, Object dto) {
+            this.kind = kind;
+            this.clusterId = clusterId;
+            this.imageId = imageId;
+            this.policyId = policyId;
+            this.dto = dto;
+        }
+
+        /**
+         * Write the upload, serializing its body the way the API client sends it straight into the outbox
+         */
+        void writeTo(M9SweeperApi api, OutputStream out) throws IOException {
+            JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            writer.beginObject();
+            writer.name("kind").value(kind);
+            writer.name("clusterId").value(clusterId);
+            writer.name("imageId").value(imageId);
+            if (policyId != null) {
+                writer.name("policyId").value(policyId);
+            }
+            // The body goes last, so that what the upload saves can be read without reading the body
+            writer.name("body");
+            api.getApiClient().getJSON().getGson().toJson(dto, dto.getClass(), writer);
+            writer.endObject();
+            writer.flush();
+        }
+
+        /**
+         * Read an upload written to the outbox
+         *
+         * @param withBody whether to read the body too, or only what the upload saves
+         */
+        static OutboxRecord read(M9SweeperApi api, byte[] payload, boolean withBody) throws IOException {
+            Gson gson = api.getApiClient().getJSON().getGson();
+            OutboxRecord record = new OutboxRecord();
+            JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("kind".equals(name)) {
+                    record.kind = reader.nextString();
+                } else if ("clusterId".equals(name)) {
+                    record.clusterId = reader.nextLong();
+                } else if ("imageId".equals(name)) {
+                    record.imageId = reader.nextLong();
+                } else if ("policyId".equals(name)) {
+                    record.policyId = reader.nextLong();
+                } else if ("body".equals(name) && withBody) {
+                    record.dto = gson.fromJson(reader, POLICY.equals(record.kind) ? ImageTrawlerResultDto.class : TrawlerScanResults.class);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return record;
+        }
+
+        /**
+         * Start sending the upload again from what was written to the outbox
+         */
+        AsyncCall<ImageScanResultSaveResponse> toCall(M9SweeperApi api) {
+            if (POLICY.equals(kind)) {
+                ImageTrawlerResultDto body = (ImageTrawlerResultDto) dto;
+                return callback -> api.imageControllerSaveImageScanResultsPerPolicyAsync(body, new BigDecimal(clusterId), new BigDecimal(imageId), callback);
+            }
+            TrawlerScanResults body = (TrawlerScanResults) dto;
+            return callback -> api.imageControllerSaveImageScanResultsAsync(body, new BigDecimal(clusterId), new BigDecimal(imageId), callback);
+        }
+
+        /**
+         * Identify what the upload saves, a later upload with the same key replaces it
+         */
+        String key() {
+            return kind + "|" + clusterId + "|" + imageId + (policyId == null ? "" : "|" + policyId);
+        }
+    }
+}
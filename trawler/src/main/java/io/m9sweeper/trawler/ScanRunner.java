@@ -2,34 +2,161 @@ package io.m9sweeper.trawler;
 
 import io.m9sweeper.trawler.framework.client.api.M9SweeperApi;
 import io.m9sweeper.trawler.framework.client.model.*;
+import io.m9sweeper.trawler.framework.docker.DockerImage;
 import io.m9sweeper.trawler.framework.docker.DockerImageBuilder;
 import io.m9sweeper.trawler.framework.docker.DockerRegistryBuilder;
 import io.m9sweeper.trawler.framework.exception.NoncompliantException;
+import io.m9sweeper.trawler.framework.metrics.TrawlerMetrics;
 import io.m9sweeper.trawler.framework.policies.Policy;
 import io.m9sweeper.trawler.framework.queue.Message;
 import io.m9sweeper.trawler.framework.scans.*;
 import io.m9sweeper.trawler.scanners.Trivy;
+import io.m9sweeper.trawler.scanners.TrivyDatabase;
+import io.m9sweeper.trawler.scanners.TrivyExtraDataProjection;
 
 import java.math.BigDecimal;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 public class ScanRunner {
 
+    // Scans currently running in this process, shared with any job for the same image that arrives meanwhile
+    private static final SingleFlight<String, ScanOutcome> IN_FLIGHT_SCANS = new SingleFlight<>();
+
+    // Outcomes of recent scans, created on first use from the configuration
+    private static ScanResultCache resultCache;
+
+    // Issues of the last scan of each image per policy, created on first use from the configuration
+    private static IssueHistory issueHistory;
+
     private final M9SweeperApi apiInstance;
     private final Message message;
     private final List<PolicyWithScannerDto> policies;
 
+    // The issues of each policy compared with the previous scan, remembered once the policy's results are saved
+    private final Map<Long, IssueHistory.Comparison> comparisons = new ConcurrentHashMap<>();
+
     public ScanRunner(M9SweeperApi apiInstance, Message message, List<PolicyWithScannerDto> policies) {
         this.apiInstance = apiInstance;
         this.message = message;
         this.policies = policies;
     }
 
-    public void scan() throws Exception {
-        ScanConfig scanConfig = new ScanConfig();
-        scanConfig.setImage(new DockerImageBuilder(message.getImage().getId().intValue())
+    /**
+     * Scan the image and save the results to m9sweeper
+     *
+     * @return the saved results of each policy, without their issues when the results are saved per policy
+     * @throws NoncompliantException if the results were saved and the image is not compliant
+     * @throws Exception if the image could not be scanned or the results could not be saved
+     */
+    public List<ImageTrawlerResultDto> scan() throws Exception {
+        List<ImageTrawlerResultDto> imageTrawlerResultDtos = new ArrayList<>();
+        if (!TrawlerConfiguration.getInstance().uploadPerPolicy()) {
+            runScans(imageTrawlerResultDtos::add);
+            try {
+                saveScanResults(imageTrawlerResultDtos);
+            } catch (NoncompliantException e) {
+                commitIssueHistory(null);
+                throw e;
+            }
+            commitIssueHistory(null);
+            return imageTrawlerResultDtos;
+        }
+
+        AtomicBoolean noncompliant = new AtomicBoolean(false);
+        runScans(imageTrawlerResultDto -> {
+            if (isNoncompliant(savePolicyScanResult(imageTrawlerResultDto))) {
+                noncompliant.set(true);
+            }
+            commitIssueHistory(imageTrawlerResultDto.getPolicyId().longValue());
+            imageTrawlerResultDtos.add(withoutIssues(imageTrawlerResultDto));
+        });
+
+        if (imageTrawlerResultDtos.isEmpty()) {
+            // Without any enabled policy there is nothing to save per policy, but the image still needs to be marked as scanned
+            saveScanResults(imageTrawlerResultDtos);
+        } else if (noncompliant.get()) {
+            throw new NoncompliantException("Image Is not compliant", imageTrawlerResultDtos);
+        }
+        return imageTrawlerResultDtos;
+    }
+
+    /**
+     * Scan the image and queue the results to be saved to m9sweeper. Returns as soon as the results are queued.
+     * When uploading per policy, the results of each policy are queued as soon as its scans have finished and
+     * are saved in the order of the policies.
+     *
+     * @param uploader the uploader that saves the results
+     * @return completes once the results are saved, exceptionally with a {@link NoncompliantException} if the
+     * image is not compliant
+     * @throws Exception if the image could not be scanned
+     */
+    public CompletableFuture<Void> scan(ScanResultUploader uploader) throws Exception {
+        long clusterId = message.getCluster().getId();
+        long imageId = message.getImage().getId();
+        List<ImageTrawlerResultDto> imageTrawlerResultDtos = new ArrayList<>();
+        List<CompletableFuture<ImageScanResultSaveResponse>> uploads = new ArrayList<>();
+
+        if (TrawlerConfiguration.getInstance().uploadPerPolicy()) {
+            runScans(imageTrawlerResultDto -> {
+                if (TrawlerConfiguration.getInstance().getDebug()) {
+                    System.out.println("Saving Scan Result: " + imageTrawlerResultDto.toString());
+                }
+                // m9sweeper updates the image summary from the policies saved so far, so they are saved one at a time
+                CompletableFuture<?> previous = uploads.isEmpty() ? CompletableFuture.completedFuture(null) : uploads.get(uploads.size() - 1);
+                CompletableFuture<ImageScanResultSaveResponse> upload = uploader.uploadPolicy(imageTrawlerResultDto, clusterId, imageId, previous);
+                upload.thenAccept(response -> {
+                    if (response != null) {
+                        commitIssueHistory(imageTrawlerResultDto.getPolicyId().longValue());
+                    }
+                });
+                uploads.add(upload);
+                imageTrawlerResultDtos.add(withoutIssues(imageTrawlerResultDto));
+            });
+        } else {
+            runScans(imageTrawlerResultDtos::add);
+        }
+
+        if (uploads.isEmpty()) {
+            TrawlerScanResults body = new TrawlerScanResults();
+            body.setData(imageTrawlerResultDtos);
+            if (TrawlerConfiguration.getInstance().getDebug()) {
+                System.out.println("Saving Scan Results: " + body.toString());
+            }
+            CompletableFuture<ImageScanResultSaveResponse> upload = uploader.upload(body, clusterId, imageId);
+            upload.thenAccept(response -> {
+                if (response != null) {
+                    commitIssueHistory(null);
+                }
+            });
+            uploads.add(upload);
+        }
+
+        return CompletableFuture.allOf(uploads.toArray(new CompletableFuture[0]))
+                .thenAccept(saved -> {
+                    if (uploads.stream().map(CompletableFuture::join).anyMatch(ScanRunner::isNoncompliant)) {
+                        throw new CompletionException(new NoncompliantException("Image Is not compliant", imageTrawlerResultDtos));
+                    }
+                });
+    }
+
+    /**
+     * Build the image a scan job is for
+     *
+     * @param message the scan job, with its registry looked up
+     * @return the image to scan
+     */
+    static DockerImage toDockerImage(Message message) {
+        return new DockerImageBuilder(message.getImage().getId().intValue())
                 .withName(message.getImage().getName())
                 .withTag(message.getImage().getTag())
                 .withHash(message.getImage().getHash())
@@ -39,15 +166,31 @@ public class ScanRunner {
                         .withUsername(message.getRegistry().getUsername())
                         .withPassword(message.getRegistry().getPassword())
                         .build())
-                .build());
+                .build();
+    }
 
-        long scanStartedAt = System.currentTimeMillis();
+    /** Receives the results of each policy as soon as they are mapped to the DTO m9sweeper saves */
+    @FunctionalInterface
+    private interface PolicyResultHandler {
+        void handle(ImageTrawlerResultDto imageTrawlerResultDto) throws Exception;
+    }
 
-        ArrayList<ScanResult> scanResults = new ArrayList<>(0);
+    /**
+     * Run the scans of every policy and map the results to the DTOs m9sweeper saves
+     *
+     * @param handler receives the results of each policy once they are mapped
+     */
+    private void runScans(PolicyResultHandler handler) throws Exception {
+        ScanConfig scanConfig = new ScanConfig();
+        scanConfig.setImage(toDockerImage(message));
 
-        String newImageHash = "";
+        long scanStartedAt = System.currentTimeMillis();
 
         if (policies != null && policies.size() > 0) {
+            // Run each distinct scan once and share its issues between every policy that uses it
+            Map<String, PlannedScan> plannedScans = planScans(scanConfig);
+            runPlannedScans(plannedScans);
+
             for (PolicyWithScannerDto policyWithScannerDto: policies) {
                 if (!policyWithScannerDto.isEnabled()) {
                     continue;
@@ -59,34 +202,29 @@ public class ScanRunner {
 
                 ArrayList<ScanResultIssue> scanResultIssues = new ArrayList<>();
 
+                String newImageHash = "";
+                boolean encounteredError = false;
+
                 if (policyWithScannerDto.getScanners().size() > 0) {
                     for (ScannerDto scannerDto : policyWithScannerDto.getScanners()) {
                         if (!scannerDto.isEnabled()) {
                             continue;
                         }
 
-                        try {
-                            if (scannerDto.getType().toUpperCase().equals(ScannerType.TRIVY.name())) {
-                                scanConfig.setScanId(scannerDto.getId().intValue());
-                                scanConfig.setScannerName(scannerDto.getName());
-                                scanConfig.setPolicy(new Policy() {{
-                                    setEnforced(policyWithScannerDto.isEnforcement());
-                                    setName(policyWithScannerDto.getName());
-                                }});
-                                Trivy t = new Trivy();
-                                t.initScanner(scanConfig);
-                                t.run();
-                                scanResultIssues.addAll(t.getScanResult());
-                                newImageHash = t.getImageHash();
-                            } else {
-                                System.out.println("Scanner " + scannerDto.getType().toUpperCase() + " is not implemented yet.");
-                                throw new UnsupportedOperationException("Scanner " + scannerDto.getType().toUpperCase() + " is not implemented yet.");
+                        PlannedScan plannedScan = plannedScans.get(planKey(scannerDto));
+                        if (plannedScan.error == null) {
+                            for (ScanResultIssue issue : plannedScan.outcome.getIssues()) {
+                                scanResultIssues.add(new ScanResultIssueBuilder(scannerDto.getId().intValue(), scannerDto.getName())
+                                        .withIssue(issue)
+                                        .build());
                             }
+                            newImageHash = plannedScan.outcome.getImageHash();
                             scanResultBuilder.withEncounteredError(false);
                             scanResultBuilder.withSummary("");
-                        } catch (Exception e) {
+                        } else {
+                            encounteredError = true;
                             scanResultBuilder.withEncounteredError(true);
-                            scanResultBuilder.withSummary(e.getMessage());
+                            scanResultBuilder.withSummary(plannedScan.error.getMessage());
                         }
                     }
                 } else {
@@ -119,6 +257,15 @@ public class ScanRunner {
                     }
                 }
 
+                // Report the issues the previous scan found that are gone now as fixed, they are not counted. A scan
+                // that failed says nothing about which issues are gone.
+                IssueHistory history = getIssueHistory();
+                if (history != null && !encounteredError && scanConfig.getImage().getId() > 0) {
+                    IssueHistory.Comparison comparison = history.diff(scanConfig.getImage().getId(), policyWithScannerDto.getId().longValue(), scanResultIssues);
+                    scanResultIssues.addAll(comparison.getFixed());
+                    comparisons.put(policyWithScannerDto.getId().longValue(), comparison);
+                }
+
                 scanResultBuilder.withNumCriticalIssues(totalCriticalIssues)
                         .withNumHighIssues(totalHighIssues)
                         .withNumMediumIssues(totalMediumIssues)
@@ -128,16 +275,33 @@ public class ScanRunner {
                         .withFinishedAt(System.currentTimeMillis())
                         .withHash(newImageHash);
 
-                scanResults.add(scanResultBuilder.build());
+                ScanResult scanResult = scanResultBuilder.build();
+                if (TrawlerConfiguration.getInstance().getDebug()) {
+                    System.out.println("Scan Result: " + scanResult.toString());
+                }
+                handler.handle(toImageTrawlerResultDto(scanResult));
             }
         }
+    }
 
-        if (TrawlerConfiguration.getInstance().getDebug()) {
-            System.out.println("Scan Results: " + scanResults.toString());
-        }
+    /**
+     * Map the results of each policy to the DTOs m9sweeper saves
+     *
+     * @param scanResults the scan result of each policy
+     * @return the DTOs to send to m9sweeper
+     */
+    static List<ImageTrawlerResultDto> toImageTrawlerResultDtos(List<ScanResult> scanResults) {
+        return scanResults.stream().map(ScanRunner::toImageTrawlerResultDto).collect(Collectors.toList());
+    }
 
-        List<ImageTrawlerResultDto> imageTrawlerResultDtos = scanResults.stream()
-                .map(scanResult -> new ImageTrawlerResultDto()
+    /**
+     * Map the result of a policy to the DTO m9sweeper saves
+     *
+     * @param scanResult the scan result of the policy
+     * @return the DTO to send to m9sweeper
+     */
+    static ImageTrawlerResultDto toImageTrawlerResultDto(ScanResult scanResult) {
+        return new ImageTrawlerResultDto()
                 .summary(scanResult.getSummary())
                 .encounterError(scanResult.isEncounteredError())
                 .criticalIssues(new BigDecimal(scanResult.getNumCriticalIssues()))
@@ -161,11 +325,182 @@ public class ScanRunner {
                                 .description(o.getDescription())
                                 .isCompliant(o.isCompliant())
                                 .isFixable(o.isFixable())
-                                .wasFixed(false)
+                                .wasFixed(o.wasFixed())
                                 .data(o.getExtraData())
-                ).collect(Collectors.toList()))).collect(Collectors.toList());
+                ).collect(Collectors.toList()));
+    }
 
-        saveScanResults(imageTrawlerResultDtos);
+    /**
+     * Copy the results of a policy without their issues, to report the outcome of a policy once its issues have
+     * been saved
+     */
+    private static ImageTrawlerResultDto withoutIssues(ImageTrawlerResultDto imageTrawlerResultDto) {
+        return new ImageTrawlerResultDto()
+                .summary(imageTrawlerResultDto.getSummary())
+                .encounterError(imageTrawlerResultDto.isEncounterError())
+                .criticalIssues(imageTrawlerResultDto.getCriticalIssues())
+                .majorIssues(imageTrawlerResultDto.getMajorIssues())
+                .mediumIssues(imageTrawlerResultDto.getMediumIssues())
+                .lowIssues(imageTrawlerResultDto.getLowIssues())
+                .negligibleIssues(imageTrawlerResultDto.getNegligibleIssues())
+                .policyId(imageTrawlerResultDto.getPolicyId())
+                .policyStatus(imageTrawlerResultDto.isPolicyStatus())
+                .startedAt(imageTrawlerResultDto.getStartedAt())
+                .finishedAt(imageTrawlerResultDto.getFinishedAt())
+                .imageHash(imageTrawlerResultDto.getImageHash())
+                .issues(new ArrayList<>());
+    }
+
+    /**
+     * Collect the distinct scans needed by all enabled scanners of the enabled policies. Scanners of the same
+     * type are configured identically, so the scanner type identifies a scan. The first scanner of each type
+     * is used to label the scan in the logs.
+     */
+    private Map<String, PlannedScan> planScans(ScanConfig imageScanConfig) {
+        Map<String, PlannedScan> plannedScans = new LinkedHashMap<>();
+        for (PolicyWithScannerDto policyWithScannerDto : policies) {
+            if (!policyWithScannerDto.isEnabled() || policyWithScannerDto.getScanners() == null) {
+                continue;
+            }
+
+            for (ScannerDto scannerDto : policyWithScannerDto.getScanners()) {
+                if (!scannerDto.isEnabled() || plannedScans.containsKey(planKey(scannerDto))) {
+                    continue;
+                }
+
+                ScanConfig scanConfig = new ScanConfig();
+                scanConfig.setImage(imageScanConfig.getImage());
+                scanConfig.setScanId(scannerDto.getId().intValue());
+                scanConfig.setScannerName(scannerDto.getName());
+                scanConfig.setPolicy(new Policy() {{
+                    setEnforced(policyWithScannerDto.isEnforcement());
+                    setName(policyWithScannerDto.getName());
+                }});
+                plannedScans.put(planKey(scannerDto), new PlannedScan(scannerDto.getType().toUpperCase(), scanConfig));
+            }
+        }
+        return plannedScans;
+    }
+
+    /** Run every planned scan, recording its issues or the error it failed with */
+    private void runPlannedScans(Map<String, PlannedScan> plannedScans) {
+        for (PlannedScan plannedScan : plannedScans.values()) {
+            // Jobs for the same image that arrive while it is being scanned wait for that scan instead
+            String flightKey = plannedScan.scannerType + "|" + plannedScan.scanConfig.getImage().buildDigestReference();
+            try {
+                plannedScan.outcome = IN_FLIGHT_SCANS.execute(flightKey, () -> scanOrReuse(plannedScan));
+                plannedScan.outcome.getIssues().forEach(issue -> TrawlerMetrics.ISSUES.inc(String.valueOf(issue.getSeverity())));
+            } catch (Exception e) {
+                plannedScan.error = e;
+            }
+        }
+    }
+
+    /** Reuse a recent outcome of the same scan against the same vulnerability DB, or run the scanner */
+    private static ScanOutcome scanOrReuse(PlannedScan plannedScan) {
+        ScanResultCache cache = getResultCache();
+        DockerImage image = plannedScan.scanConfig.getImage();
+        if (cache == null || image.hasTempHash()) {
+            return runScanner(plannedScan).outcome;
+        }
+
+        String dbRevision = TrivyDatabase.getInstance().getRevision();
+        if (dbRevision != null) {
+            ScanOutcome cached = cache.get(resultCacheKey(plannedScan, dbRevision));
+            if (cached != null) {
+                System.out.println("Reusing cached scan results for " + image.buildDigestReference());
+                return cached;
+            }
+        }
+
+        ScannerRun run = runScanner(plannedScan);
+        if (run.dbRevision != null) {
+            cache.put(resultCacheKey(plannedScan, run.dbRevision), run.outcome);
+        }
+        return run.outcome;
+    }
+
+    /** Run the scanner of a planned scan */
+    private static ScannerRun runScanner(PlannedScan plannedScan) {
+        if (plannedScan.scannerType.equals(ScannerType.TRIVY.name())) {
+            Trivy t = new Trivy();
+            t.initScanner(plannedScan.scanConfig);
+            t.run();
+            return new ScannerRun(new ScanOutcome(t.getScanResult(), t.getImageHash()), t.getDbRevision());
+        } else {
+            System.out.println("Scanner " + plannedScan.scannerType + " is not implemented yet.");
+            throw new UnsupportedOperationException("Scanner " + plannedScan.scannerType + " is not implemented yet.");
+        }
+    }
+
+    private static String resultCacheKey(PlannedScan plannedScan, String dbRevision) {
+        // The extra data of the cached issues was cut down by the projection set up when they were scanned
+        return plannedScan.scannerType + "|" + plannedScan.scanConfig.getImage().buildDigestReference() + "|" + dbRevision +
+                "|" + TrivyExtraDataProjection.fromConfig().fingerprint();
+    }
+
+    private static synchronized ScanResultCache getResultCache() {
+        int ttl = TrawlerConfiguration.getInstance().scanResultCacheTtl();
+        if (resultCache == null && ttl > 0) {
+            String directory = TrawlerConfiguration.getInstance().scanResultCacheDir();
+            resultCache = new ScanResultCache(TimeUnit.MINUTES.toMillis(ttl),
+                    TrawlerConfiguration.getInstance().scanResultCacheSize(),
+                    directory.isEmpty() ? null : Paths.get(directory));
+        }
+        return resultCache;
+    }
+
+    private static synchronized IssueHistory getIssueHistory() {
+        int size = TrawlerConfiguration.getInstance().issueHistorySize();
+        if (issueHistory == null && size > 0) {
+            issueHistory = new IssueHistory(size);
+        }
+        return issueHistory;
+    }
+
+    /**
+     * Remember the issues of policies whose results were saved for the next scan of the image
+     *
+     * @param policyId the policy whose results were saved, or null if the results of every policy were saved
+     */
+    private void commitIssueHistory(Long policyId) {
+        if (policyId == null) {
+            comparisons.values().forEach(IssueHistory.Comparison::commit);
+            comparisons.clear();
+        } else {
+            IssueHistory.Comparison comparison = comparisons.remove(policyId);
+            if (comparison != null) {
+                comparison.commit();
+            }
+        }
+    }
+
+    private static String planKey(ScannerDto scannerDto) {
+        return scannerDto.getType().toUpperCase();
+    }
+
+    /** A scan that is run once per image and shared between the policies that need it */
+    private static class PlannedScan {
+        private final String scannerType;
+        private final ScanConfig scanConfig;
+        private ScanOutcome outcome;
+        private Exception error;
+
+        private PlannedScan(String scannerType, ScanConfig scanConfig) {
+            this.scannerType = scannerType;
+            this.scanConfig = scanConfig;
+        }
+    }
+
+    /** The outcome of running a scanner and the vulnerability DB it was run against */
+    private static class ScannerRun {
+        private final ScanOutcome outcome;
+        private final String dbRevision;
+
+        private ScannerRun(ScanOutcome outcome, String dbRevision) {
+            this.outcome = outcome;
+            this.dbRevision = dbRevision;
+        }
     }
 
     /** Throws an error if the image is not compliant  */
@@ -175,9 +510,26 @@ public class ScanRunner {
         if (TrawlerConfiguration.getInstance().getDebug()) {
             System.out.println("Saving Scan Results: " + body.toString());
         }
+        long uploadStartedAt = System.nanoTime();
         ImageScanResultSaveResponse complianceResponse = apiInstance.imageControllerSaveImageScanResults(body, new BigDecimal(message.getCluster().getId()), new BigDecimal(message.getImage().getId()));
-        if (complianceResponse.getData() != null && !complianceResponse.getData().isComplaint()) {
+        TrawlerMetrics.UPLOAD.observeSince(uploadStartedAt);
+        if (isNoncompliant(complianceResponse)) {
             throw new NoncompliantException("Image Is not compliant", imageTrawlerResultDtos);
         }
     }
+
+    private ImageScanResultSaveResponse savePolicyScanResult(ImageTrawlerResultDto imageTrawlerResultDto) throws Exception {
+        if (TrawlerConfiguration.getInstance().getDebug()) {
+            System.out.println("Saving Scan Result: " + imageTrawlerResultDto.toString());
+        }
+        long uploadStartedAt = System.nanoTime();
+        ImageScanResultSaveResponse complianceResponse = apiInstance.imageControllerSaveImageScanResultsPerPolicy(imageTrawlerResultDto, new BigDecimal(message.getCluster().getId()), new BigDecimal(message.getImage().getId()));
+        TrawlerMetrics.UPLOAD.observeSince(uploadStartedAt);
+        return complianceResponse;
+    }
+
+    private static boolean isNoncompliant(ImageScanResultSaveResponse complianceResponse) {
+        // Results left in the outbox are not saved yet, so their compliance is not known yet either
+        return complianceResponse != null && complianceResponse.getData() != null && !complianceResponse.getData().isComplaint();
+    }
 }
@@ -1,32 +1,52 @@
 package io.m9sweeper.trawler;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Envelope;
 import io.m9sweeper.trawler.commands.AbstractCommand;
 import io.m9sweeper.trawler.commands.ScanCommand;
 import io.m9sweeper.trawler.framework.TrawlerRunMode;
+import io.m9sweeper.trawler.framework.client.ResilientApiClient;
 import io.m9sweeper.trawler.framework.client.api.M9SweeperApi;
-import io.m9sweeper.trawler.framework.client.handler.ApiClient;
 import io.m9sweeper.trawler.framework.client.handler.Configuration;
 import io.m9sweeper.trawler.framework.client.handler.auth.ApiKeyAuth;
 import io.m9sweeper.trawler.framework.client.model.DockerRegistriesDto;
-import io.m9sweeper.trawler.framework.client.model.DockerRegistriesResponseDto;
-import io.m9sweeper.trawler.framework.client.model.PoliciesByClusterResponse;
+import io.m9sweeper.trawler.framework.client.model.PolicyWithScannerDto;
+import io.m9sweeper.trawler.framework.exception.NoncompliantException;
+import io.m9sweeper.trawler.framework.metrics.MetricsServer;
+import io.m9sweeper.trawler.framework.metrics.TrawlerMetrics;
+import io.m9sweeper.trawler.framework.outbox.Outbox;
 import io.m9sweeper.trawler.framework.queue.Message;
 import io.m9sweeper.trawler.framework.queue.Registry;
+import io.m9sweeper.trawler.scanners.ImagePrefetcher;
+import io.m9sweeper.trawler.scanners.PackageIndex;
+import io.m9sweeper.trawler.scanners.TrivyDatabase;
+import io.m9sweeper.trawler.scanners.TrivyServer;
 import picocli.CommandLine;
 
 import java.io.IOException;
-import java.math.BigDecimal;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 @CommandLine.Command(name = "trawler", description = "Run Trawler in its RabbitMQ mode where it will monitor " +
         "a specified RabbitMQ queue for scan jobs.", subcommands = ScanCommand.class)
 public class Trawler extends AbstractCommand implements Runnable {
 
+    // The size at which the outbox starts a new segment file
+    private static final long OUTBOX_SEGMENT_BYTES = 64L * 1024 * 1024;
+
     @CommandLine.Option(names = {"-u", "--rabbitmq-user"}, description = "username of the RabbitMQ server", order = 3)
     String rabbitmqUsername;
 
@@ -42,6 +62,12 @@ public class Trawler extends AbstractCommand implements Runnable {
     @CommandLine.Option(names = {"-q", "--rabbitmq-queue"}, description = "name of the RabbitMQ queue to listen on", order = 7)
     String rabbitmqQueueName;
 
+    @CommandLine.Option(names = {"-P", "--parallel-scans"}, description = "number of scans to run at the same time", order = 8)
+    int parallelScans;
+
+    @CommandLine.Option(names = {"--rabbitmq-prefetch"}, description = "number of unacknowledged jobs each scan worker may hold", order = 9)
+    int rabbitmqPrefetch;
+
     /**
      * Run the main application for Trawler. This runs the default command, the basic trawler command which will start
      * the application in the rabbitmq mode.
@@ -94,6 +120,16 @@ public class Trawler extends AbstractCommand implements Runnable {
         if (rabbitmqQueueName != null) {
             TrawlerConfiguration.getInstance().setRabbitmqQueueName(rabbitmqQueueName);
         }
+
+        // Update the number of parallel scans if one was provided by CLI
+        if (parallelScans != 0) {
+            TrawlerConfiguration.getInstance().setParallelScanners(parallelScans);
+        }
+
+        // Update the prefetch count if one was provided by CLI
+        if (rabbitmqPrefetch != 0) {
+            TrawlerConfiguration.getInstance().setRabbitmqPrefetchCount(rabbitmqPrefetch);
+        }
     }
 
     private Connection getAmpqConnection(ConnectionFactory factory, int retry) throws InterruptedException {
@@ -120,12 +156,42 @@ public class Trawler extends AbstractCommand implements Runnable {
         TrawlerConfiguration.getInstance().verifyConfig();
 
         // Configure the API client
-        ApiClient defaultClient = Configuration.getDefaultApiClient();
+        // Request bodies are streamed, and scan results compressed, to keep large uploads small. Calls are limited
+        // and stopped while m9sweeper is overloaded or down, so they do not pile up.
+        ResilientApiClient defaultClient = new ResilientApiClient(TrawlerConfiguration.getInstance().uploadGzip(),
+                TimeUnit.SECONDS.toMillis(TrawlerConfiguration.getInstance().dashCallTimeout()),
+                TimeUnit.SECONDS.toMillis(TrawlerConfiguration.getInstance().dashUploadTimeout()),
+                TrawlerConfiguration.getInstance().dashMaxRetries(),
+                TrawlerConfiguration.getInstance().dashMaxConcurrency(),
+                TrawlerConfiguration.getInstance().dashCircuitFailures(),
+                TimeUnit.SECONDS.toMillis(TrawlerConfiguration.getInstance().dashCircuitOpenTime()));
+        Configuration.setDefaultApiClient(defaultClient);
         defaultClient.setBasePath(TrawlerConfiguration.getInstance().m9sweeperUrl());
         ApiKeyAuth xAuthToken = (ApiKeyAuth) defaultClient.getAuthentication("x-auth-token");
         xAuthToken.setApiKey(TrawlerConfiguration.getInstance().m9sweeperApiKey());
         M9SweeperApi api = new M9SweeperApi(defaultClient);
 
+        // Cache the registry and policy lookups every scan job needs
+        DashLookupCache lookups = new DashLookupCache(api,
+                TimeUnit.SECONDS.toMillis(TrawlerConfiguration.getInstance().dashLookupCacheTtl()),
+                TrawlerConfiguration.getInstance().dashLookupCacheSize());
+
+        // Save scan results in the background so workers can start their next scan right away
+        // and keep the ones m9sweeper could not save in the outbox, if there is one, until it can
+        Outbox outbox = null;
+        if (!TrawlerConfiguration.getInstance().outboxDir().isEmpty()) {
+            try {
+                outbox = new Outbox(Paths.get(TrawlerConfiguration.getInstance().outboxDir()), OUTBOX_SEGMENT_BYTES,
+                        TrawlerConfiguration.getInstance().outboxFsyncInterval());
+                System.out.println("Outbox loaded with " + outbox.size() + " scan results to save");
+            } catch (IOException e) {
+                System.err.println("Unable to open the outbox, scan results that cannot be saved will fail their scan job: " + e.getMessage());
+            }
+        }
+        ScanResultUploader uploader = new ScanResultUploader(api,
+                TrawlerConfiguration.getInstance().uploadQueueSize(),
+                TrawlerConfiguration.getInstance().uploadMaxAttempts(), outbox);
+
         // Configure the RabbitMQ Connection
         ConnectionFactory factory = new ConnectionFactory();
         factory.setHost(TrawlerConfiguration.getInstance().rabbitmqHostname());
@@ -137,79 +203,273 @@ public class Trawler extends AbstractCommand implements Runnable {
         factory.setConnectionTimeout(5000);
         factory.setNetworkRecoveryInterval(5000);
 
+        // Download the Trivy vulnerability DB and keep it up to date in the background
+        TrivyDatabase.getInstance().startRefreshing(TrawlerConfiguration.getInstance().trivyDbRefreshInterval());
+
+        // Share one trivy server, and so one in-memory copy of the DB, between all scan workers
+        if (TrawlerConfiguration.getInstance().trivyServerMode()) {
+            TrivyServer.getInstance().start();
+        }
+
+        // Each scan worker gets its own thread so that one long running scan does not hold up the others. Messages
+        // are received on a shared pool and handed to the worker of their channel, so a worker's next jobs are
+        // already received while it is scanning.
+        int parallelScanners = TrawlerConfiguration.getInstance().parallelScanners();
+        TrawlerMetrics.WORKERS.set(parallelScanners);
+        factory.setSharedExecutor(Executors.newFixedThreadPool(parallelScanners));
+
+        // Pull the images of received jobs while the workers are still scanning the jobs ahead of them
+        boolean imagePrefetch = TrawlerConfiguration.getInstance().imagePrefetch();
+        if (imagePrefetch) {
+            ImagePrefetcher.getInstance().start(parallelScanners);
+        }
+
         try {
-            // Create the connection and connection channel to RabbitMQ
+            // Serve metrics about the scan jobs for Prometheus
+            if (TrawlerConfiguration.getInstance().metricsPort() > 0) {
+                new MetricsServer(TrawlerConfiguration.getInstance().metricsPort());
+                System.out.println("Serving metrics on port " + TrawlerConfiguration.getInstance().metricsPort());
+            }
+
+            // Create the connection to RabbitMQ
             Connection connection = getAmpqConnection(factory, 10);
 
-            Channel channel = connection.createChannel();
+            // Re-queue the jobs of the images whose packages got new advisories with a vulnerability DB update
+            String packageIndexDir = TrawlerConfiguration.getInstance().packageIndexDir();
+            if (!packageIndexDir.isEmpty()) {
+                Channel requeueChannel = connection.createChannel();
+                PackageIndex.getInstance().start(Paths.get(packageIndexDir), message -> requeue(requeueChannel, message));
+            }
 
-            // Select the right RabbitMQ Queue to monitor
-            channel.queueDeclare(TrawlerConfiguration.getInstance().rabbitmqQueueName(), true, false, false, null);
+            // Create a channel per scan worker so messages are dispatched to the workers concurrently
+            for (int i = 0; i < parallelScanners; i++) {
+                Channel channel = connection.createChannel();
 
-            // Display a message stating that Trawler is listening for messages
-            System.out.println("Trawler is waiting for scan jobs...");
+                // Select the right RabbitMQ Queue to monitor
+                channel.queueDeclare(TrawlerConfiguration.getInstance().rabbitmqQueueName(), true, false, false, null);
 
-            // Consume a message from the queue and execute the scan accordingly
-            channel.basicConsume(TrawlerConfiguration.getInstance().rabbitmqQueueName(), true, (consumerTag, delivery) -> {
-                try {
-                    ObjectMapper mapper = new ObjectMapper();
+                // Limit how many unacknowledged jobs RabbitMQ will hand to this worker. One more job than the prefetch
+                // count is allowed so that the worker can start its next scan while its last results are uploaded.
+                channel.basicQos(TrawlerConfiguration.getInstance().rabbitmqPrefetchCount() + 1);
 
-                    // Get the contents of the message
+                // Runs the scans of this channel's jobs one at a time, in the order they were received
+                ExecutorService worker = Executors.newSingleThreadExecutor();
+
+                // Consume a message from the queue and execute the scan accordingly. The message is only
+                // acknowledged once the scan results have been saved, so a job is not lost if the pod dies.
+                channel.basicConsume(TrawlerConfiguration.getInstance().rabbitmqQueueName(), false, (consumerTag, delivery) -> {
                     String message = new String(delivery.getBody(), StandardCharsets.UTF_8);
-                    Message payload = mapper.readValue(message, Message.class);
-                        
+                    Message payload;
                     try {
-                        DockerRegistriesResponseDto registries = api.dockerRegistriesControllerGetDockerRegistries(
-                                null, null, "id", "asc",
-                                null, null, payload.getRegistry().getHostname());
-                        if (registries.getData().getList().isEmpty()) {
-                            throw new RuntimeException("Invalid docker registry");
+                        payload = readMessage(lookups, message);
+                    } catch (Exception e) {
+                        finishJob(channel, delivery.getEnvelope(), e);
+                        return;
+                    }
+
+                    // Keep the job as it was received, without the looked up registry credentials, to re-queue it
+                    if (payload.getImage().getId() != null) {
+                        PackageIndex.getInstance().recordJob(payload.getImage().getId().intValue(), message);
+                    }
+
+                    if (imagePrefetch) {
+                        prefetch(payload);
+                    }
+
+                    worker.execute(() -> {
+                        if (delivery.getProperties().getTimestamp() != null) {
+                            TrawlerMetrics.QUEUE_WAIT.observe((System.currentTimeMillis() - delivery.getProperties().getTimestamp().getTime()) / 1000.0);
                         }
 
-                        DockerRegistriesDto registriesDto = registries.getData().getList().get(0);
-
-                        // convert to proper class name (for some reason its defined 2 different ways... go figure)
-                        Registry registry = new Registry();
-                        registry.setId(Long.valueOf(registriesDto.getId().toString()));
-                        registry.setAliases(registriesDto.getAliases());
-                        registry.setHostname(registriesDto.getHostname());
-                        registry.setAuthType(registriesDto.getAuthType());
-                        registry.setName(registriesDto.getName());
-                        registry.setUsername(registriesDto.getUsername());
-                        registry.setPassword(registriesDto.getPassword());
-                        registry.setAuthDetails(registriesDto.getAuthDetails());
-                        registry.setLoginRequired(registriesDto.isLoginRequired());
-
-                        payload.setRegistry(registry);
-                    } catch (Exception e) {
-                        // TODO: Should save that it failed and why it failed back (the exception message)
-                        e.printStackTrace(); 
-                    } 
+                        // Hold the job while m9sweeper is down, rather than scanning an image whose results cannot be
+                        // saved. The jobs behind it stay on the queue, as the worker's prefetch is used up.
+                        awaitDash(defaultClient);
 
-                    // Run the scan as long as the contents of the message are valid
-                    if (payload != null && payload.getCluster() != null && payload.getCluster().getId() != null) {
+                        CompletableFuture<Void> job;
+                        TrawlerMetrics.SCANS_IN_FLIGHT.inc();
                         try {
-                            PoliciesByClusterResponse policiesByClusterResponse = api.policyControllerGetPoliciesByClusterId(new BigDecimal(payload.getCluster().getId()));
-                            if (policiesByClusterResponse.isSuccess() && policiesByClusterResponse.getData() != null && policiesByClusterResponse.getData().size() > 0) {
-                                System.out.println("Job received, starting scan.");
-                                new ScanRunner(api, payload, policiesByClusterResponse.getData()).scan();
-                                System.out.println("Scan completed");
-                            } else {
-                                throw new Exception("No policies found for cluster '" + payload.getCluster().getId() + "'");
-                            }
+                            job = processMessage(api, lookups, uploader, payload);
                         } catch (Exception e) {
-                            // TODO: should save that it failed and why it failed (the exception message)
-                            e.printStackTrace();
+                            job = CompletableFuture.failedFuture(e);
+                        } finally {
+                            TrawlerMetrics.SCANS_IN_FLIGHT.dec();
                         }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace(); 
-                }
-            }, consumerTag -> {});
+
+                        // The worker moves on to its next job while the results are being saved
+                        job.whenComplete((result, error) -> finishJob(channel, delivery.getEnvelope(), error));
+                    });
+                }, consumerTag -> {});
+            }
+
+            // Display a message stating that Trawler is listening for messages
+            System.out.println("Trawler is waiting for scan jobs with " + parallelScanners + " scan worker(s)...");
         } catch (IOException | InterruptedException e) {
             System.out.println("Error: Connection timed out to RabbitMQ server. Please check your configuration and try again.");
         } catch (Exception e) {
             e.printStackTrace();  // something else failed
         }
     }
+
+    /**
+     * Wait until the scan results can be saved to m9sweeper again
+     * @param client the m9sweeper API client
+     */
+    private static void awaitDash(ResilientApiClient client) {
+        long unavailable = client.unavailableMillis(ScanResultUploader.UPLOAD_PATH);
+        if (unavailable == 0) {
+            return;
+        }
+
+        System.err.println("m9sweeper is unavailable, holding the next scan job until it can be reached again");
+        try {
+            while (unavailable > 0) {
+                Thread.sleep(unavailable);
+                unavailable = client.unavailableMillis(ScanResultUploader.UPLOAD_PATH);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Acknowledge a job once its results have been saved, even if the image was found to be non-compliant.
+     * Failed jobs are requeued once in case the failure was temporary and dropped if they fail again.
+     * @param channel the channel the job was received on
+     * @param envelope the envelope of the job message
+     * @param error the error the job failed with, or null if it succeeded
+     */
+    private void finishJob(Channel channel, Envelope envelope, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        try {
+            // Jobs finish on the upload threads, so acknowledgements must not interleave on the channel
+            synchronized (channel) {
+                if (cause == null || cause instanceof NoncompliantException) {
+                    if (cause == null) {
+                        TrawlerMetrics.SCANS.inc("compliant");
+                    } else {
+                        // The results were saved, the image simply did not pass its policies
+                        System.out.println("Image Non-Compliant");
+                        TrawlerMetrics.SCANS.inc("noncompliant");
+                    }
+                    System.out.println("Scan completed");
+                    channel.basicAck(envelope.getDeliveryTag(), false);
+                } else {
+                    TrawlerMetrics.SCANS.inc("failed");
+
+                    // TODO: should save that it failed and why it failed (the exception message)
+                    cause.printStackTrace();
+
+                    channel.basicNack(envelope.getDeliveryTag(), false, !envelope.isRedeliver());
+                }
+            }
+        } catch (IOException e) {
+            // The job is redelivered by RabbitMQ once the channel recovers
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Publish a job message to the scan queue again
+     * @param channel the channel to publish on
+     * @param message the raw contents of the job message
+     */
+    private void requeue(Channel channel, String message) {
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                .contentType("application/json")
+                .deliveryMode(2)
+                .timestamp(new Date())
+                .build();
+        try {
+            synchronized (channel) {
+                channel.basicPublish("", TrawlerConfiguration.getInstance().rabbitmqQueueName(), properties,
+                        message.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Read a job message and look up the registry of its image in m9sweeper
+     * @param lookups cache of the registries and policies in m9sweeper
+     * @param message the raw contents of the job message
+     * @return the job
+     * @throws Exception if the message is not a valid scan job
+     */
+    private Message readMessage(DashLookupCache lookups, String message) throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+
+        // Get the contents of the message
+        Message payload = mapper.readValue(message, Message.class);
+
+        long lookupStartedAt = System.nanoTime();
+        try {
+            DockerRegistriesDto registriesDto = lookups.getDockerRegistry(payload.getRegistry().getHostname());
+            if (registriesDto == null) {
+                throw new RuntimeException("Invalid docker registry");
+            }
+
+            // convert to proper class name (for some reason its defined 2 different ways... go figure)
+            Registry registry = new Registry();
+            registry.setId(Long.valueOf(registriesDto.getId().toString()));
+            registry.setAliases(registriesDto.getAliases());
+            registry.setHostname(registriesDto.getHostname());
+            registry.setAuthType(registriesDto.getAuthType());
+            registry.setName(registriesDto.getName());
+            registry.setUsername(registriesDto.getUsername());
+            registry.setPassword(registriesDto.getPassword());
+            registry.setAuthDetails(registriesDto.getAuthDetails());
+            registry.setLoginRequired(registriesDto.isLoginRequired());
+
+            payload.setRegistry(registry);
+        } catch (Exception e) {
+            // TODO: Should save that it failed and why it failed back (the exception message)
+            e.printStackTrace();
+        } finally {
+            TrawlerMetrics.DASH_LOOKUP.observeSince(lookupStartedAt, "registry");
+        }
+
+        // Run the scan as long as the contents of the message are valid
+        if (payload == null || payload.getCluster() == null || payload.getCluster().getId() == null) {
+            throw new Exception("Invalid scan job: " + message);
+        }
+
+        return payload;
+    }
+
+    /**
+     * Start pulling the image of a received job ahead of its scan
+     * @param payload the job
+     */
+    private void prefetch(Message payload) {
+        try {
+            ImagePrefetcher.getInstance().prefetch(ScanRunner.toDockerImage(payload));
+        } catch (RuntimeException e) {
+            // The scan reports whatever is wrong with the image once it runs
+            System.err.println("Could not prefetch the image of a scan job: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Scan the image of a job and queue the results to be saved to m9sweeper. Returns as soon as the scan is done.
+     * @param api m9sweeper API client
+     * @param lookups cache of the registries and policies in m9sweeper
+     * @param uploader the uploader that saves the results
+     * @param payload the job, as read by {@link #readMessage}
+     * @return completes once the results have been saved, exceptionally with a {@link NoncompliantException} if
+     * the image is not compliant
+     * @throws Exception if the job could not be completed
+     */
+    private CompletableFuture<Void> processMessage(M9SweeperApi api, DashLookupCache lookups, ScanResultUploader uploader, Message payload) throws Exception {
+        long lookupStartedAt = System.nanoTime();
+        List<PolicyWithScannerDto> policies = lookups.getPolicies(payload.getCluster().getId());
+        TrawlerMetrics.DASH_LOOKUP.observeSince(lookupStartedAt, "policies");
+
+        if (policies != null && policies.size() > 0) {
+            System.out.println("Job received, starting scan.");
+            return new ScanRunner(api, payload, policies).scan(uploader);
+        } else {
+            throw new Exception("No policies found for cluster '" + payload.getCluster().getId() + "'");
+        }
+    }
 }
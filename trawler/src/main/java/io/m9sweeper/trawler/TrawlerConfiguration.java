@@ -25,8 +25,43 @@ public class TrawlerConfiguration {
     private String rabbitmqHostname;
     private Integer rabbitmqPort = 5672;
     private String rabbitmqQueueName;
+    private Integer parallelScanners = 1;
+    private Integer rabbitmqPrefetchCount = 1;
+    private String trivyCacheDir;
+    private Integer trivyDbRefreshInterval = 360;
+    private Boolean trivyServerMode = false;
+    private Integer trivyServerPort = 4954;
+    private Integer scanResultCacheTtl = 60;
+    private Integer scanResultCacheSize = 50;
+    private String scanResultCacheDir;
+    private Integer dashLookupCacheTtl = 60;
+    private Integer dashLookupCacheSize = 100;
+    private Integer metricsPort = 0;
+    private Integer uploadQueueSize = 4;
+    private Integer uploadMaxAttempts = 5;
+    private Boolean uploadGzip = true;
+    private Boolean uploadPerPolicy = false;
+    private String trivyExtraDataFields;
+    private Integer trivyExtraDataMaxReferences = -1;
+    private Integer trivyExtraDataMaxDescription = 0;
+    private Boolean imagePrefetch = false;
+    private String layerStoreDir;
+    private Integer layerStoreMaxSize = 10240;
+    private String sbomCacheDir;
+    private Integer sbomCacheSize = 1000;
+    private String packageIndexDir;
+    private Integer issueHistorySize = 0;
+    private String outboxDir;
+    private Integer outboxFsyncInterval = 0;
+    private Integer dashCallTimeout = 60;
+    private Integer dashUploadTimeout = 600;
+    private Integer dashMaxRetries = 2;
+    private Integer dashMaxConcurrency = 16;
+    private Integer dashCircuitFailures = 5;
+    private Integer dashCircuitOpenTime = 30;
     private String clusterName;
     private String dockerImageUrl;
+    private String dockerImageList;
     private String acr_access_key;
     private String acr_secret_key;
     private String acr_region_name;
@@ -78,6 +113,246 @@ public class TrawlerConfiguration {
         // Load the queue name for RabbitMQ
         rabbitmqQueueName = dotenv.get("RABBITMQ_QUEUE_NAME", "trawler_queue");
 
+        // Load the number of scans that can run at the same time
+        try {
+            parallelScanners = Integer.parseInt(dotenv.get("TRAWLER_PARALLEL_SCANNERS", "1"));
+        } catch (NumberFormatException e) {
+            System.out.println("TRAWLER_PARALLEL_SCANNERS: " + dotenv.get("TRAWLER_PARALLEL_SCANNERS") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (1).");
+            System.exit(1);
+        }
+
+        // Load the number of unacknowledged messages each scan worker may hold
+        try {
+            rabbitmqPrefetchCount = Integer.parseInt(dotenv.get("RABBITMQ_PREFETCH_COUNT", "1"));
+        } catch (NumberFormatException e) {
+            System.out.println("RABBITMQ_PREFETCH_COUNT: " + dotenv.get("RABBITMQ_PREFETCH_COUNT") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (1).");
+            System.exit(1);
+        }
+
+        // Load the directory Trivy keeps its vulnerability DB and layer cache in
+        trivyCacheDir = dotenv.get("TRIVY_CACHE_DIR", "");
+
+        // Load how often the Trivy vulnerability DB is refreshed, in minutes
+        try {
+            trivyDbRefreshInterval = Integer.parseInt(dotenv.get("TRIVY_DB_REFRESH_INTERVAL", "360"));
+        } catch (NumberFormatException e) {
+            System.out.println("TRIVY_DB_REFRESH_INTERVAL: " + dotenv.get("TRIVY_DB_REFRESH_INTERVAL") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (360).");
+            System.exit(1);
+        }
+
+        // Load whether scans should run against a local trivy server
+        trivyServerMode = dotenv.get("TRIVY_SERVER_MODE", "0").equals("1");
+
+        // Load the port the local trivy server listens on
+        try {
+            trivyServerPort = Integer.parseInt(dotenv.get("TRIVY_SERVER_PORT", "4954"));
+        } catch (NumberFormatException e) {
+            System.out.println("TRIVY_SERVER_PORT: " + dotenv.get("TRIVY_SERVER_PORT") + " is not a valid port. Please enter a valid integer port number or " +
+                    "comment out/unset the configuration option to use the default option (4954).");
+            System.exit(1);
+        }
+
+        // Load how long, in minutes, scan results are reused for the same image digest and vulnerability DB
+        try {
+            scanResultCacheTtl = Integer.parseInt(dotenv.get("SCAN_RESULT_CACHE_TTL", "60"));
+        } catch (NumberFormatException e) {
+            System.out.println("SCAN_RESULT_CACHE_TTL: " + dotenv.get("SCAN_RESULT_CACHE_TTL") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (60).");
+            System.exit(1);
+        }
+
+        // Load how many scan results are cached at most
+        try {
+            scanResultCacheSize = Integer.parseInt(dotenv.get("SCAN_RESULT_CACHE_SIZE", "50"));
+        } catch (NumberFormatException e) {
+            System.out.println("SCAN_RESULT_CACHE_SIZE: " + dotenv.get("SCAN_RESULT_CACHE_SIZE") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (50).");
+            System.exit(1);
+        }
+
+        // Load the directory cached scan results are persisted to
+        scanResultCacheDir = dotenv.get("SCAN_RESULT_CACHE_DIR", "");
+
+        // Load how long, in seconds, docker registries and policies looked up in m9sweeper are cached
+        try {
+            dashLookupCacheTtl = Integer.parseInt(dotenv.get("DASH_LOOKUP_CACHE_TTL", "60"));
+        } catch (NumberFormatException e) {
+            System.out.println("DASH_LOOKUP_CACHE_TTL: " + dotenv.get("DASH_LOOKUP_CACHE_TTL") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (60).");
+            System.exit(1);
+        }
+
+        // Load how many clusters policies are cached for
+        try {
+            dashLookupCacheSize = Integer.parseInt(dotenv.get("DASH_LOOKUP_CACHE_SIZE", "100"));
+        } catch (NumberFormatException e) {
+            System.out.println("DASH_LOOKUP_CACHE_SIZE: " + dotenv.get("DASH_LOOKUP_CACHE_SIZE") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (100).");
+            System.exit(1);
+        }
+
+        // Load the port metrics are served on
+        try {
+            metricsPort = Integer.parseInt(dotenv.get("METRICS_PORT", "0"));
+        } catch (NumberFormatException e) {
+            System.out.println("METRICS_PORT: " + dotenv.get("METRICS_PORT") + " is not a valid port. Please enter a valid integer port number or " +
+                    "comment out/unset the configuration option to use the default option (0).");
+            System.exit(1);
+        }
+
+        // Load how many scan results may be waiting to be saved to m9sweeper
+        try {
+            uploadQueueSize = Integer.parseInt(dotenv.get("UPLOAD_QUEUE_SIZE", "4"));
+        } catch (NumberFormatException e) {
+            System.out.println("UPLOAD_QUEUE_SIZE: " + dotenv.get("UPLOAD_QUEUE_SIZE") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (4).");
+            System.exit(1);
+        }
+
+        // Load how many times saving scan results is attempted
+        try {
+            uploadMaxAttempts = Integer.parseInt(dotenv.get("UPLOAD_MAX_ATTEMPTS", "5"));
+        } catch (NumberFormatException e) {
+            System.out.println("UPLOAD_MAX_ATTEMPTS: " + dotenv.get("UPLOAD_MAX_ATTEMPTS") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (5).");
+            System.exit(1);
+        }
+
+        // Load whether scan result uploads are gzip compressed
+        uploadGzip = dotenv.get("UPLOAD_GZIP", "1").equals("1");
+
+        // Load whether the scan result of each policy is saved as soon as its scans have finished
+        uploadPerPolicy = dotenv.get("UPLOAD_PER_POLICY", "0").equals("1");
+
+        // Load the fields of a Trivy vulnerability that are kept as the extra data of an issue
+        trivyExtraDataFields = dotenv.get("TRIVY_EXTRA_DATA_FIELDS", "");
+
+        // Load the maximum number of reference URLs kept in the extra data of an issue
+        try {
+            trivyExtraDataMaxReferences = Integer.parseInt(dotenv.get("TRIVY_EXTRA_DATA_MAX_REFERENCES", "-1"));
+        } catch (NumberFormatException e) {
+            System.out.println("TRIVY_EXTRA_DATA_MAX_REFERENCES: " + dotenv.get("TRIVY_EXTRA_DATA_MAX_REFERENCES") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (-1).");
+            System.exit(1);
+        }
+
+        // Load the maximum length of the description kept in the extra data of an issue
+        try {
+            trivyExtraDataMaxDescription = Integer.parseInt(dotenv.get("TRIVY_EXTRA_DATA_MAX_DESCRIPTION", "0"));
+        } catch (NumberFormatException e) {
+            System.out.println("TRIVY_EXTRA_DATA_MAX_DESCRIPTION: " + dotenv.get("TRIVY_EXTRA_DATA_MAX_DESCRIPTION") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (0).");
+            System.exit(1);
+        }
+
+        // Load whether the images of queued jobs are pulled while earlier scans are running
+        imagePrefetch = dotenv.get("IMAGE_PREFETCH", "0").equals("1");
+
+        // Load the directory of the shared layer store, if images are pulled into one
+        layerStoreDir = dotenv.get("LAYER_STORE_DIR", "");
+
+        // Load the size, in MiB, the layer store is kept within
+        try {
+            layerStoreMaxSize = Integer.parseInt(dotenv.get("LAYER_STORE_MAX_SIZE", "10240"));
+        } catch (NumberFormatException e) {
+            System.out.println("LAYER_STORE_MAX_SIZE: " + dotenv.get("LAYER_STORE_MAX_SIZE") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (10240).");
+            System.exit(1);
+        }
+
+        // Load the directory the SBOMs of scanned images are cached in, if they are cached
+        sbomCacheDir = dotenv.get("SBOM_CACHE_DIR", "");
+
+        // Load how many SBOMs are kept in the SBOM cache
+        try {
+            sbomCacheSize = Integer.parseInt(dotenv.get("SBOM_CACHE_SIZE", "1000"));
+        } catch (NumberFormatException e) {
+            System.out.println("SBOM_CACHE_SIZE: " + dotenv.get("SBOM_CACHE_SIZE") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (1000).");
+            System.exit(1);
+        }
+
+        // Load the directory the index of the packages in scanned images is kept in, if there is one
+        packageIndexDir = dotenv.get("PACKAGE_INDEX_DIR", "");
+
+        // Load the number of images whose issues are remembered per policy to tell which issues were fixed
+        try {
+            issueHistorySize = Integer.parseInt(dotenv.get("ISSUE_HISTORY_SIZE", "0"));
+        } catch (NumberFormatException e) {
+            System.out.println("ISSUE_HISTORY_SIZE: " + dotenv.get("ISSUE_HISTORY_SIZE") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (0).");
+            System.exit(1);
+        }
+
+        // Load the directory scan results are kept in until they are saved to m9sweeper, if there is one
+        outboxDir = dotenv.get("OUTBOX_DIR", "");
+
+        // Load how often the outbox is synced to disk
+        try {
+            outboxFsyncInterval = Integer.parseInt(dotenv.get("OUTBOX_FSYNC_INTERVAL", "0"));
+        } catch (NumberFormatException e) {
+            System.out.println("OUTBOX_FSYNC_INTERVAL: " + dotenv.get("OUTBOX_FSYNC_INTERVAL") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (0).");
+            System.exit(1);
+        }
+
+        // Load how long a call to m9sweeper may take
+        try {
+            dashCallTimeout = Integer.parseInt(dotenv.get("DASH_CALL_TIMEOUT", "60"));
+        } catch (NumberFormatException e) {
+            System.out.println("DASH_CALL_TIMEOUT: " + dotenv.get("DASH_CALL_TIMEOUT") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (60).");
+            System.exit(1);
+        }
+
+        // Load how many times a call that reads from m9sweeper is retried
+        try {
+            dashMaxRetries = Integer.parseInt(dotenv.get("DASH_MAX_RETRIES", "2"));
+        } catch (NumberFormatException e) {
+            System.out.println("DASH_MAX_RETRIES: " + dotenv.get("DASH_MAX_RETRIES") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (2).");
+            System.exit(1);
+        }
+
+        // Load the most calls to m9sweeper that may be in flight at a time
+        try {
+            dashMaxConcurrency = Integer.parseInt(dotenv.get("DASH_MAX_CONCURRENCY", "16"));
+        } catch (NumberFormatException e) {
+            System.out.println("DASH_MAX_CONCURRENCY: " + dotenv.get("DASH_MAX_CONCURRENCY") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (16).");
+            System.exit(1);
+        }
+
+        // Load how many calls to an endpoint of m9sweeper have to fail in a row to stop calling it
+        try {
+            dashCircuitFailures = Integer.parseInt(dotenv.get("DASH_CIRCUIT_FAILURES", "5"));
+        } catch (NumberFormatException e) {
+            System.out.println("DASH_CIRCUIT_FAILURES: " + dotenv.get("DASH_CIRCUIT_FAILURES") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (5).");
+            System.exit(1);
+        }
+
+        // Load how long calls to a failing endpoint of m9sweeper are stopped for
+        try {
+            dashCircuitOpenTime = Integer.parseInt(dotenv.get("DASH_CIRCUIT_OPEN_TIME", "30"));
+        } catch (NumberFormatException e) {
+            System.out.println("DASH_CIRCUIT_OPEN_TIME: " + dotenv.get("DASH_CIRCUIT_OPEN_TIME") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (30).");
+            System.exit(1);
+        }
+
+        // Load how long saving scan results to m9sweeper may take
+        try {
+            dashUploadTimeout = Integer.parseInt(dotenv.get("DASH_UPLOAD_TIMEOUT", "600"));
+        } catch (NumberFormatException e) {
+            System.out.println("DASH_UPLOAD_TIMEOUT: " + dotenv.get("DASH_UPLOAD_TIMEOUT") + " is not a valid number. Please enter a valid integer or " +
+                    "comment out/unset the configuration option to use the default option (600).");
+            System.exit(1);
+        }
+
         // Load the name of the cluster
         clusterName = dotenv.get("CLUSTER_NAME", "");
 
@@ -94,6 +369,9 @@ public class TrawlerConfiguration {
 
             dockerImageUrl = hostname + "/" + imagename + ":" + tagname;
         }
+
+        // Load the file listing the docker URLs of the images to scan
+        dockerImageList = dotenv.get("DOCKER_IMAGE_LIST", "");
     }
 
     /**
@@ -223,6 +501,431 @@ public class TrawlerConfiguration {
         this.rabbitmqQueueName = queueName;
     }
 
+    /**
+     * Return the number of scans Trawler will run in parallel when listening to RabbitMQ. Defaults to 1.
+     * @return number of scan workers
+     */
+    public int parallelScanners() {
+        return parallelScanners;
+    }
+
+    public void setParallelScanners(int parallelScanners) {
+        this.parallelScanners = parallelScanners;
+    }
+
+    /**
+     * Return the number of unacknowledged messages RabbitMQ will deliver to each scan worker. Defaults to 1. The
+     * worker's prefetch is one more than this, for the message whose results are still being saved.
+     * @return rabbitmq prefetch count
+     */
+    public int rabbitmqPrefetchCount() {
+        return rabbitmqPrefetchCount;
+    }
+
+    public void setRabbitmqPrefetchCount(int prefetchCount) {
+        this.rabbitmqPrefetchCount = prefetchCount;
+    }
+
+    /**
+     * Return the directory Trivy keeps its vulnerability DB and layer cache in. Defaults to Trivy's own default.
+     * @return trivy cache directory, or an empty string for Trivy's default
+     */
+    public String trivyCacheDir() {
+        return trivyCacheDir;
+    }
+
+    public void setTrivyCacheDir(String cacheDir) {
+        this.trivyCacheDir = cacheDir;
+    }
+
+    /**
+     * Return how often, in minutes, the Trivy vulnerability DB is refreshed in the background. Defaults to 360.
+     * @return refresh interval in minutes
+     */
+    public int trivyDbRefreshInterval() {
+        return trivyDbRefreshInterval;
+    }
+
+    public void setTrivyDbRefreshInterval(int refreshInterval) {
+        this.trivyDbRefreshInterval = refreshInterval;
+    }
+
+    /**
+     * Return whether scans run in client mode against a trivy server supervised by Trawler. Defaults to false.
+     * @return trivy server mode
+     */
+    public Boolean trivyServerMode() {
+        return trivyServerMode;
+    }
+
+    public void setTrivyServerMode(Boolean serverMode) {
+        this.trivyServerMode = serverMode;
+    }
+
+    /**
+     * Return the port the supervised trivy server listens on. Defaults to 4954.
+     * @return trivy server port
+     */
+    public int trivyServerPort() {
+        return trivyServerPort;
+    }
+
+    public void setTrivyServerPort(int port) {
+        this.trivyServerPort = port;
+    }
+
+    /**
+     * Return how long, in minutes, scan results are reused for the same image digest and vulnerability DB.
+     * A value of 0 disables the cache. Defaults to 60.
+     * @return scan result cache ttl in minutes
+     */
+    public int scanResultCacheTtl() {
+        return scanResultCacheTtl;
+    }
+
+    public void setScanResultCacheTtl(int ttl) {
+        this.scanResultCacheTtl = ttl;
+    }
+
+    /**
+     * Return the maximum number of scan results kept in the cache. Defaults to 50.
+     * @return scan result cache size
+     */
+    public int scanResultCacheSize() {
+        return scanResultCacheSize;
+    }
+
+    public void setScanResultCacheSize(int size) {
+        this.scanResultCacheSize = size;
+    }
+
+    /**
+     * Return the directory cached scan results are persisted to so they survive a restart. Defaults to
+     * an empty string, which keeps them in memory only.
+     * @return scan result cache directory
+     */
+    public String scanResultCacheDir() {
+        return scanResultCacheDir;
+    }
+
+    public void setScanResultCacheDir(String directory) {
+        this.scanResultCacheDir = directory;
+    }
+
+    /**
+     * Return how long, in seconds, docker registries and policies looked up in m9sweeper are cached. Defaults to 60.
+     * @return dash lookup cache ttl in seconds
+     */
+    public int dashLookupCacheTtl() {
+        return dashLookupCacheTtl;
+    }
+
+    public void setDashLookupCacheTtl(int ttl) {
+        this.dashLookupCacheTtl = ttl;
+    }
+
+    /**
+     * Return the maximum number of clusters whose policies are cached. Defaults to 100.
+     * @return dash lookup cache size
+     */
+    public int dashLookupCacheSize() {
+        return dashLookupCacheSize;
+    }
+
+    public void setDashLookupCacheSize(int size) {
+        this.dashLookupCacheSize = size;
+    }
+
+    /**
+     * Return the port Prometheus metrics are served on at /metrics. Defaults to 0, which disables the endpoint.
+     * @return metrics port
+     */
+    public int metricsPort() {
+        return metricsPort;
+    }
+
+    public void setMetricsPort(int port) {
+        this.metricsPort = port;
+    }
+
+    /**
+     * Return the maximum number of scan results that may be waiting to be saved to m9sweeper. Defaults to 4.
+     * @return upload queue size
+     */
+    public int uploadQueueSize() {
+        return uploadQueueSize;
+    }
+
+    public void setUploadQueueSize(int size) {
+        this.uploadQueueSize = size;
+    }
+
+    /**
+     * Return how many times saving scan results to m9sweeper is attempted before the scan job fails. Defaults to 5.
+     * @return upload attempts
+     */
+    public int uploadMaxAttempts() {
+        return uploadMaxAttempts;
+    }
+
+    public void setUploadMaxAttempts(int attempts) {
+        this.uploadMaxAttempts = attempts;
+    }
+
+    /**
+     * Return whether scan results are gzip compressed when they are saved to m9sweeper. Defaults to true.
+     * @return whether uploads are compressed
+     */
+    public boolean uploadGzip() {
+        return uploadGzip;
+    }
+
+    public void setUploadGzip(boolean uploadGzip) {
+        this.uploadGzip = uploadGzip;
+    }
+
+    /**
+     * Return whether the scan result of each policy is saved to m9sweeper on its own as soon as its scans have finished,
+     * instead of saving the results of all policies at once. Defaults to false.
+     * @return whether scan results are saved per policy
+     */
+    public boolean uploadPerPolicy() {
+        return uploadPerPolicy;
+    }
+
+    public void setUploadPerPolicy(boolean uploadPerPolicy) {
+        this.uploadPerPolicy = uploadPerPolicy;
+    }
+
+    /**
+     * Return the comma separated fields of a Trivy vulnerability that are kept as the extra data of an issue. When
+     * empty, every field is kept.
+     * @return the fields kept as extra data
+     */
+    public String trivyExtraDataFields() {
+        return trivyExtraDataFields;
+    }
+
+    public void setTrivyExtraDataFields(String fields) {
+        this.trivyExtraDataFields = fields;
+    }
+
+    /**
+     * Return the maximum number of reference URLs kept in the extra data of an issue, -1 if every reference is kept.
+     * Defaults to -1.
+     * @return maximum number of references
+     */
+    public int trivyExtraDataMaxReferences() {
+        return trivyExtraDataMaxReferences;
+    }
+
+    public void setTrivyExtraDataMaxReferences(int maxReferences) {
+        this.trivyExtraDataMaxReferences = maxReferences;
+    }
+
+    /**
+     * Return the maximum number of characters of the description kept in the extra data of an issue, 0 if the
+     * description is not truncated. Defaults to 0.
+     * @return maximum description length
+     */
+    public int trivyExtraDataMaxDescription() {
+        return trivyExtraDataMaxDescription;
+    }
+
+    public void setTrivyExtraDataMaxDescription(int maxLength) {
+        this.trivyExtraDataMaxDescription = maxLength;
+    }
+
+    /**
+     * Whether the images of jobs that are waiting for a scan worker are pulled ahead of their scans
+     * @return whether images are prefetched
+     */
+    public boolean imagePrefetch() {
+        return imagePrefetch;
+    }
+
+    public void setImagePrefetch(boolean imagePrefetch) {
+        this.imagePrefetch = imagePrefetch;
+    }
+
+    /**
+     * The directory Trawler keeps the layers of the images it scans in, shared between all images. Empty if images
+     * are pulled by the scanners themselves
+     * @return the layer store directory
+     */
+    public String layerStoreDir() {
+        return layerStoreDir;
+    }
+
+    public void setLayerStoreDir(String layerStoreDir) {
+        this.layerStoreDir = layerStoreDir;
+    }
+
+    /**
+     * The size, in MiB, the layer store is kept within by evicting the least recently used layers
+     * @return the maximum size of the layer store
+     */
+    public int layerStoreMaxSize() {
+        return layerStoreMaxSize;
+    }
+
+    public void setLayerStoreMaxSize(int layerStoreMaxSize) {
+        this.layerStoreMaxSize = layerStoreMaxSize;
+    }
+
+    /**
+     * The directory the CycloneDX SBOMs of scanned images are cached in by digest, so later scans of a digest only
+     * scan its SBOM. Empty if SBOMs are not cached
+     * @return the SBOM cache directory
+     */
+    public String sbomCacheDir() {
+        return sbomCacheDir;
+    }
+
+    public void setSbomCacheDir(String sbomCacheDir) {
+        this.sbomCacheDir = sbomCacheDir;
+    }
+
+    /**
+     * The maximum number of SBOMs kept in the SBOM cache
+     * @return the maximum number of cached SBOMs
+     */
+    public int sbomCacheSize() {
+        return sbomCacheSize;
+    }
+
+    public void setSbomCacheSize(int sbomCacheSize) {
+        this.sbomCacheSize = sbomCacheSize;
+    }
+
+    /**
+     * The directory the index of the packages installed in scanned images is kept in. After a vulnerability DB
+     * update only the scan jobs of images with a package whose advisories changed are re-queued. Empty if there is no
+     * package index
+     * @return the package index directory
+     */
+    public String packageIndexDir() {
+        return packageIndexDir;
+    }
+
+    public void setPackageIndexDir(String packageIndexDir) {
+        this.packageIndexDir = packageIndexDir;
+    }
+
+    /**
+     * The maximum number of (image, policy) pairs whose issues are remembered, so the next scan of the image can
+     * report the issues that were fixed since. 0 if issues are not compared with the previous scan
+     * @return the size of the issue history
+     */
+    public int issueHistorySize() {
+        return issueHistorySize;
+    }
+
+    public void setIssueHistorySize(int issueHistorySize) {
+        this.issueHistorySize = issueHistorySize;
+    }
+
+    /**
+     * The directory the outbox is kept in. Scan results that could not be saved to m9sweeper stay in the outbox, and
+     * are saved once m9sweeper is available again. Empty if there is no outbox
+     * @return the outbox directory
+     */
+    public String outboxDir() {
+        return outboxDir;
+    }
+
+    public void setOutboxDir(String outboxDir) {
+        this.outboxDir = outboxDir;
+    }
+
+    /**
+     * How often, in milliseconds, the scan results written to the outbox are synced to disk. 0 if every scan result is
+     * synced before it is uploaded
+     * @return the outbox sync interval
+     */
+    public int outboxFsyncInterval() {
+        return outboxFsyncInterval;
+    }
+
+    public void setOutboxFsyncInterval(int outboxFsyncInterval) {
+        this.outboxFsyncInterval = outboxFsyncInterval;
+    }
+
+    /**
+     * How long, in seconds, a call to m9sweeper may take before it is cancelled
+     * @return the call timeout
+     */
+    public int dashCallTimeout() {
+        return dashCallTimeout;
+    }
+
+    public void setDashCallTimeout(int dashCallTimeout) {
+        this.dashCallTimeout = dashCallTimeout;
+    }
+
+    /**
+     * How many times a call that only reads from m9sweeper is retried when m9sweeper could not be reached or was
+     * overloaded
+     * @return the number of retries
+     */
+    public int dashMaxRetries() {
+        return dashMaxRetries;
+    }
+
+    public void setDashMaxRetries(int dashMaxRetries) {
+        this.dashMaxRetries = dashMaxRetries;
+    }
+
+    /**
+     * The most calls to m9sweeper that may be in flight at a time. The limit is lowered while m9sweeper is
+     * overloaded, and raised back up to this as it recovers
+     * @return the maximum number of calls in flight
+     */
+    public int dashMaxConcurrency() {
+        return dashMaxConcurrency;
+    }
+
+    public void setDashMaxConcurrency(int dashMaxConcurrency) {
+        this.dashMaxConcurrency = dashMaxConcurrency;
+    }
+
+    /**
+     * How many calls to an endpoint of m9sweeper have to fail in a row to stop calling it for a while
+     * @return the number of failures
+     */
+    public int dashCircuitFailures() {
+        return dashCircuitFailures;
+    }
+
+    public void setDashCircuitFailures(int dashCircuitFailures) {
+        this.dashCircuitFailures = dashCircuitFailures;
+    }
+
+    /**
+     * How long, in seconds, calls to an endpoint of m9sweeper are stopped for after failing repeatedly, before it is
+     * tried again
+     * @return the time calls are stopped for
+     */
+    public int dashCircuitOpenTime() {
+        return dashCircuitOpenTime;
+    }
+
+    public void setDashCircuitOpenTime(int dashCircuitOpenTime) {
+        this.dashCircuitOpenTime = dashCircuitOpenTime;
+    }
+
+    /**
+     * How long, in seconds, a call that saves scan results to m9sweeper may take before it is cancelled
+     * @return the upload timeout
+     */
+    public int dashUploadTimeout() {
+        return dashUploadTimeout;
+    }
+
+    public void setDashUploadTimeout(int dashUploadTimeout) {
+        this.dashUploadTimeout = dashUploadTimeout;
+    }
+
     /**
      * Return the cluster name in m9sweeper that the results will be published too
      * @return cluster name
@@ -247,6 +950,19 @@ public class TrawlerConfiguration {
         this.dockerImageUrl = imageUrl;
     }
 
+    /**
+     * Return the file that lists the URLs of the docker images to scan, one per line. A value of - means the list is
+     * read from stdin. When empty, only the image of {@link #dockerImageUrl()} is scanned.
+     * @return image list file
+     */
+    public String dockerImageList() {
+        return dockerImageList;
+    }
+
+    public void setDockerImageList(String imageList) {
+        this.dockerImageList = imageList;
+    }
+
     /**
      * Verify the configuration values provided through env variables or the CLI command line are valid
      * and that nothing is missing based on the defined run mode.
@@ -264,6 +980,82 @@ public class TrawlerConfiguration {
             throw new AssertionError("M9SWEEPER_API_KEY is blank. Please define the API key to your m9sweeper instance.");
         }
 
+        // Verify that the scan result cache settings are usable
+        if (scanResultCacheTtl < 0) {
+            throw new AssertionError("SCAN_RESULT_CACHE_TTL: " + scanResultCacheTtl + " is not valid. Please define a number of " +
+                    "minutes, 0 to disable the cache, or comment out/unset the configuration option to use the default option (60).");
+        }
+        if (scanResultCacheSize < 1) {
+            throw new AssertionError("SCAN_RESULT_CACHE_SIZE: " + scanResultCacheSize + " is not valid. Please define a number " +
+                    "greater than 0 or comment out/unset the configuration option to use the default option (50).");
+        }
+
+        // Verify that the maximum number of references kept in the extra data is valid
+        if (trivyExtraDataMaxReferences < -1) {
+            throw new AssertionError("TRIVY_EXTRA_DATA_MAX_REFERENCES: " + trivyExtraDataMaxReferences + " is not valid. Please define a number " +
+                    "greater than or equal to -1 or comment out/unset the configuration option to use the default option (-1).");
+        }
+
+        // Verify that the maximum description length of the extra data is valid
+        if (trivyExtraDataMaxDescription < 0) {
+            throw new AssertionError("TRIVY_EXTRA_DATA_MAX_DESCRIPTION: " + trivyExtraDataMaxDescription + " is not valid. Please define a number " +
+                    "greater than or equal to 0 or comment out/unset the configuration option to use the default option (0).");
+        }
+
+        // Verify that the layer store can hold at least some layers
+        if (layerStoreMaxSize < 1) {
+            throw new AssertionError("LAYER_STORE_MAX_SIZE: " + layerStoreMaxSize + " is not valid. Please define a number " +
+                    "greater than 0 or comment out/unset the configuration option to use the default option (10240).");
+        }
+
+        // Verify that the SBOM cache can hold at least one SBOM
+        if (sbomCacheSize < 1) {
+            throw new AssertionError("SBOM_CACHE_SIZE: " + sbomCacheSize + " is not valid. Please define a number " +
+                    "greater than 0 or comment out/unset the configuration option to use the default option (1000).");
+        }
+
+        // Verify that the size of the issue history is valid
+        if (issueHistorySize < 0) {
+            throw new AssertionError("ISSUE_HISTORY_SIZE: " + issueHistorySize + " is not valid. Please define a number " +
+                    "greater than or equal to 0, 0 to disable the issue history, or comment out/unset the configuration option to use the default option (0).");
+        }
+
+        // Verify that the call timeout is valid
+        if (dashCallTimeout < 1) {
+            throw new AssertionError("DASH_CALL_TIMEOUT: " + dashCallTimeout + " is not valid. Please define a number " +
+                    "greater than 0 or comment out/unset the configuration option to use the default option (60).");
+        }
+
+        // Verify that the number of retries is valid
+        if (dashMaxRetries < 0) {
+            throw new AssertionError("DASH_MAX_RETRIES: " + dashMaxRetries + " is not valid. Please define a number " +
+                    "greater than or equal to 0 or comment out/unset the configuration option to use the default option (2).");
+        }
+
+        // Verify that the maximum number of calls in flight is valid
+        if (dashMaxConcurrency < 1) {
+            throw new AssertionError("DASH_MAX_CONCURRENCY: " + dashMaxConcurrency + " is not valid. Please define a number " +
+                    "greater than 0 or comment out/unset the configuration option to use the default option (16).");
+        }
+
+        // Verify that the number of failures is valid
+        if (dashCircuitFailures < 1) {
+            throw new AssertionError("DASH_CIRCUIT_FAILURES: " + dashCircuitFailures + " is not valid. Please define a number " +
+                    "greater than 0 or comment out/unset the configuration option to use the default option (5).");
+        }
+
+        // Verify that the time calls are stopped for is valid
+        if (dashCircuitOpenTime < 1) {
+            throw new AssertionError("DASH_CIRCUIT_OPEN_TIME: " + dashCircuitOpenTime + " is not valid. Please define a number " +
+                    "greater than 0 or comment out/unset the configuration option to use the default option (30).");
+        }
+
+        // Verify that the upload timeout is valid
+        if (dashUploadTimeout < 1) {
+            throw new AssertionError("DASH_UPLOAD_TIMEOUT: " + dashUploadTimeout + " is not valid. Please define a number " +
+                    "greater than 0 or comment out/unset the configuration option to use the default option (600).");
+        }
+
         // Verify that the run mode is a valid run mode
         if (trawlerRunMode() == TrawlerRunMode.UNKNOWN) {
             throw new AssertionError("TRAWLER_RUN_MODE: " + trawlerRunMode + " is not a valid run mode. " +
@@ -292,15 +1084,67 @@ public class TrawlerConfiguration {
                 throw new AssertionError("RABBITMQ_QUEUE_NAME is blank. Please define the queue name that Trawler should listen " +
                         "on or comment out/unset the configuration option to use the default option (trawler_queue).");
             }
+
+            // Verify that the Trivy vulnerability DB refresh interval is usable
+            if (trivyDbRefreshInterval < 1) {
+                throw new AssertionError("TRIVY_DB_REFRESH_INTERVAL: " + trivyDbRefreshInterval + " is not valid. Please define a number " +
+                        "of minutes greater than 0 or comment out/unset the configuration option to use the default option (360).");
+            }
+
+            // Verify that the lookup cache settings are usable
+            if (dashLookupCacheTtl < 0) {
+                throw new AssertionError("DASH_LOOKUP_CACHE_TTL: " + dashLookupCacheTtl + " is not valid. Please define a number " +
+                        "of seconds or comment out/unset the configuration option to use the default option (60).");
+            }
+            if (dashLookupCacheSize < 1) {
+                throw new AssertionError("DASH_LOOKUP_CACHE_SIZE: " + dashLookupCacheSize + " is not valid. Please define a number " +
+                        "greater than 0 or comment out/unset the configuration option to use the default option (100).");
+            }
+
+            // Verify that at least one scan can run at a time
+            if (parallelScanners < 1) {
+                throw new AssertionError("TRAWLER_PARALLEL_SCANNERS: " + parallelScanners + " is not valid. Please define a number " +
+                        "greater than 0 or comment out/unset the configuration option to use the default option (1).");
+            }
+
+            // Verify that each worker is allowed to receive at least one message
+            if (rabbitmqPrefetchCount < 1) {
+                throw new AssertionError("RABBITMQ_PREFETCH_COUNT: " + rabbitmqPrefetchCount + " is not valid. Please define a number " +
+                        "greater than 0 or comment out/unset the configuration option to use the default option (1).");
+            }
+
+            // Verify that the metrics endpoint can be bound
+            if (metricsPort < 0 || metricsPort > 65535) {
+                throw new AssertionError("METRICS_PORT: " + metricsPort + " is not valid. Please define a port between 1 and 65535, " +
+                        "0 to disable metrics, or comment out/unset the configuration option to use the default option (0).");
+            }
+
+            // Verify that at least one upload can be queued
+            if (uploadQueueSize < 1) {
+                throw new AssertionError("UPLOAD_QUEUE_SIZE: " + uploadQueueSize + " is not valid. Please define a number " +
+                        "greater than 0 or comment out/unset the configuration option to use the default option (4).");
+            }
+
+            // Verify that scan results are uploaded at least once
+            if (uploadMaxAttempts < 1) {
+                throw new AssertionError("UPLOAD_MAX_ATTEMPTS: " + uploadMaxAttempts + " is not valid. Please define a number " +
+                        "greater than 0 or comment out/unset the configuration option to use the default option (5).");
+            }
+
+            // Verify that the outbox sync interval is valid
+            if (outboxFsyncInterval < 0) {
+                throw new AssertionError("OUTBOX_FSYNC_INTERVAL: " + outboxFsyncInterval + " is not valid. Please define a number " +
+                        "greater than or equal to 0, 0 to sync every scan result, or comment out/unset the configuration option to use the default option (0).");
+            }
         } else if (trawlerRunMode() == TrawlerRunMode.STANDALONE) {
             if (clusterName.isEmpty()) {
                 throw new AssertionError("CLUSTER_NAME is blank. Please define the cluster name that Trawler will report scan " +
                         "results back too.");
             }
 
-            if (dockerImageUrl.isEmpty()) {
-                throw new AssertionError("DOCKER_IMAGE_URL is blank. Please define the url for the docker image that Trawler " +
-                        "should scan.");
+            if (dockerImageUrl.isEmpty() && dockerImageList.isEmpty()) {
+                throw new AssertionError("DOCKER_IMAGE_URL and DOCKER_IMAGE_LIST are blank. Please define the url for the docker " +
+                        "image or the list of images that Trawler should scan.");
             }
         }
     }
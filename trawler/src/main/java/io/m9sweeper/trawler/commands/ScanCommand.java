@@ -6,9 +6,10 @@ import io.m9sweeper.trawler.ScanRunner;
 import io.m9sweeper.trawler.Trawler;
 import io.m9sweeper.trawler.TrawlerConfiguration;
 import io.m9sweeper.trawler.framework.TrawlerRunMode;
+import io.m9sweeper.trawler.framework.client.ApiFutures;
+import io.m9sweeper.trawler.framework.client.ResilientApiClient;
 import io.m9sweeper.trawler.framework.client.api.M9SweeperApi;
 import io.m9sweeper.trawler.framework.client.handler.ApiClient;
-import io.m9sweeper.trawler.framework.client.handler.ApiException;
 import io.m9sweeper.trawler.framework.client.handler.Configuration;
 import io.m9sweeper.trawler.framework.client.handler.auth.ApiKeyAuth;
 import io.m9sweeper.trawler.framework.client.model.*;
@@ -17,16 +18,34 @@ import io.m9sweeper.trawler.framework.queue.Cluster;
 import io.m9sweeper.trawler.framework.queue.Image;
 import io.m9sweeper.trawler.framework.queue.Message;
 import io.m9sweeper.trawler.framework.queue.Registry;
+import io.m9sweeper.trawler.scanners.TrivyDatabase;
+import io.m9sweeper.trawler.scanners.TrivyServer;
 import picocli.CommandLine;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.math.BigDecimal;
-import java.util.Arrays;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
-@CommandLine.Command(name = "scan", description = "Scan a single docker image in the standalone scan mode.")
+@CommandLine.Command(name = "scan", description = "Scan a docker image, or a list of docker images, in the standalone scan mode.")
 public class ScanCommand extends AbstractCommand implements Runnable {
+    // How long to wait for the trivy server of a list scan to start, in seconds
+    private static final int TRIVY_SERVER_STARTUP_TIMEOUT = 60;
+
     M9SweeperApi api;
 
     @CommandLine.ParentCommand
@@ -38,6 +57,12 @@ public class ScanCommand extends AbstractCommand implements Runnable {
     @CommandLine.Option(names = {"-c", "--cluster-name"}, description = "name of cluster to report results too in m9sweeper", order = 4)
     String clusterName;
 
+    @CommandLine.Option(names = {"-f", "--image-list"}, description = "file listing the URLs of the docker images to scan, one per line, or - to read them from stdin", order = 5)
+    String dockerImageList;
+
+    @CommandLine.Option(names = {"-P", "--parallel-scans"}, description = "number of images from the image list to scan at the same time", order = 6)
+    int parallelScans;
+
     /**
      * Update the configuration using the options in this command
      */
@@ -51,25 +76,22 @@ public class ScanCommand extends AbstractCommand implements Runnable {
 
         // If the dockerImageUrl was defined, override what is declared in the env vars
         if (dockerImageUrl != null) {
+            TrawlerConfiguration.getInstance().setDockerImageUrl(normalizeImageUrl(dockerImageUrl));
+        }
 
-            // if full docker image url is not provided, will provide default hostname and tagname
-            Pattern p = Pattern.compile("^([a-zA-Z0-9]+\\.[a-zA-Z0-9\\.]+)?\\/?([a-zA-Z0-9\\/]+)?\\:?([a-zA-Z0-9\\.]+)?$");
-            Matcher m = p.matcher(dockerImageUrl);
-            if (m.matches()){
-
-                String hostname = m.group(1) != null ? m.group(1) : "docker.io";
-                String imagename = m.group(2);
-                String tagname = m.group(3) != null ? m.group(3) : "latest";
+        // If the dockerImageList was defined, override what is declared in the env vars
+        if (dockerImageList != null) {
+            TrawlerConfiguration.getInstance().setDockerImageList(dockerImageList);
+        }
 
-                dockerImageUrl = hostname + "/" + imagename + ":" + tagname;
-            }
-            TrawlerConfiguration.getInstance().setDockerImageUrl(dockerImageUrl);
+        // If the number of parallel scans was defined, override what is declared in the env vars
+        if (parallelScans > 0) {
+            TrawlerConfiguration.getInstance().setParallelScanners(parallelScans);
         }
     }
 
     @Override
     public void run() {
-        ScanRunner scanRunner = null;
         ClusterDto clusterInfo = null;
         try {
             // Update configuration options
@@ -79,87 +101,49 @@ public class ScanCommand extends AbstractCommand implements Runnable {
             TrawlerConfiguration.getInstance().verifyConfig();
 
             // Configure the m9sweeper API client
-            ApiClient defaultClient = Configuration.getDefaultApiClient();
+            // Request bodies are streamed, and scan results compressed, to keep large uploads small. Calls are limited
+            // and stopped while m9sweeper is overloaded or down, so they do not pile up.
+            ApiClient defaultClient = new ResilientApiClient(TrawlerConfiguration.getInstance().uploadGzip(),
+                    TimeUnit.SECONDS.toMillis(TrawlerConfiguration.getInstance().dashCallTimeout()),
+                    TimeUnit.SECONDS.toMillis(TrawlerConfiguration.getInstance().dashUploadTimeout()),
+                    TrawlerConfiguration.getInstance().dashMaxRetries(),
+                    TrawlerConfiguration.getInstance().dashMaxConcurrency(),
+                    TrawlerConfiguration.getInstance().dashCircuitFailures(),
+                    TimeUnit.SECONDS.toMillis(TrawlerConfiguration.getInstance().dashCircuitOpenTime()));
+            Configuration.setDefaultApiClient(defaultClient);
             defaultClient.setBasePath(TrawlerConfiguration.getInstance().m9sweeperUrl());
             ApiKeyAuth xAuthToken = (ApiKeyAuth) defaultClient.getAuthentication("x-auth-token");
             xAuthToken.setApiKey(TrawlerConfiguration.getInstance().m9sweeperApiKey());
             api = new M9SweeperApi(defaultClient);
 
-            // Create the base message used in place of contacting the RabbitMQ server
-            Message queueMessage = new Message();
+            // Each distinct image is scanned once
+            List<String> imageUrls = TrawlerConfiguration.getInstance().dockerImageList().isEmpty()
+                    ? List.of(TrawlerConfiguration.getInstance().dockerImageUrl())
+                    : readImageList(TrawlerConfiguration.getInstance().dockerImageList());
 
-            DockerRegistriesResponseDto registryInfo = getDockerRegistry();
-
-            if (registryInfo.getData() != null && registryInfo.getData().getList() != null && registryInfo.getData().getList().size() > 0) {
-                DockerRegistriesDto dockerRegistriesDto = registryInfo.getData().getList().get(0);
-
-                Registry registry = new Registry();
-                registry.setId(dockerRegistriesDto.getId().longValue());
-                registry.setName(dockerRegistriesDto.getName());
-                registry.setHostname(dockerRegistriesDto.getHostname());
-                registry.setUsername(dockerRegistriesDto.getUsername());
-                registry.setPassword(dockerRegistriesDto.getPassword());
-                registry.setLoginRequired(dockerRegistriesDto.isLoginRequired());
-                registry.setAuthType(dockerRegistriesDto.getAuthType());
-                registry.setAuthDetails(dockerRegistriesDto.getAuthDetails());
-
-
-                queueMessage.setRegistry(registry);
-
-
-                ClusterResponse clusterResponse = api.clusterControllerGetClusterByClusterName(TrawlerConfiguration.getInstance().clusterName());
-                clusterInfo = clusterResponse.getData();
-                if (clusterInfo != null) {
-                    Cluster cluster = new Cluster();
-                    cluster.setId(clusterInfo.getId().longValue());
-                    cluster.setName(clusterInfo.getName());
-
-                    queueMessage.setCluster(cluster);
-
-                    ImageDetailsResponseDto imageDetails = api.imageControllerGetImageByDockerUrl(clusterInfo.getId(), TrawlerConfiguration.getInstance().dockerImageUrl());
-                    ImageDetailsDto imageDetailsDto;
-                    if (imageDetails.getData() != null) {
-                        imageDetailsDto = imageDetails.getData();
-                        if (imageDetailsDto.getId() == null) {
-                            ImageCreateDto imageCreateDto = new ImageCreateDto();
-                            imageCreateDto.setName(imageDetailsDto.getName());
-                            imageCreateDto.setTag(imageDetailsDto.getTag());
-                            imageCreateDto.setUrl(imageDetailsDto.getUrl());
-                            ImageDetailsResponseDto imageCreateResponse = api.imageControllerCreateImage(imageCreateDto, true, clusterInfo.getId());
-                            if (imageCreateResponse.getData() != null) {
-                                imageDetailsDto = imageCreateResponse.getData();
-                            }
-                        }
-
-                        if (imageDetailsDto.getId() != null) {
-                            Image image = new Image();
-                            image.setId(imageDetailsDto.getId().longValue());
-                            String[] dockerImagePathArray = imageDetailsDto.getName().split("/");
-                            image.setPath(dockerImagePathArray.length > 1 ? String.join("/", Arrays.copyOf(dockerImagePathArray, dockerImagePathArray.length - 1)) : "");
-                            image.setName(imageDetailsDto.getName());
-                            image.setTag(imageDetailsDto.getTag());
-                            image.setUrl(imageDetailsDto.getUrl());
-                            image.setHash(imageDetailsDto.getDockerImageId());
-
-                            queueMessage.setImage(image);
-
-                            PoliciesByClusterResponse policiesByClusterResponse = api.policyControllerGetPoliciesByClusterId(new BigDecimal(cluster.getId()));
-                            if (policiesByClusterResponse.isSuccess() && policiesByClusterResponse.getData() != null && policiesByClusterResponse.getData().size() > 0) {
-                                scanRunner = new ScanRunner(api, queueMessage, policiesByClusterResponse.getData());
-                                scanRunner.scan();
-                            } else {
-                                throw new Exception("No policies found for cluster '" + TrawlerConfiguration.getInstance().clusterName() + "'");
-                            }
-                        } else {
-                            throw new Exception("No docker image found for '" + TrawlerConfiguration.getInstance().dockerImageUrl() + "'");
-                        }
-                    }
-                } else {
-                    throw new Exception("No cluster found with name '" + TrawlerConfiguration.getInstance().clusterName() + "'");
-                }
+            // Look up everything the images have in common once. Lookups that do not depend on each other run at
+            // the same time: the registries and the cluster first, then the policies of the cluster along with
+            // the images, which need both the cluster and the registry of the image
+            Map<String, CompletableFuture<Registry>> registryLookups = new HashMap<>();
+            for (String url : imageUrls.stream().map(ScanCommand::registryUrl).distinct().collect(Collectors.toList())) {
+                registryLookups.put(url, getDockerRegistry(url));
+            }
+            CompletableFuture<ClusterDto> clusterLookup = getCluster();
+            CompletableFuture<List<PolicyWithScannerDto>> policiesLookup = clusterLookup.thenCompose(this::getPolicies);
+            Map<String, CompletableFuture<Message>> messageLookups = new HashMap<>();
+            for (String imageUrl : imageUrls) {
+                messageLookups.put(imageUrl, getScanMessage(imageUrl, registryLookups.get(registryUrl(imageUrl)), clusterLookup));
+            }
+
+            clusterInfo = await(clusterLookup);
+            List<PolicyWithScannerDto> policies = await(policiesLookup);
+
+            if (TrawlerConfiguration.getInstance().dockerImageList().isEmpty()) {
+                new ScanRunner(api, await(messageLookups.get(imageUrls.get(0))), policies).scan();
+                // The threads of the API client's async calls would keep Trawler running for another minute
+                System.exit(0);
             } else {
-                String url = TrawlerConfiguration.getInstance().dockerImageUrl().split("/")[0];
-                throw new Exception("No docker registry found with repository url '" + url + "'");
+                System.exit(scanImages(imageUrls, messageLookups, clusterInfo, policies));
             }
         } catch (NoncompliantException ex) {
             System.out.println("Image Non-Compliant");
@@ -185,11 +169,304 @@ public class ScanCommand extends AbstractCommand implements Runnable {
         }
     }
 
-    private DockerRegistriesResponseDto getDockerRegistry() throws ApiException {
+    /**
+     * Scan every image of the list, a limited number at a time, and print a summary of all of them
+     *
+     * @return the exit code, 1 if any image could not be scanned or is non-compliant while enforcement is enabled
+     */
+    private int scanImages(List<String> imageUrls, Map<String, CompletableFuture<Message>> messageLookups,
+                           ClusterDto clusterInfo, List<PolicyWithScannerDto> policies) throws InterruptedException {
+        int parallelScans = Math.min(imageUrls.size(), TrawlerConfiguration.getInstance().parallelScanners());
+        System.out.println("Scanning " + imageUrls.size() + " image(s), " + parallelScans + " at a time");
+
+        // Trivy processes without a server run one at a time, so parallel scans need one to actually run in parallel
+        if (parallelScans > 1 || TrawlerConfiguration.getInstance().trivyServerMode()) {
+            startTrivyServer();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelScans);
+        List<Future<ImageScanSummary>> scans = new ArrayList<>();
+        for (String imageUrl : imageUrls) {
+            scans.add(executor.submit(() -> {
+                ImageScanSummary summary = new ImageScanSummary(imageUrl);
+                try {
+                    summary.completed(new ScanRunner(api, await(messageLookups.get(imageUrl)), policies).scan(), true);
+                } catch (NoncompliantException e) {
+                    summary.completed(e.getScanResults(), false);
+                } catch (Exception e) {
+                    summary.failed(e);
+                }
+                System.out.println(imageUrl + ": " + summary.status);
+                return summary;
+            }));
+        }
+        executor.shutdown();
+
+        List<ImageScanSummary> summaries = new ArrayList<>();
+        for (int i = 0; i < scans.size(); i++) {
+            try {
+                summaries.add(scans.get(i).get());
+            } catch (ExecutionException e) {
+                // Errors of the scan itself are caught while scanning, so this only happens if the summary could not be built
+                summaries.add(new ImageScanSummary(imageUrls.get(i)).failed(e.getCause()));
+            }
+        }
+
+        Map<String, Object> total = new LinkedHashMap<>();
+        total.put("images", summaries.size());
+        total.put("compliant", summaries.stream().filter(summary -> ImageScanSummary.COMPLIANT.equals(summary.status)).count());
+        total.put("nonCompliant", summaries.stream().filter(summary -> ImageScanSummary.NON_COMPLIANT.equals(summary.status)).count());
+        total.put("failed", summaries.stream().filter(summary -> ImageScanSummary.FAILED.equals(summary.status)).count());
+        total.put("criticalIssues", summaries.stream().map(summary -> summary.criticalIssues).reduce(BigDecimal.ZERO, BigDecimal::add));
+        total.put("majorIssues", summaries.stream().map(summary -> summary.majorIssues).reduce(BigDecimal.ZERO, BigDecimal::add));
+        total.put("mediumIssues", summaries.stream().map(summary -> summary.mediumIssues).reduce(BigDecimal.ZERO, BigDecimal::add));
+        total.put("lowIssues", summaries.stream().map(summary -> summary.lowIssues).reduce(BigDecimal.ZERO, BigDecimal::add));
+        total.put("negligibleIssues", summaries.stream().map(summary -> summary.negligibleIssues).reduce(BigDecimal.ZERO, BigDecimal::add));
+
+        Map<String, Object> output = new LinkedHashMap<>();
+        output.put("summary", total);
+        output.put("images", summaries);
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        System.out.println(gson.toJson(output));
+
+        boolean failed = summaries.stream().anyMatch(summary -> ImageScanSummary.FAILED.equals(summary.status));
+        boolean nonCompliant = summaries.stream().anyMatch(summary -> ImageScanSummary.NON_COMPLIANT.equals(summary.status));
+        return failed || (nonCompliant && clusterInfo.isIsImageScanningEnforcementEnabled()) ? 1 : 0;
+    }
+
+    /**
+     * Start a trivy server for the scans of the list, which otherwise fall back to running Trivy locally
+     */
+    private static void startTrivyServer() throws InterruptedException {
+        try {
+            // The server needs the DB before it can start, which would otherwise count against its startup time
+            TrivyDatabase.getInstance().ensureDownloaded();
+        } catch (Exception e) {
+            System.err.println("Unable to download the Trivy vulnerability DB: " + e.getMessage());
+            return;
+        }
+        TrivyServer.getInstance().start();
+        if (!TrivyServer.getInstance().awaitHealthy(TRIVY_SERVER_STARTUP_TIMEOUT)) {
+            System.err.println("The Trivy server did not start, the images are scanned one at a time");
+        }
+    }
+
+    /**
+     * Look up the cluster the results are reported to
+     *
+     * @return completes with the cluster, or exceptionally if there is no cluster with the configured name
+     */
+    private CompletableFuture<ClusterDto> getCluster() {
+        String clusterName = TrawlerConfiguration.getInstance().clusterName();
+        return ApiFutures.<ClusterResponse>call(callback -> api.clusterControllerGetClusterByClusterNameAsync(clusterName, callback))
+                .thenApply(clusterResponse -> {
+                    if (clusterResponse.getData() == null) {
+                        throw new CompletionException(new Exception("No cluster found with name '" + clusterName + "'"));
+                    }
+                    return clusterResponse.getData();
+                });
+    }
+
+    /**
+     * Look up the policies the images are scanned with
+     *
+     * @return completes with the policies of the cluster, or exceptionally if the cluster has none
+     */
+    private CompletableFuture<List<PolicyWithScannerDto>> getPolicies(ClusterDto clusterInfo) {
+        return ApiFutures.<PoliciesByClusterResponse>call(callback -> api.policyControllerGetPoliciesByClusterIdAsync(clusterInfo.getId(), callback))
+                .thenApply(policiesByClusterResponse -> {
+                    if (!policiesByClusterResponse.isSuccess() || policiesByClusterResponse.getData() == null || policiesByClusterResponse.getData().size() == 0) {
+                        throw new CompletionException(new Exception("No policies found for cluster '" + clusterInfo.getName() + "'"));
+                    }
+                    return policiesByClusterResponse.getData();
+                });
+    }
+
+    /**
+     * Build the message to scan an image with once its registry and the cluster are known. The image is looked up
+     * in m9sweeper, and created if it does not exist yet.
+     *
+     * @return completes with the message, or exceptionally if the registry or the image could not be found
+     */
+    private CompletableFuture<Message> getScanMessage(String imageUrl, CompletableFuture<Registry> registryLookup,
+                                                      CompletableFuture<ClusterDto> clusterLookup) {
+        return registryLookup.thenCombine(clusterLookup, (registry, clusterInfo) -> {
+            // Create the base message used in place of contacting the RabbitMQ server
+            Message queueMessage = new Message();
+            queueMessage.setRegistry(registry);
+
+            Cluster cluster = new Cluster();
+            cluster.setId(clusterInfo.getId().longValue());
+            cluster.setName(clusterInfo.getName());
+            queueMessage.setCluster(cluster);
+            return queueMessage;
+        }).thenCompose(queueMessage -> getImage(imageUrl, queueMessage.getCluster()).thenApply(image -> {
+            queueMessage.setImage(image);
+            return queueMessage;
+        }));
+    }
+
+    /**
+     * Look up an image in m9sweeper, creating it if it does not exist yet
+     */
+    private CompletableFuture<Image> getImage(String imageUrl, Cluster cluster) {
+        BigDecimal clusterId = new BigDecimal(cluster.getId());
+        return ApiFutures.<ImageDetailsResponseDto>call(callback -> api.imageControllerGetImageByDockerUrlAsync(clusterId, imageUrl, callback))
+                .thenCompose(imageDetails -> {
+                    ImageDetailsDto imageDetailsDto = imageDetails.getData();
+                    if (imageDetailsDto == null || imageDetailsDto.getId() != null) {
+                        return CompletableFuture.completedFuture(imageDetailsDto);
+                    }
+
+                    ImageCreateDto imageCreateDto = new ImageCreateDto();
+                    imageCreateDto.setName(imageDetailsDto.getName());
+                    imageCreateDto.setTag(imageDetailsDto.getTag());
+                    imageCreateDto.setUrl(imageDetailsDto.getUrl());
+                    return ApiFutures.<ImageDetailsResponseDto>call(callback -> api.imageControllerCreateImageAsync(imageCreateDto, true, clusterId, callback))
+                            .thenApply(imageCreateResponse -> imageCreateResponse.getData() != null ? imageCreateResponse.getData() : imageDetailsDto);
+                })
+                .thenApply(imageDetailsDto -> {
+                    if (imageDetailsDto == null || imageDetailsDto.getId() == null) {
+                        throw new CompletionException(new Exception("No docker image found for '" + imageUrl + "'"));
+                    }
+
+                    Image image = new Image();
+                    image.setId(imageDetailsDto.getId().longValue());
+                    String[] dockerImagePathArray = imageDetailsDto.getName().split("/");
+                    image.setPath(dockerImagePathArray.length > 1 ? String.join("/", Arrays.copyOf(dockerImagePathArray, dockerImagePathArray.length - 1)) : "");
+                    image.setName(imageDetailsDto.getName());
+                    image.setTag(imageDetailsDto.getTag());
+                    image.setUrl(imageDetailsDto.getUrl());
+                    image.setHash(imageDetailsDto.getDockerImageId());
+                    return image;
+                });
+    }
+
+    /**
+     * Look up the docker registry of a repository url
+     *
+     * @return completes with the registry, or exceptionally if m9sweeper has no registry for the url
+     */
+    private CompletableFuture<Registry> getDockerRegistry(String url) {
+        return ApiFutures.<DockerRegistriesResponseDto>call(callback -> api.dockerRegistriesControllerGetDockerRegistriesAsync(null, null, "id", "asc",
+                        null, null, url, callback))
+                .thenApply(registryInfo -> {
+                    if (registryInfo.getData() == null || registryInfo.getData().getList() == null || registryInfo.getData().getList().size() == 0) {
+                        throw new CompletionException(new Exception("No docker registry found with repository url '" + url + "'"));
+                    }
+                    DockerRegistriesDto dockerRegistriesDto = registryInfo.getData().getList().get(0);
+
+                    Registry registry = new Registry();
+                    registry.setId(dockerRegistriesDto.getId().longValue());
+                    registry.setName(dockerRegistriesDto.getName());
+                    registry.setHostname(dockerRegistriesDto.getHostname());
+                    registry.setUsername(dockerRegistriesDto.getUsername());
+                    registry.setPassword(dockerRegistriesDto.getPassword());
+                    registry.setLoginRequired(dockerRegistriesDto.isLoginRequired());
+                    registry.setAuthType(dockerRegistriesDto.getAuthType());
+                    registry.setAuthDetails(dockerRegistriesDto.getAuthDetails());
+                    return registry;
+                });
+    }
+
+    /**
+     * Wait for a lookup, throwing the exception it failed with
+     */
+    private static <T> T await(CompletableFuture<T> lookup) throws Exception {
+        try {
+            return lookup.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Read the distinct image urls of an image list. Blank lines and lines starting with # are ignored.
+     *
+     * @param imageList the file listing the image urls, or - to read them from stdin
+     */
+    private static List<String> readImageList(String imageList) throws IOException {
+        BufferedReader reader = "-".equals(imageList)
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(imageList), StandardCharsets.UTF_8);
+        try (reader) {
+            List<String> imageUrls = reader.lines()
+                    .map(String::trim)
+                    .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                    .map(ScanCommand::normalizeImageUrl)
+                    .distinct()
+                    .collect(Collectors.toList());
+            if (imageUrls.isEmpty()) {
+                throw new IOException("The image list '" + imageList + "' does not contain any images");
+            }
+            return imageUrls;
+        }
+    }
 
-        // get docker image url
-        String url = TrawlerConfiguration.getInstance().dockerImageUrl().split("/")[0];
-        return api.dockerRegistriesControllerGetDockerRegistries(null, null, "id", "asc",
-                null, null, url);
+    /**
+     * If the full docker image url is not provided, add the default hostname and tag name
+     */
+    private static String normalizeImageUrl(String imageUrl) {
+        Pattern p = Pattern.compile("^([a-zA-Z0-9]+\\.[a-zA-Z0-9\\.]+)?\\/?([a-zA-Z0-9\\/]+)?\\:?([a-zA-Z0-9\\.]+)?$");
+        Matcher m = p.matcher(imageUrl);
+        if (m.matches()){
+
+            String hostname = m.group(1) != null ? m.group(1) : "docker.io";
+            String imagename = m.group(2);
+            String tagname = m.group(3) != null ? m.group(3) : "latest";
+
+            return hostname + "/" + imagename + ":" + tagname;
+        }
+        return imageUrl;
+    }
+
+    private static String registryUrl(String imageUrl) {
+        return imageUrl.split("/")[0];
+    }
+
+    /**
+     * The outcome of scanning one image of an image list, as printed in the summary
+     */
+    private static class ImageScanSummary {
+        private static final String COMPLIANT = "Compliant";
+        private static final String NON_COMPLIANT = "Non-Compliant";
+        private static final String FAILED = "Failed";
+
+        private final String imageUrl;
+        private String status;
+        private String error;
+        private BigDecimal criticalIssues = BigDecimal.ZERO;
+        private BigDecimal majorIssues = BigDecimal.ZERO;
+        private BigDecimal mediumIssues = BigDecimal.ZERO;
+        private BigDecimal lowIssues = BigDecimal.ZERO;
+        private BigDecimal negligibleIssues = BigDecimal.ZERO;
+
+        private ImageScanSummary(String imageUrl) {
+            this.imageUrl = imageUrl;
+        }
+
+        private ImageScanSummary completed(List<ImageTrawlerResultDto> scanResults, boolean compliant) {
+            status = compliant ? COMPLIANT : NON_COMPLIANT;
+            if (scanResults != null) {
+                for (ImageTrawlerResultDto scanResult : scanResults) {
+                    criticalIssues = criticalIssues.add(scanResult.getCriticalIssues());
+                    majorIssues = majorIssues.add(scanResult.getMajorIssues());
+                    mediumIssues = mediumIssues.add(scanResult.getMediumIssues());
+                    lowIssues = lowIssues.add(scanResult.getLowIssues());
+                    negligibleIssues = negligibleIssues.add(scanResult.getNegligibleIssues());
+                }
+            }
+            return this;
+        }
+
+        private ImageScanSummary failed(Throwable e) {
+            status = FAILED;
+            error = e.getMessage();
+            System.err.println("Scanning " + imageUrl + " failed: " + e.getMessage());
+            return this;
+        }
     }
 }
@@ -0,0 +1,64 @@
+package io.m9sweeper.trawler.framework.client;
+
+import io.m9sweeper.trawler.framework.client.handler.ApiCallback;
+import io.m9sweeper.trawler.framework.client.handler.ApiException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Adapts the asynchronous methods of the generated API client to {@link CompletableFuture}s, so that calls to
+ * m9sweeper can be composed and run at the same time.
+ * <p>
+ * This lives outside of the generated client so that it survives regenerating the client.
+ */
+public final class ApiFutures {
+
+    private ApiFutures() {
+    }
+
+    /**
+     * Starts an asynchronous call of the API client, such as
+     * {@code callback -> api.policyControllerGetPoliciesByClusterIdAsync(clusterId, callback)}
+     */
+    @FunctionalInterface
+    public interface AsyncCall<T> {
+        void start(ApiCallback<T> callback) throws ApiException;
+    }
+
+    /**
+     * Start an asynchronous call of the API client
+     *
+     * @param call starts the call
+     * @return completes with the response of m9sweeper, or exceptionally with the {@link ApiException} the call
+     * failed with
+     */
+    public static <T> CompletableFuture<T> call(AsyncCall<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            call.start(new ApiCallback<>() {
+                @Override
+                public void onFailure(ApiException e, int statusCode, Map<String, List<String>> responseHeaders) {
+                    result.completeExceptionally(e);
+                }
+
+                @Override
+                public void onSuccess(T response, int statusCode, Map<String, List<String>> responseHeaders) {
+                    result.complete(response);
+                }
+
+                @Override
+                public void onUploadProgress(long bytesWritten, long contentLength, boolean done) {
+                }
+
+                @Override
+                public void onDownloadProgress(long bytesRead, long contentLength, boolean done) {
+                }
+            });
+        } catch (ApiException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,119 @@
+package io.m9sweeper.trawler.framework.client;
+
+/**
+ * Stops calls to an endpoint of m9sweeper after it failed a number of times in a row, so that Trawler does not keep
+ * waiting on an endpoint that is down. Once the breaker has been open for a while, a single call is let through to
+ * probe the endpoint: the breaker closes again if it succeeds, and stays open for another while if it fails.
+ */
+public class CircuitBreaker {
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    // How often callers waiting for the outcome of the probe call check on the breaker again
+    private static final long PROBE_POLL_MILLIS = 500;
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long openedAt;
+    // When a waiter was last let go on to make the probe call, see admitWaiter()
+    private long waiterAdmittedAt;
+
+    /**
+     * @param name the endpoint the breaker guards, for logging
+     * @param failureThreshold how many calls in a row have to fail to open the breaker
+     * @param openMillis how long the breaker stays open before it lets a call probe the endpoint
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Check whether a call may be made, which has to be followed by {@link #onSuccess}, {@link #onFailure} or
+     * {@link #onCancel} once it is done
+     *
+     * @return true if the call may be made
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMillis) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            return true;
+        }
+        // Only one call probes the endpoint while the breaker is half open
+        return state == State.CLOSED;
+    }
+
+    /** The call was answered by the endpoint */
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            System.out.println("m9sweeper is answering calls to " + name + " again");
+        }
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    /** The call failed because the endpoint could not be reached or was overloaded */
+    public synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            if (state == State.CLOSED) {
+                System.err.println("Calls to " + name + " failed " + failures + " times in a row, suspending them for " +
+                        openMillis + "ms");
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /** The call was not made after all */
+    public synchronized void onCancel() {
+        if (state == State.HALF_OPEN) {
+            // Let the next call probe the endpoint instead
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis() - openMillis;
+        }
+    }
+
+    /**
+     * Get how much longer the breaker stays open. A half open breaker stays open until its probe call is done.
+     *
+     * @return the time in milliseconds until a call may be made, 0 if calls may be made
+     */
+    public synchronized long remainingOpenMillis() {
+        switch (state) {
+            case OPEN:
+                return Math.max(0, openedAt + openMillis - System.currentTimeMillis());
+            case HALF_OPEN:
+                return PROBE_POLL_MILLIS;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Get how long a caller that is waiting for the endpoint should wait. Once the endpoint may be probed, one
+     * caller is let go on to make the probe call, while the others wait for its outcome. Another caller is let go
+     * if no probe call was made for a while, in case the one before gave up without calling the endpoint.
+     *
+     * @return the time in milliseconds to wait before asking again, 0 if the caller may go on
+     */
+    public synchronized long admitWaiter() {
+        long remaining = remainingOpenMillis();
+        if (state != State.OPEN || remaining > 0) {
+            return remaining;
+        }
+        long now = System.currentTimeMillis();
+        if (now - waiterAdmittedAt >= openMillis) {
+            waiterAdmittedAt = now;
+            return 0;
+        }
+        return Math.min(PROBE_POLL_MILLIS, waiterAdmittedAt + openMillis - now);
+    }
+}
@@ -0,0 +1,113 @@
+package io.m9sweeper.trawler.framework.client;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Limits the number of calls to m9sweeper that are in flight at a time, adapting the limit to how m9sweeper copes
+ * with the calls it gets. Every call that m9sweeper answers raises the limit by a fraction, so it grows by one for
+ * every limit's worth of successful calls, and a call that times out or is turned away halves it (AIMD). Only calls
+ * started after the last decrease can decrease it again, so a burst of failures halves the limit once.
+ */
+public class ConcurrencyLimit {
+    private final int maxLimit;
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+
+    private double limit;
+    private int inFlight = 0;
+    private long lastDecrease = 0;
+
+    /**
+     * @param maxLimit the most calls that may ever be in flight at a time, which is also where the limit starts
+     */
+    public ConcurrencyLimit(int maxLimit) {
+        this.maxLimit = maxLimit;
+        this.limit = maxLimit;
+    }
+
+    /**
+     * Wait until a call may be made, which has to be followed by {@link #release} once it is done
+     *
+     * @param timeoutMillis how long to wait at most
+     * @return false if no call could be made in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized boolean acquire(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (inFlight >= (int) limit || !waiting.isEmpty()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Run a task once a call may be made, without waiting for it. The task runs right away if a call may be made
+     * now, and otherwise on the thread that releases the call before it. It has to {@link #release} once it is done.
+     *
+     * @param task starts the call
+     */
+    public void whenAvailable(Runnable task) {
+        synchronized (this) {
+            if (inFlight >= (int) limit || !waiting.isEmpty()) {
+                waiting.add(task);
+                return;
+            }
+            inFlight++;
+        }
+        task.run();
+    }
+
+    /**
+     * Release a call once it is done
+     *
+     * @param startedAt when the call was started, in {@link System#currentTimeMillis()} time
+     * @param overloaded whether m9sweeper timed out or turned the call away
+     */
+    public void release(long startedAt, boolean overloaded) {
+        Runnable next = null;
+        synchronized (this) {
+            inFlight--;
+            if (overloaded) {
+                if (startedAt > lastDecrease) {
+                    limit = Math.max(1, limit / 2);
+                    lastDecrease = System.currentTimeMillis();
+                }
+            } else {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+
+            if (inFlight < (int) limit && !waiting.isEmpty()) {
+                next = waiting.poll();
+                inFlight++;
+            }
+            notifyAll();
+        }
+
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    /**
+     * Get the current limit
+     *
+     * @return the number of calls that may be in flight at a time
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Get the number of calls in flight
+     *
+     * @return the number of calls that were started but not released yet
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+}
@@ -0,0 +1,13 @@
+package io.m9sweeper.trawler.framework.client;
+
+import io.m9sweeper.trawler.framework.client.handler.ApiException;
+
+/**
+ * A call to m9sweeper that was not made, because its endpoint kept failing or too many calls were in flight. Like a
+ * call that could not reach m9sweeper it has no status code, so it is retried by the callers that retry those.
+ */
+public class DashUnavailableException extends ApiException {
+    public DashUnavailableException(String message) {
+        super(0, message);
+    }
+}
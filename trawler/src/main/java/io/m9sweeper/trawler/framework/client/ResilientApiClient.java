@@ -0,0 +1,349 @@
+package io.m9sweeper.trawler.framework.client;
+
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import io.m9sweeper.trawler.framework.client.handler.ApiCallback;
+import io.m9sweeper.trawler.framework.client.handler.ApiException;
+import io.m9sweeper.trawler.framework.client.handler.ApiResponse;
+import io.m9sweeper.trawler.framework.client.handler.Pair;
+import io.m9sweeper.trawler.framework.client.handler.ProgressRequestBody;
+import io.m9sweeper.trawler.framework.metrics.Gauge;
+import io.m9sweeper.trawler.framework.metrics.TrawlerMetrics;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * API client that keeps Trawler from piling up calls to m9sweeper while it is slow or down:
+ * <ul>
+ *     <li>every call has a deadline, after which it is cancelled, covering the whole call rather than each read. Scan
+ *     result uploads have a separate, longer deadline, as sending the results of a large image takes a while</li>
+ *     <li>calls that only read from m9sweeper are retried a few times, with a randomized exponential backoff</li>
+ *     <li>each endpoint has a {@link CircuitBreaker}, so calls to an endpoint that keeps failing fail right away</li>
+ *     <li>the number of calls in flight is limited by a {@link ConcurrencyLimit} that adapts to m9sweeper's load</li>
+ * </ul>
+ * Calls that are not made because of the breaker or the limit fail with a {@link DashUnavailableException}.
+ * Saving scan results is not retried here, {@code ScanResultUploader} retries those.
+ * <p>
+ * This lives outside of the generated client so that it survives regenerating the client.
+ */
+public class ResilientApiClient extends StreamingApiClient {
+    // The delay before the first retry, which doubles with every further retry up to the maximum
+    private static final long INITIAL_BACKOFF = 200;
+    private static final long MAX_BACKOFF = 5000;
+
+    // IDs and names in paths, so that all calls to the same endpoint share a breaker
+    private static final Pattern ID_SEGMENT = Pattern.compile("/\\d+(?=/|$)");
+    private static final Pattern NAME_SEGMENT = Pattern.compile("/by-name/[^/]+");
+
+    private final long callTimeoutMillis;
+    private final long uploadTimeoutMillis;
+    private final int maxRetries;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private final ConcurrencyLimit limit;
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    // Cancels the calls that are past their deadline and schedules retries
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "dash-client");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param gzipScanResults whether to gzip compress the bodies of scan result uploads
+     * @param callTimeoutMillis how long a call may take before it is cancelled
+     * @param uploadTimeoutMillis how long a call that uploads scan results may take before it is cancelled
+     * @param maxRetries how many times a call that only reads from m9sweeper is retried
+     * @param maxConcurrency the most calls to m9sweeper that may be in flight at a time
+     * @param failureThreshold how many calls to an endpoint have to fail in a row to stop calling it
+     * @param openMillis how long calls to an endpoint are stopped for before it is tried again
+     */
+    public ResilientApiClient(boolean gzipScanResults, long callTimeoutMillis, long uploadTimeoutMillis, int maxRetries,
+                              int maxConcurrency, int failureThreshold, long openMillis) {
+        super(gzipScanResults);
+        this.callTimeoutMillis = callTimeoutMillis;
+        this.uploadTimeoutMillis = uploadTimeoutMillis;
+        this.maxRetries = maxRetries;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.limit = new ConcurrencyLimit(maxConcurrency);
+
+        TrawlerMetrics.register(new Gauge("trawler_dash_concurrency_limit",
+                "Calls to m9sweeper that may currently be in flight at a time.", limit::getLimit));
+        TrawlerMetrics.register(new Gauge("trawler_dash_calls_in_flight",
+                "Calls to m9sweeper in flight.", limit::getInFlight));
+        TrawlerMetrics.register(new Gauge("trawler_dash_circuits_open",
+                "Endpoints of m9sweeper that calls are currently stopped to.",
+                () -> breakers.values().stream().filter(breaker -> breaker.remainingOpenMillis() > 0).count()));
+    }
+
+    /**
+     * Get how long a caller that needs some endpoints of m9sweeper should wait for calls to them to be resumed, see
+     * {@link CircuitBreaker#admitWaiter()}
+     *
+     * @param path a part of the paths of the endpoints the caller needs
+     * @return the time in milliseconds to wait before asking again, 0 if the endpoints may be called now
+     */
+    public long unavailableMillis(String path) {
+        return breakers.entrySet().stream()
+                .filter(entry -> entry.getKey().contains(path))
+                .mapToLong(entry -> entry.getValue().admitWaiter())
+                .max().orElse(0);
+    }
+
+    @Override
+    public Call buildCall(String path, String method, List<Pair> queryParams, List<Pair> collectionQueryParams,
+                          Object body, Map<String, String> headerParams, Map<String, Object> formParams,
+                          String[] authNames, ProgressRequestBody.ProgressRequestListener progressRequestListener) throws ApiException {
+        Request request = buildRequest(path, method, queryParams, collectionQueryParams, body, headerParams,
+                formParams, authNames, progressRequestListener);
+        return new DashCall(getHttpClient(), request, isScanResults(body) ? uploadTimeoutMillis : callTimeoutMillis);
+    }
+
+    @Override
+    public <T> ApiResponse<T> execute(Call call, Type returnType) throws ApiException {
+        if (!(call instanceof DashCall)) {
+            return super.execute(call, returnType);
+        }
+
+        Request request = ((DashCall) call).request;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return attempt(call, returnType);
+            } catch (ApiException e) {
+                if (attempt > maxRetries || !isRetryable(request, e)) {
+                    throw e;
+                }
+                TrawlerMetrics.DASH_RETRIES.inc(endpointOf(request));
+                try {
+                    Thread.sleep(backoff(attempt));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                call = new DashCall(getHttpClient(), request, ((DashCall) call).timeoutMillis);
+            }
+        }
+    }
+
+    @Override
+    public <T> void executeAsync(Call call, Type returnType, ApiCallback<T> callback) {
+        if (!(call instanceof DashCall)) {
+            super.executeAsync(call, returnType, callback);
+            return;
+        }
+        attemptAsync((DashCall) call, returnType, callback, 1);
+    }
+
+    private <T> ApiResponse<T> attempt(Call call, Type returnType) throws ApiException {
+        long timeoutMillis = ((DashCall) call).timeoutMillis;
+        Permit permit = admit(((DashCall) call).request);
+        try {
+            if (!limit.acquire(callTimeoutMillis)) {
+                permit.cancel();
+                TrawlerMetrics.DASH_REJECTED.inc("concurrency_limit");
+                throw new DashUnavailableException("Too many calls to m9sweeper are in flight");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            permit.cancel();
+            throw new ApiException(e);
+        }
+
+        permit.start();
+        ScheduledFuture<?> deadline = scheduler.schedule(call::cancel, timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+            Response response = call.execute();
+            T data;
+            try {
+                data = handleResponse(response, returnType);
+            } catch (ApiException e) {
+                permit.done(e.getCode());
+                throw e;
+            } catch (RuntimeException e) {
+                permit.done(0);
+                throw unreadableResponse(e);
+            }
+            permit.done(response.code());
+            return new ApiResponse<>(response.code(), response.headers().toMultimap(), data);
+        } catch (IOException e) {
+            permit.done(0);
+            throw toApiException(call, e);
+        } finally {
+            deadline.cancel(false);
+        }
+    }
+
+    private <T> void attemptAsync(DashCall call, Type returnType, ApiCallback<T> callback, int attempt) {
+        Permit permit;
+        try {
+            permit = admit(call.request);
+        } catch (ApiException e) {
+            callback.onFailure(e, 0, null);
+            return;
+        }
+
+        limit.whenAvailable(() -> {
+            permit.start();
+            ScheduledFuture<?> deadline = scheduler.schedule(call::cancel, call.timeoutMillis, TimeUnit.MILLISECONDS);
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(Request request, IOException e) {
+                    deadline.cancel(false);
+                    permit.done(0);
+                    retryAsyncOrFail(call, returnType, callback, attempt, toApiException(call, e));
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public void onResponse(Response response) {
+                    deadline.cancel(false);
+                    T result;
+                    try {
+                        result = (T) handleResponse(response, returnType);
+                    } catch (ApiException e) {
+                        permit.done(e.getCode());
+                        retryAsyncOrFail(call, returnType, callback, attempt, e);
+                        return;
+                    } catch (RuntimeException e) {
+                        permit.done(0);
+                        retryAsyncOrFail(call, returnType, callback, attempt, unreadableResponse(e));
+                        return;
+                    }
+                    permit.done(response.code());
+                    callback.onSuccess(result, response.code(), response.headers().toMultimap());
+                }
+            });
+        });
+    }
+
+    private <T> void retryAsyncOrFail(DashCall call, Type returnType, ApiCallback<T> callback, int attempt, ApiException e) {
+        if (attempt > maxRetries || !isRetryable(call.request, e)) {
+            callback.onFailure(e, e.getCode(), e.getResponseHeaders());
+            return;
+        }
+        TrawlerMetrics.DASH_RETRIES.inc(endpointOf(call.request));
+        scheduler.schedule(() -> attemptAsync(new DashCall(getHttpClient(), call.request, call.timeoutMillis), returnType, callback, attempt + 1),
+                backoff(attempt), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Check the breaker of the endpoint a request is for
+     *
+     * @throws DashUnavailableException if calls to the endpoint are stopped
+     */
+    private Permit admit(Request request) throws DashUnavailableException {
+        String endpoint = endpointOf(request);
+        CircuitBreaker breaker = breakers.computeIfAbsent(endpoint,
+                name -> new CircuitBreaker(name, failureThreshold, openMillis));
+        if (!breaker.tryAcquire()) {
+            TrawlerMetrics.DASH_REJECTED.inc("circuit_open");
+            throw new DashUnavailableException("Calls to " + endpoint + " are stopped for another " +
+                    breaker.remainingOpenMillis() + "ms after failing repeatedly");
+        }
+        return new Permit(breaker);
+    }
+
+    /**
+     * Only requests that read from m9sweeper are retried, and only if m9sweeper could not be reached or was
+     * overloaded
+     */
+    private static boolean isRetryable(Request request, ApiException e) {
+        boolean idempotent = "GET".equals(request.method()) || "HEAD".equals(request.method());
+        return idempotent && !(e instanceof DashUnavailableException) && isOverloaded(e.getCode());
+    }
+
+    private static boolean isOverloaded(int code) {
+        return code == 0 || code == 429 || code >= 500;
+    }
+
+    private static long backoff(int attempt) {
+        // Full jitter, so that the workers that failed together do not retry together
+        return ThreadLocalRandom.current().nextLong(Math.min(MAX_BACKOFF, INITIAL_BACKOFF << (attempt - 1)) + 1);
+    }
+
+    private ApiException toApiException(Call call, IOException e) {
+        if (call.isCanceled()) {
+            return new ApiException("The call to m9sweeper took longer than " + ((DashCall) call).timeoutMillis + "ms", e, 0, null);
+        }
+        return new ApiException(e);
+    }
+
+    /**
+     * A response that could not be read, such as a malformed or truncated body, counts as a call that got no
+     * response, so that it is handled like one instead of escaping the breaker and the limit
+     */
+    private static ApiException unreadableResponse(RuntimeException e) {
+        return new ApiException("Unable to read the response of m9sweeper: " + e.getMessage(), e, 0, null);
+    }
+
+    private static String endpointOf(Request request) {
+        String path = ID_SEGMENT.matcher(request.url().getPath()).replaceAll("/{id}");
+        return request.method() + " " + NAME_SEGMENT.matcher(path).replaceAll("/by-name/{name}");
+    }
+
+    /** A call made to m9sweeper, which keeps its request and deadline so that the call can be made again */
+    private static class DashCall extends Call {
+        private final Request request;
+        private final long timeoutMillis;
+
+        private DashCall(OkHttpClient client, Request request, long timeoutMillis) {
+            super(client, request);
+            this.request = request;
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+
+    /** A call that was let through by its breaker, which reports how the call went once it is done */
+    private class Permit {
+        private final CircuitBreaker breaker;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private long startedAt;
+
+        private Permit(CircuitBreaker breaker) {
+            this.breaker = breaker;
+        }
+
+        /** The call got its place in the concurrency limit and is being made */
+        private void start() {
+            startedAt = System.currentTimeMillis();
+        }
+
+        /** The call was not made */
+        private void cancel() {
+            breaker.onCancel();
+        }
+
+        /**
+         * @param code the status code of the response, 0 if there was none
+         */
+        private void done(int code) {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            boolean overloaded = isOverloaded(code);
+            if (overloaded) {
+                breaker.onFailure();
+            } else {
+                breaker.onSuccess();
+            }
+            limit.release(startedAt, overloaded);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package io.m9sweeper.trawler.framework.client;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import io.m9sweeper.trawler.framework.client.handler.ApiClient;
+import io.m9sweeper.trawler.framework.client.handler.ApiException;
+import io.m9sweeper.trawler.framework.client.handler.Pair;
+import io.m9sweeper.trawler.framework.client.handler.ProgressRequestBody;
+import io.m9sweeper.trawler.framework.client.model.ImageTrawlerResultDto;
+import io.m9sweeper.trawler.framework.client.model.TrawlerScanResults;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * API client that writes JSON request bodies straight into the connection instead of serializing them into
+ * a String first, so the memory used by an upload does not grow with the number of issues it contains.
+ * Scan result uploads can also be gzip compressed on the way.
+ * <p>
+ * This lives outside of the generated client so that it survives regenerating the client.
+ */
+public class StreamingApiClient extends ApiClient {
+    private final boolean gzipScanResults;
+
+    /**
+     * @param gzipScanResults whether to gzip compress the bodies of scan result uploads
+     */
+    public StreamingApiClient(boolean gzipScanResults) {
+        this.gzipScanResults = gzipScanResults;
+    }
+
+    @Override
+    public RequestBody serialize(Object obj, String contentType) throws ApiException {
+        if (obj == null || obj instanceof byte[] || obj instanceof File || !isJsonMime(contentType)) {
+            return super.serialize(obj, contentType);
+        }
+        return new JsonRequestBody(getJSON().getGson(), obj, MediaType.parse(contentType), isCompressed(obj));
+    }
+
+    @Override
+    public Request buildRequest(String path, String method, List<Pair> queryParams, List<Pair> collectionQueryParams,
+                                Object body, Map<String, String> headerParams, Map<String, Object> formParams,
+                                String[] authNames, ProgressRequestBody.ProgressRequestListener progressRequestListener) throws ApiException {
+        Request request = super.buildRequest(path, method, queryParams, collectionQueryParams, body, headerParams,
+                formParams, authNames, progressRequestListener);
+        if (request.body() != null && isCompressed(body)) {
+            return request.newBuilder().header("Content-Encoding", "gzip").build();
+        }
+        return request;
+    }
+
+    private boolean isCompressed(Object body) {
+        return gzipScanResults && isScanResults(body);
+    }
+
+    /**
+     * Check whether a request body uploads scan results
+     *
+     * @param body the body of the request
+     * @return true if the body holds the results of a scan
+     */
+    protected static boolean isScanResults(Object body) {
+        return body instanceof TrawlerScanResults || body instanceof ImageTrawlerResultDto;
+    }
+
+    /**
+     * Request body that serializes an object into the request as it is being sent. The body is serialized again
+     * whenever the request is retried.
+     */
+    private static class JsonRequestBody extends RequestBody {
+        private final Gson gson;
+        private final Object body;
+        private final MediaType contentType;
+        private final boolean gzip;
+
+        private JsonRequestBody(Gson gson, Object body, MediaType contentType, boolean gzip) {
+            this.gson = gson;
+            this.body = body;
+            this.contentType = contentType;
+            this.gzip = gzip;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return contentType;
+        }
+
+        @Override
+        public long contentLength() {
+            // Unknown until the body is written, so the body is sent with chunked transfer encoding
+            return -1;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            BufferedSink target = gzip ? Okio.buffer(new GzipSink(sink)) : sink;
+            Writer writer = new OutputStreamWriter(target.outputStream(), StandardCharsets.UTF_8);
+            JsonWriter jsonWriter = gson.newJsonWriter(writer);
+            gson.toJson(body, body.getClass(), jsonWriter);
+            jsonWriter.flush();
+            if (gzip) {
+                // Closing the gzip sink writes its trailer and ends the request body
+                target.close();
+            } else {
+                target.flush();
+            }
+        }
+    }
+}
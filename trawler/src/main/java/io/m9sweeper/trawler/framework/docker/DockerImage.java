@@ -82,6 +82,19 @@ public class DockerImage {
         return builder.toString();
     }
 
+    /**
+     * Builds a reference that identifies the content of the image, the registry, name and digest. Falls back
+     * to the tag if the hash is temporary or missing.
+     * @return the digest reference of the docker image
+     */
+    public String buildDigestReference() {
+        if (this.hasTempHash()) {
+            return this.buildFullPath(true, false);
+        }
+
+        return this.registry.getHostname() + "/" + this.name + "@sha256:" + this.hash;
+    }
+
     /**
      * Checks if the hash is temporary (starts with 'TMP_') or null.
      */
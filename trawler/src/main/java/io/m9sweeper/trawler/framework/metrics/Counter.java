@@ -0,0 +1,45 @@
+package io.m9sweeper.trawler.framework.metrics;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * A metric whose value only goes up, such as the number of scans run.
+ */
+public class Counter extends Metric {
+    private final ConcurrentHashMap<List<String>, DoubleAdder> series = new ConcurrentHashMap<>();
+
+    public Counter(String name, String help, String... labelNames) {
+        super(name, help, labelNames);
+    }
+
+    /**
+     * Increase the counter by one
+     *
+     * @param labelValues the values of the metric's labels
+     */
+    public void inc(String... labelValues) {
+        inc(1, labelValues);
+    }
+
+    /**
+     * Increase the counter
+     *
+     * @param amount how much to increase the counter by
+     * @param labelValues the values of the metric's labels
+     */
+    public void inc(double amount, String... labelValues) {
+        series.computeIfAbsent(labelValues(labelValues), key -> new DoubleAdder()).add(amount);
+    }
+
+    @Override
+    protected String getType() {
+        return "counter";
+    }
+
+    @Override
+    protected void writeSamples(StringBuilder out) {
+        series.forEach((values, value) -> writeSample(out, "", values, null, null, value.sum()));
+    }
+}
@@ -0,0 +1,63 @@
+package io.m9sweeper.trawler.framework.metrics;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A metric whose value can go up and down, such as the number of scans in progress. A gauge either
+ * tracks a value that is set or changed by Trawler, or reads its value from a supplier when scraped.
+ */
+public class Gauge extends Metric {
+    private final ConcurrentHashMap<List<String>, AtomicLong> series = new ConcurrentHashMap<>();
+    private final DoubleSupplier supplier;
+
+    public Gauge(String name, String help, String... labelNames) {
+        super(name, help, labelNames);
+        this.supplier = null;
+    }
+
+    /**
+     * Create a gauge without labels whose value is read from a supplier each time it is scraped.
+     * The gauge is left out of the exposition while the supplier returns NaN.
+     */
+    public Gauge(String name, String help, DoubleSupplier supplier) {
+        super(name, help);
+        this.supplier = supplier;
+    }
+
+    public void inc(String... labelValues) {
+        series.computeIfAbsent(labelValues(labelValues), key -> new AtomicLong()).incrementAndGet();
+    }
+
+    public void dec(String... labelValues) {
+        series.computeIfAbsent(labelValues(labelValues), key -> new AtomicLong()).decrementAndGet();
+    }
+
+    public void set(long value, String... labelValues) {
+        series.computeIfAbsent(labelValues(labelValues), key -> new AtomicLong()).set(value);
+    }
+
+    public long get(String... labelValues) {
+        AtomicLong value = series.get(labelValues(labelValues));
+        return value == null ? 0 : value.get();
+    }
+
+    @Override
+    protected String getType() {
+        return "gauge";
+    }
+
+    @Override
+    protected void writeSamples(StringBuilder out) {
+        if (supplier != null) {
+            double value = supplier.getAsDouble();
+            if (!Double.isNaN(value)) {
+                writeSample(out, "", List.of(), null, null, value);
+            }
+            return;
+        }
+        series.forEach((values, value) -> writeSample(out, "", values, null, null, value.get()));
+    }
+}
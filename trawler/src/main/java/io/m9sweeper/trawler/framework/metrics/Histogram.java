@@ -0,0 +1,84 @@
+package io.m9sweeper.trawler.framework.metrics;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A metric that samples observations, such as how long a step of a scan took, into cumulative buckets.
+ */
+public class Histogram extends Metric {
+    // Buckets suited to the durations of scan steps, from a cached dash lookup to a scan of a large image
+    public static final double[] DURATION_BUCKETS = {0.005, 0.025, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300, 600, 1800};
+
+    private final double[] buckets;
+    private final ConcurrentHashMap<List<String>, Series> series = new ConcurrentHashMap<>();
+
+    public Histogram(String name, String help, double[] buckets, String... labelNames) {
+        super(name, help, labelNames);
+        this.buckets = buckets;
+    }
+
+    /**
+     * Record an observation
+     *
+     * @param value the observed value
+     * @param labelValues the values of the metric's labels
+     */
+    public void observe(double value, String... labelValues) {
+        Series s = series.computeIfAbsent(labelValues(labelValues), key -> new Series(buckets.length));
+        for (int i = 0; i < buckets.length; i++) {
+            if (value <= buckets[i]) {
+                s.bucketCounts[i].increment();
+                break;
+            }
+        }
+        s.sum.add(value);
+        s.count.increment();
+    }
+
+    /**
+     * Record the number of seconds since a time taken from {@link System#nanoTime()}
+     *
+     * @param startNanos when the timed step started
+     * @param labelValues the values of the metric's labels
+     */
+    public void observeSince(long startNanos, String... labelValues) {
+        observe((System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1), labelValues);
+    }
+
+    @Override
+    protected String getType() {
+        return "histogram";
+    }
+
+    @Override
+    protected void writeSamples(StringBuilder out) {
+        series.forEach((values, s) -> {
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += s.bucketCounts[i].sum();
+                writeSample(out, "_bucket", values, "le", formatValue(buckets[i]), cumulative);
+            }
+            writeSample(out, "_bucket", values, "le", "+Inf", s.count.sum());
+            writeSample(out, "_sum", values, null, null, s.sum.sum());
+            writeSample(out, "_count", values, null, null, s.count.sum());
+        });
+    }
+
+    /** The observations of one combination of label values */
+    private static class Series {
+        private final LongAdder[] bucketCounts;
+        private final DoubleAdder sum = new DoubleAdder();
+        private final LongAdder count = new LongAdder();
+
+        private Series(int numBuckets) {
+            bucketCounts = new LongAdder[numBuckets];
+            for (int i = 0; i < numBuckets; i++) {
+                bucketCounts[i] = new LongAdder();
+            }
+        }
+    }
+}
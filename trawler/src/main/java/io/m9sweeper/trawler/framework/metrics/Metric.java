@@ -0,0 +1,91 @@
+package io.m9sweeper.trawler.framework.metrics;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Base class of the metrics Trawler exposes in the Prometheus text format. A metric has a fixed set
+ * of label names and keeps one series per combination of label values.
+ */
+public abstract class Metric {
+    private final String name;
+    private final String help;
+    private final List<String> labelNames;
+
+    protected Metric(String name, String help, String... labelNames) {
+        this.name = name;
+        this.help = help;
+        this.labelNames = Arrays.asList(labelNames);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Get the Prometheus type of the metric
+     *
+     * @return counter, gauge or histogram
+     */
+    protected abstract String getType();
+
+    /**
+     * Write the samples of every series of the metric
+     *
+     * @param out the exposition being built
+     */
+    protected abstract void writeSamples(StringBuilder out);
+
+    /**
+     * Write the metric in the Prometheus text exposition format
+     *
+     * @param out the exposition being built
+     */
+    public void write(StringBuilder out) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(getType()).append('\n');
+        writeSamples(out);
+    }
+
+    protected List<String> labelValues(String... values) {
+        if (values.length != labelNames.size()) {
+            throw new IllegalArgumentException(name + " expects labels " + labelNames + " but got " + Arrays.toString(values));
+        }
+        return List.of(values);
+    }
+
+    protected void writeSample(StringBuilder out, String suffix, List<String> values, String extraLabel, String extraValue, double value) {
+        out.append(name).append(suffix);
+        if (!values.isEmpty() || extraLabel != null) {
+            out.append('{');
+            for (int i = 0; i < values.size(); i++) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(labelNames.get(i)).append("=\"").append(escape(values.get(i))).append('"');
+            }
+            if (extraLabel != null) {
+                if (!values.isEmpty()) {
+                    out.append(',');
+                }
+                out.append(extraLabel).append("=\"").append(extraValue).append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ').append(formatValue(value)).append('\n');
+    }
+
+    protected static String formatValue(double value) {
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
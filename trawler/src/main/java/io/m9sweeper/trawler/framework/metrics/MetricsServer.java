@@ -0,0 +1,47 @@
+package io.m9sweeper.trawler.framework.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the Trawler metrics on /metrics so they can be scraped by Prometheus.
+ */
+public class MetricsServer {
+    private final HttpServer server;
+
+    /**
+     * Start serving the metrics
+     *
+     * @param port the port to listen on
+     * @throws IOException if the port could not be bound
+     */
+    public MetricsServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = TrawlerMetrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    /**
+     * Stop serving the metrics
+     */
+    public void stop() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,101 @@
+package io.m9sweeper.trawler.framework.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The metrics Trawler records about its scan jobs. Every metric created through this class is included
+ * in {@link #scrape()}.
+ */
+public final class TrawlerMetrics {
+    private static final List<Metric> METRICS = new CopyOnWriteArrayList<>();
+
+    public static final Histogram QUEUE_WAIT = register(new Histogram("trawler_queue_wait_seconds",
+            "Time scan jobs spent in the RabbitMQ queue before a worker picked them up.", Histogram.DURATION_BUCKETS));
+
+    public static final Histogram DASH_LOOKUP = register(new Histogram("trawler_dash_lookup_seconds",
+            "Time spent looking up docker registries and policies in m9sweeper.", Histogram.DURATION_BUCKETS, "lookup"));
+
+    public static final Histogram TRIVY_PROCESS = register(new Histogram("trawler_trivy_process_seconds",
+            "Time the trivy process took to scan an image.", Histogram.DURATION_BUCKETS));
+
+    public static final Histogram SBOM_GENERATE = register(new Histogram("trawler_sbom_generate_seconds",
+            "Time trivy took to generate the SBOM of an image for the SBOM cache.", Histogram.DURATION_BUCKETS));
+
+    public static final Histogram PACKAGE_EVALUATE = register(new Histogram("trawler_package_evaluate_seconds",
+            "Time spent evaluating the advisories of the packages in the package index.", Histogram.DURATION_BUCKETS));
+
+    public static final Histogram PREFETCH = register(new Histogram("trawler_image_prefetch_seconds",
+            "Time spent pulling the images of queued scan jobs ahead of their scans, by outcome.", Histogram.DURATION_BUCKETS, "outcome"));
+
+    public static final Histogram REPORT_PARSE = register(new Histogram("trawler_report_parse_seconds",
+            "Time spent parsing scan reports into issues.", Histogram.DURATION_BUCKETS));
+
+    public static final Histogram UPLOAD = register(new Histogram("trawler_upload_seconds",
+            "Time spent saving scan results to m9sweeper.", Histogram.DURATION_BUCKETS));
+
+    public static final Counter SCANS = register(new Counter("trawler_scans_total",
+            "Scan jobs handled, by outcome.", "outcome"));
+
+    public static final Counter REQUEUED = register(new Counter("trawler_requeued_scans_total",
+            "Scan jobs re-queued because a vulnerability DB update changed the advisories of their packages."));
+
+    public static final Counter OUTBOX_REPLAYS = register(new Counter("trawler_outbox_replays_total",
+            "Scan results replayed from the outbox, by outcome.", "outcome"));
+
+    public static final Counter DASH_RETRIES = register(new Counter("trawler_dash_retries_total",
+            "Calls to m9sweeper that were retried, by endpoint.", "endpoint"));
+
+    public static final Counter DASH_REJECTED = register(new Counter("trawler_dash_calls_rejected_total",
+            "Calls to m9sweeper that were not made, by reason.", "reason"));
+
+    public static final Counter LAYER_STORE = register(new Counter("trawler_layer_store_requests_total",
+            "Blobs requested from the shared layer store, by whether they were already in the store.", "result"));
+
+    public static final Counter SBOM_CACHE = register(new Counter("trawler_sbom_cache_requests_total",
+            "SBOMs looked up in the SBOM cache, by whether they were cached.", "result"));
+
+    public static final Counter ISSUE_CHANGES = register(new Counter("trawler_issue_changes_total",
+            "Issues compared with the previous scan of the same image and policy, by whether they are new, unchanged or fixed.", "change"));
+
+    public static final Counter ISSUES = register(new Counter("trawler_issues_total",
+            "Issues found by scans, by severity.", "severity"));
+
+    public static final Gauge SCANS_IN_FLIGHT = register(new Gauge("trawler_scans_in_flight",
+            "Scan jobs currently being worked on."));
+
+    public static final Gauge UPLOADS_PENDING = register(new Gauge("trawler_uploads_pending",
+            "Scan results waiting to be saved to m9sweeper."));
+
+    public static final Gauge WORKERS = register(new Gauge("trawler_workers",
+            "Number of scan workers."));
+
+    public static final Gauge WORKER_UTILIZATION = register(new Gauge("trawler_worker_utilization",
+            "Fraction of the scan workers that are busy.",
+            () -> WORKERS.get() == 0 ? Double.NaN : (double) SCANS_IN_FLIGHT.get() / WORKERS.get()));
+
+    private TrawlerMetrics() {
+    }
+
+    /**
+     * Add a metric to the ones exposed by Trawler
+     *
+     * @param metric the metric to add
+     * @return the metric
+     */
+    public static <T extends Metric> T register(T metric) {
+        METRICS.add(metric);
+        return metric;
+    }
+
+    /**
+     * Render every registered metric in the Prometheus text exposition format
+     *
+     * @return the metrics exposition
+     */
+    public static String scrape() {
+        StringBuilder out = new StringBuilder();
+        METRICS.forEach(metric -> metric.write(out));
+        return out.toString();
+    }
+}
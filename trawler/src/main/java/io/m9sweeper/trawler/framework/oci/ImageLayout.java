@@ -0,0 +1,180 @@
+package io.m9sweeper.trawler.framework.oci;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * An image pulled into the {@link LayerStore} and laid out as an OCI image layout directory, which scanners such
+ * as Trivy can read instead of pulling the image from its registry. The blobs in the directory link to the store,
+ * so laying out an image does not copy any layers, and they stay pinned in the store until the layout is closed.
+ */
+public class ImageLayout implements AutoCloseable {
+    // The platform picked from multi-platform images, the same one Trivy picks by default
+    private static final String OS = "linux";
+    private static final String ARCHITECTURE = "amd64";
+
+    private final LayerStore store;
+    private final List<String> pinned = new ArrayList<>();
+    private Path directory;
+    private String digest;
+
+    private ImageLayout(LayerStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Pull an image into the layer store and lay it out in a new temporary directory. Only the blobs that are not
+     * in the store yet are downloaded from the registry.
+     *
+     * @param store the layer store to pull the image into
+     * @param registry client of the image's repository
+     * @param reference the digest of the image if it is known, otherwise its tag
+     * @param tag the tag to name the image by in the layout
+     * @return the image layout, which must be closed once it is no longer read
+     * @throws Exception if the image could not be pulled
+     */
+    public static ImageLayout pull(LayerStore store, RegistryClient registry, String reference, String tag) throws Exception {
+        ImageLayout layout = new ImageLayout(store);
+        try {
+            layout.pull(registry, reference, tag);
+            return layout;
+        } catch (Exception e) {
+            layout.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the directory the image is laid out in
+     *
+     * @return the image layout directory
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the digest the image reference resolved to, which is the digest of the index for multi-platform images
+     *
+     * @return the digest of the image, such as sha256:...
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    private void pull(RegistryClient registry, String reference, String tag) throws Exception {
+        RegistryClient.Manifest resolved = getManifest(registry, reference);
+        digest = resolved.getDigest();
+        RegistryClient.Manifest manifest = resolved.isIndex() ? getManifest(registry, selectPlatform(resolved)) : resolved;
+
+        directory = Files.createTempDirectory("trawler-image-");
+        Path blobs = Files.createDirectories(directory.resolve("blobs").resolve("sha256"));
+        link(blobs, manifest.getDigest(), store.pin(manifest.getDigest(), ignored -> new ByteArrayInputStream(manifest.getContent())));
+
+        JsonObject imageManifest = manifest.toJson();
+        List<JsonObject> blobDescriptors = new ArrayList<>();
+        blobDescriptors.add(imageManifest.getAsJsonObject("config"));
+        imageManifest.getAsJsonArray("layers").forEach(layer -> blobDescriptors.add(layer.getAsJsonObject()));
+        for (JsonObject descriptor : blobDescriptors) {
+            String blobDigest = descriptor.get("digest").getAsString();
+            link(blobs, blobDigest, store.pin(blobDigest, registry::openBlob));
+        }
+
+        JsonObject annotations = new JsonObject();
+        annotations.addProperty("org.opencontainers.image.ref.name", tag);
+        JsonObject descriptor = new JsonObject();
+        descriptor.addProperty("mediaType", manifest.getMediaType());
+        descriptor.addProperty("digest", manifest.getDigest());
+        descriptor.addProperty("size", manifest.getContent().length);
+        descriptor.add("annotations", annotations);
+        JsonArray manifests = new JsonArray();
+        manifests.add(descriptor);
+        JsonObject index = new JsonObject();
+        index.addProperty("schemaVersion", 2);
+        index.add("manifests", manifests);
+
+        Files.writeString(directory.resolve("oci-layout"), "{\"imageLayoutVersion\":\"1.0.0\"}", StandardCharsets.UTF_8);
+        Files.writeString(directory.resolve("index.json"), index.toString(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Get a manifest from the store if it is referenced by digest and already there, otherwise from the registry
+     */
+    private RegistryClient.Manifest getManifest(RegistryClient registry, String reference) throws Exception {
+        if (reference.startsWith("sha256:") && store.contains(reference)) {
+            Path path = store.pin(reference, registry::openBlob);
+            pinned.add(reference);
+            byte[] content = Files.readAllBytes(path);
+            return new RegistryClient.Manifest(reference, "", content);
+        }
+
+        RegistryClient.Manifest manifest = registry.getManifest(reference);
+        store.pin(manifest.getDigest(), ignored -> new ByteArrayInputStream(manifest.getContent()));
+        pinned.add(manifest.getDigest());
+        return manifest;
+    }
+
+    /**
+     * Pick the manifest of the platform to scan from an index
+     */
+    private static String selectPlatform(RegistryClient.Manifest index) throws IOException {
+        JsonArray manifests = index.toJson().getAsJsonArray("manifests");
+        String fallback = null;
+        for (JsonElement element : manifests) {
+            JsonObject manifest = element.getAsJsonObject();
+            JsonObject platform = manifest.getAsJsonObject("platform");
+            if (platform == null) {
+                continue;
+            }
+
+            if (OS.equals(platform.get("os").getAsString()) && ARCHITECTURE.equals(platform.get("architecture").getAsString())) {
+                return manifest.get("digest").getAsString();
+            }
+            if (fallback == null && OS.equals(platform.get("os").getAsString())) {
+                fallback = manifest.get("digest").getAsString();
+            }
+        }
+
+        if (fallback == null) {
+            throw new IOException("Image index " + index.getDigest() + " has no manifest for " + OS);
+        }
+        return fallback;
+    }
+
+    private void link(Path blobs, String blobDigest, Path blob) throws IOException {
+        pinned.add(blobDigest);
+        Path link = blobs.resolve(blobDigest.substring("sha256:".length()));
+        if (Files.notExists(link)) {
+            Files.createSymbolicLink(link, blob.toAbsolutePath());
+        }
+    }
+
+    /**
+     * Remove the layout directory and unpin its blobs, which leaves them in the store for later images
+     */
+    @Override
+    public void close() {
+        pinned.forEach(store::release);
+        pinned.clear();
+
+        if (directory != null) {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            } catch (IOException e) {
+                System.err.println("Unable to remove image layout " + directory + ": " + e.getMessage());
+            }
+            directory = null;
+        }
+    }
+}
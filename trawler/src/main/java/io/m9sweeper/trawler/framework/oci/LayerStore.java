@@ -0,0 +1,229 @@
+package io.m9sweeper.trawler.framework.oci;
+
+import io.m9sweeper.trawler.framework.metrics.Gauge;
+import io.m9sweeper.trawler.framework.metrics.TrawlerMetrics;
+import io.m9sweeper.trawler.framework.scans.SingleFlight;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A content-addressed store of the blobs images are made of, their layers, configs and manifests, shared by
+ * every image Trawler scans. Blobs are kept under their digest, so a layer that several images share is only
+ * downloaded once, and a blob that is on disk is never fetched from a registry again while it stays in the store.
+ * <p>
+ * The store is bounded in size. When it grows beyond its limit the least recently used blobs are evicted, except
+ * for the blobs pinned by a scan that is still reading them. The order blobs were used in is kept in their
+ * modification times, so it survives a restart.
+ */
+public class LayerStore {
+    private static final Pattern DIGEST = Pattern.compile("sha256:[a-f0-9]{64}");
+
+    // How many times a blob is downloaded again if it was evicted before it could be pinned
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final Path blobs;
+    private final long maxBytes;
+
+    // The size of every blob in the store, least recently used first
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+
+    // How many scans are using each pinned blob
+    private final Map<String, Integer> pins = new HashMap<>();
+
+    private final SingleFlight<String, Path> downloads = new SingleFlight<>();
+    private long totalBytes = 0;
+
+    /** Opens the content of a blob, usually by requesting it from a registry */
+    @FunctionalInterface
+    public interface BlobSource {
+        InputStream open(String digest) throws IOException;
+    }
+
+    /**
+     * @param directory the directory to keep the blobs in, blobs already there are taken over
+     * @param maxBytes the size the store is evicted down to whenever it grows beyond it
+     */
+    public LayerStore(Path directory, long maxBytes) throws IOException {
+        this.blobs = directory.resolve("blobs").resolve("sha256");
+        this.maxBytes = maxBytes;
+        Files.createDirectories(blobs);
+        load();
+
+        TrawlerMetrics.register(new Gauge("trawler_layer_store_bytes",
+                "Size of the blobs in the shared layer store.", this::getTotalBytes));
+    }
+
+    /**
+     * Get a blob from the store, downloading it from the source if it is not in the store yet, and pin it so it
+     * is not evicted until it is {@link #release(String) released}. Concurrent requests for a blob that is being
+     * downloaded wait for that download.
+     *
+     * @param digest the digest of the blob, such as sha256:...
+     * @param source opens the content of the blob if it has to be downloaded
+     * @return the file the blob is stored in
+     * @throws Exception if the blob could not be downloaded or its content does not match its digest
+     */
+    public Path pin(String digest, BlobSource source) throws Exception {
+        checkDigest(digest);
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            synchronized (this) {
+                // Looking the blob up marks it as the most recently used
+                if (sizes.get(digest) != null) {
+                    TrawlerMetrics.LAYER_STORE.inc(attempt == 1 ? "hit" : "miss");
+                    pins.merge(digest, 1, Integer::sum);
+                    Path path = pathOf(digest);
+                    path.toFile().setLastModified(System.currentTimeMillis());
+                    evict();
+                    return path;
+                }
+            }
+            downloads.execute(digest, () -> download(digest, source));
+        }
+        throw new IOException("Blob " + digest + " was evicted from the layer store before it could be used, " +
+                "the layer store is too small for the images being scanned");
+    }
+
+    /**
+     * Unpin a blob pinned with {@link #pin(String, BlobSource)}, allowing it to be evicted again
+     *
+     * @param digest the digest of the blob
+     */
+    public synchronized void release(String digest) {
+        pins.computeIfPresent(digest, (key, count) -> count > 1 ? count - 1 : null);
+        evict();
+    }
+
+    /**
+     * Whether a blob is in the store
+     *
+     * @param digest the digest of the blob
+     * @return whether the blob is in the store
+     */
+    public synchronized boolean contains(String digest) {
+        return sizes.containsKey(digest);
+    }
+
+    /**
+     * Get the size of all blobs in the store
+     *
+     * @return the size of the store in bytes
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private Path pathOf(String digest) {
+        return blobs.resolve(digest.substring("sha256:".length()));
+    }
+
+    /**
+     * Download a blob into a temporary file, verify it against its digest and move it into place
+     */
+    private Path download(String digest, BlobSource source) throws Exception {
+        synchronized (this) {
+            if (sizes.containsKey(digest)) {
+                return pathOf(digest);
+            }
+        }
+
+        Path path = pathOf(digest);
+        Path temp = Files.createTempFile(blobs, "download-", ".tmp");
+        try {
+            MessageDigest sha256 = sha256();
+            try (InputStream in = new DigestInputStream(source.open(digest), sha256);
+                 OutputStream out = Files.newOutputStream(temp)) {
+                in.transferTo(out);
+            }
+
+            String actual = "sha256:" + HexFormat.of().formatHex(sha256.digest());
+            if (!actual.equals(digest)) {
+                throw new IOException("Blob " + digest + " was downloaded with the wrong content (" + actual + ")");
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        synchronized (this) {
+            long size = Files.size(path);
+            sizes.put(digest, size);
+            totalBytes += size;
+        }
+        return path;
+    }
+
+    /**
+     * Evict the least recently used blobs that are not pinned until the store fits within its limit
+     */
+    private synchronized void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = sizes.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (pins.containsKey(entry.getKey())) {
+                continue;
+            }
+
+            try {
+                Files.deleteIfExists(pathOf(entry.getKey()));
+            } catch (IOException e) {
+                System.err.println("Unable to evict " + entry.getKey() + " from the layer store: " + e.getMessage());
+                continue;
+            }
+            totalBytes -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Take over the blobs already in the directory, least recently used first, and remove unfinished downloads
+     */
+    private synchronized void load() {
+        File[] files = blobs.toFile().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            String digest = "sha256:" + file.getName();
+            if (!DIGEST.matcher(digest).matches()) {
+                file.delete();
+                continue;
+            }
+            sizes.put(digest, file.length());
+            totalBytes += file.length();
+        }
+        evict();
+    }
+
+    private static void checkDigest(String digest) {
+        if (digest == null || !DIGEST.matcher(digest).matches()) {
+            throw new IllegalArgumentException("Unsupported blob digest: " + digest);
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package io.m9sweeper.trawler.framework.oci;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.squareup.okhttp.Credentials;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the manifests and blobs of an image repository from a registry that implements the OCI distribution API,
+ * which every registry m9sweeper supports does. Logs in with basic auth or the bearer token flow, whichever the
+ * registry asks for, and only ever requests pull access.
+ */
+public class RegistryClient {
+    public static final String OCI_INDEX = "application/vnd.oci.image.index.v1+json";
+    public static final String OCI_MANIFEST = "application/vnd.oci.image.manifest.v1+json";
+    public static final String DOCKER_MANIFEST_LIST = "application/vnd.docker.distribution.manifest.list.v2+json";
+    public static final String DOCKER_MANIFEST = "application/vnd.docker.distribution.manifest.v2+json";
+
+    private static final Set<String> INDEX_TYPES = Set.of(OCI_INDEX, DOCKER_MANIFEST_LIST);
+    private static final String ACCEPT = String.join(", ", OCI_INDEX, OCI_MANIFEST, DOCKER_MANIFEST_LIST, DOCKER_MANIFEST);
+    private static final Set<String> DOCKER_HUB_HOSTNAMES = Set.of("docker.io", "index.docker.io", "registry-1.docker.io");
+    private static final Pattern CHALLENGE_PARAMETER = Pattern.compile("(\\w+)=\"([^\"]*)\"");
+
+    // Shared by every repository so connections to the same registry are reused
+    private static final OkHttpClient HTTP = new OkHttpClient();
+
+    static {
+        HTTP.setConnectTimeout(30, TimeUnit.SECONDS);
+        HTTP.setReadTimeout(5, TimeUnit.MINUTES);
+    }
+
+    private final String baseUrl;
+    private final String repository;
+    private final String username;
+    private final String password;
+
+    // The Authorization header the registry accepted last, null until the registry asks for one
+    private volatile String authorization;
+
+    /**
+     * @param hostname the hostname of the registry, as it appears in image references
+     * @param name the name of the image repository in the registry
+     * @param username the username to log in with, or null to pull anonymously
+     * @param password the password to log in with
+     */
+    public RegistryClient(String hostname, String name, String username, String password) {
+        // Docker Hub is referred to as docker.io but served from registry-1.docker.io, and official images live in library/
+        boolean dockerHub = DOCKER_HUB_HOSTNAMES.contains(hostname);
+        String host = dockerHub ? "registry-1.docker.io" : hostname;
+        this.repository = dockerHub && !name.contains("/") ? "library/" + name : name;
+
+        // Like docker, only registries on the local machine are reached without TLS
+        String scheme = host.startsWith("localhost") || host.startsWith("127.0.0.1") ? "http" : "https";
+        this.baseUrl = scheme + "://" + host + "/v2/" + repository;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * Get a manifest of the repository
+     *
+     * @param reference a tag or a digest of the manifest
+     * @return the manifest
+     * @throws IOException if the manifest could not be read or does not match the digest it was requested by
+     */
+    public Manifest getManifest(String reference) throws IOException {
+        Response response = send(baseUrl + "/manifests/" + reference, ACCEPT);
+        byte[] content = response.body().bytes();
+        String digest = "sha256:" + HexFormat.of().formatHex(sha256().digest(content));
+        if (reference.startsWith("sha256:") && !reference.equals(digest)) {
+            throw new IOException("Manifest " + reference + " of " + repository + " was read with the wrong content (" + digest + ")");
+        }
+
+        String mediaType = response.header("Content-Type", "").split(";")[0].trim();
+        return new Manifest(digest, mediaType, content);
+    }
+
+    /**
+     * Start reading a blob of the repository
+     *
+     * @param digest the digest of the blob
+     * @return the content of the blob, which the caller must close
+     * @throws IOException if the blob could not be requested
+     */
+    public InputStream openBlob(String digest) throws IOException {
+        Response response = send(baseUrl + "/blobs/" + digest, "*/*");
+        return response.body().byteStream();
+    }
+
+    /**
+     * Send a GET request, logging in and sending it again if the registry asks for authorization
+     */
+    private Response send(String url, String accept) throws IOException {
+        Response response = HTTP.newCall(request(url, accept)).execute();
+        if (response.code() == 401) {
+            String challenge = response.header("WWW-Authenticate", "");
+            response.body().close();
+            authorization = authorize(challenge);
+            response = HTTP.newCall(request(url, accept)).execute();
+        }
+
+        if (!response.isSuccessful()) {
+            response.body().close();
+            throw new IOException("GET " + url + " failed with HTTP code " + response.code());
+        }
+        return response;
+    }
+
+    private Request request(String url, String accept) {
+        Request.Builder builder = new Request.Builder().url(url).header("Accept", accept);
+        if (authorization != null) {
+            builder.header("Authorization", authorization);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Build the Authorization header that answers a WWW-Authenticate challenge of the registry
+     */
+    private String authorize(String challenge) throws IOException {
+        if (challenge.regionMatches(true, 0, "Basic", 0, 5)) {
+            if (username == null) {
+                throw new IOException("The registry of " + repository + " requires a login");
+            }
+            return Credentials.basic(username, password);
+        }
+
+        if (!challenge.regionMatches(true, 0, "Bearer", 0, 6)) {
+            throw new IOException("The registry of " + repository + " asked for an unsupported authorization: " + challenge);
+        }
+
+        Map<String, String> parameters = new HashMap<>();
+        Matcher matcher = CHALLENGE_PARAMETER.matcher(challenge);
+        while (matcher.find()) {
+            parameters.put(matcher.group(1), matcher.group(2));
+        }
+
+        HttpUrl realm = HttpUrl.parse(parameters.getOrDefault("realm", ""));
+        if (realm == null) {
+            throw new IOException("The registry of " + repository + " asked for a token without a valid realm: " + challenge);
+        }
+        HttpUrl.Builder tokenUrl = realm.newBuilder()
+                .addQueryParameter("scope", "repository:" + repository + ":pull");
+        if (parameters.containsKey("service")) {
+            tokenUrl.addQueryParameter("service", parameters.get("service"));
+        }
+
+        Request.Builder tokenRequest = new Request.Builder().url(tokenUrl.build());
+        if (username != null) {
+            tokenRequest.header("Authorization", Credentials.basic(username, password));
+        }
+
+        Response response = HTTP.newCall(tokenRequest.build()).execute();
+        String body = response.body().string();
+        if (!response.isSuccessful()) {
+            throw new IOException("Logging in to the registry of " + repository + " failed with HTTP code " + response.code());
+        }
+
+        JsonObject token = JsonParser.parseString(body).getAsJsonObject();
+        String value = token.has("token") ? token.get("token").getAsString() : token.get("access_token").getAsString();
+        return "Bearer " + value;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** A manifest as it was read from the registry */
+    public static class Manifest {
+        private final String digest;
+        private final String mediaType;
+        private final byte[] content;
+
+        public Manifest(String digest, String mediaType, byte[] content) {
+            this.digest = digest;
+            this.mediaType = mediaType;
+            this.content = content;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * Get the media type of the manifest, as reported by the registry or else as declared by the manifest itself
+         */
+        public String getMediaType() {
+            if (mediaType.isEmpty() || mediaType.equals("application/json")) {
+                JsonObject json = toJson();
+                if (json.has("mediaType")) {
+                    return json.get("mediaType").getAsString();
+                }
+                return json.has("manifests") ? OCI_INDEX : OCI_MANIFEST;
+            }
+            return mediaType;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        /**
+         * Whether the manifest is an index of the manifests of the same image for different platforms
+         */
+        public boolean isIndex() {
+            return INDEX_TYPES.contains(getMediaType());
+        }
+
+        public JsonObject toJson() {
+            return JsonParser.parseString(new String(content, StandardCharsets.UTF_8)).getAsJsonObject();
+        }
+    }
+}
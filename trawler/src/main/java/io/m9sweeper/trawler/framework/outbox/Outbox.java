@@ -0,0 +1,459 @@
+package io.m9sweeper.trawler.framework.outbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only, on-disk log of records that still have to be delivered somewhere. A record stays pending until it
+ * is acknowledged, and the records that were pending when Trawler stopped are pending again when it starts.
+ * <p>
+ * The log is split into segment files. Records are only ever appended to the last segment, and a new segment is
+ * started once it grows beyond its size limit. Segments are deleted oldest first, once every record in them has been
+ * acknowledged, so the acknowledgements of the records in the remaining segments are never deleted before them.
+ * Every record carries a checksum, so a record that was only partly written when Trawler died is discarded on load.
+ * <p>
+ * Appended records are synced to disk before {@link #append} returns, or with a sync interval at most that long
+ * after, trading the records of the last interval for fewer syncs. Acknowledgements are never synced on their own:
+ * losing one only means a record is delivered twice.
+ */
+public class Outbox {
+    private static final Pattern SEGMENT = Pattern.compile("segment-(\\d{20})\\.log");
+
+    private static final byte RECORD = 1;
+    private static final byte ACK = 2;
+
+    // Type, ID, payload length and checksum
+    private static final int HEADER_BYTES = 1 + Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final long syncIntervalMillis;
+
+    // Where each pending record is, in the order they were appended
+    private final TreeMap<Long, Location> pending = new TreeMap<>();
+
+    // How many pending records each segment on disk holds, by the first ID of the segment
+    private final TreeMap<Long, Integer> pendingPerSegment = new TreeMap<>();
+
+    private FileChannel segment;
+    private long segmentId;
+    private long nextId = 1;
+    private boolean unsynced = false;
+
+    // Syncs the appended records in the background if there is a sync interval
+    private ScheduledExecutorService syncer;
+
+    /** Writes the payload of a record straight into the log */
+    public interface PayloadWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /** A pending record */
+    public static class Entry {
+        private final long id;
+        private final byte[] payload;
+
+        Entry(long id, byte[] payload) {
+            this.id = id;
+            this.payload = payload;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    private static class Location {
+        private final long segmentId;
+        private final long position;
+        private final int length;
+
+        Location(long segmentId, long position, int length) {
+            this.segmentId = segmentId;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    /**
+     * @param directory the directory to keep the segments in, records already there are taken over
+     * @param segmentBytes the size at which a new segment is started
+     * @param syncIntervalMillis 0 to sync every record before {@link #append} returns, otherwise how often to sync
+     * @throws IOException if the directory could not be created or read
+     */
+    public Outbox(Path directory, long segmentBytes, long syncIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.syncIntervalMillis = syncIntervalMillis;
+        Files.createDirectories(directory);
+        load();
+
+        if (syncIntervalMillis > 0) {
+            syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "outbox-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Append a record to the log
+     *
+     * @param payload the content of the record
+     * @return the ID of the record, IDs are increasing in the order records are appended
+     * @throws IOException if the record could not be written
+     */
+    public long append(byte[] payload) throws IOException {
+        return append(out -> out.write(payload));
+    }
+
+    /**
+     * Append a record to the log, streaming its payload into the segment instead of holding all of it in memory.
+     * The header of the record is written once its payload has been, so a record that was only partly written when
+     * Trawler died fails its checksum on load.
+     *
+     * @param writer writes the content of the record
+     * @return the ID of the record, IDs are increasing in the order records are appended
+     * @throws IOException if the record could not be written, in which case nothing was appended
+     */
+    public long append(PayloadWriter writer) throws IOException {
+        return append(writer, id -> {});
+    }
+
+    /**
+     * Append a record to the log like {@link #append(PayloadWriter)}, telling the caller its ID before it is pending
+     *
+     * @param writer writes the content of the record
+     * @param onAppended called with the ID of the record before {@link #pendingIds()} or {@link #read} return it
+     * @return the ID of the record, IDs are increasing in the order records are appended
+     * @throws IOException if the record could not be written, in which case nothing was appended
+     */
+    public synchronized long append(PayloadWriter writer, LongConsumer onAppended) throws IOException {
+        if (segment == null || segment.size() >= segmentBytes) {
+            startSegment(nextId);
+        }
+
+        long id = nextId;
+        long position = segment.size();
+        SegmentOutputStream payload = new SegmentOutputStream(position + HEADER_BYTES, checksum(RECORD, id));
+        try {
+            writer.writeTo(payload);
+            payload.flush();
+            writeHeader(RECORD, id, payload.length, payload.crc, position);
+        } catch (IOException | RuntimeException e) {
+            segment.truncate(position);
+            throw e;
+        }
+
+        nextId++;
+        pending.put(id, new Location(segmentId, position + HEADER_BYTES, (int) payload.length));
+        pendingPerSegment.merge(segmentId, 1, Integer::sum);
+
+        if (syncIntervalMillis == 0) {
+            segment.force(false);
+        } else {
+            unsynced = true;
+        }
+        // Still under the lock, so no one else sees the record yet
+        onAppended.accept(id);
+        return id;
+    }
+
+    /**
+     * Acknowledge that a record was delivered, so it is no longer pending. Segments without pending records left are
+     * deleted.
+     *
+     * @param id the ID of the record
+     * @throws IOException if the acknowledgement could not be written
+     */
+    public synchronized void ack(long id) throws IOException {
+        Location location = pending.remove(id);
+        if (location == null) {
+            return;
+        }
+
+        write(ACK, id, new byte[0]);
+        unsynced = syncIntervalMillis > 0;
+        pendingPerSegment.merge(location.segmentId, -1, Integer::sum);
+        deleteAcknowledgedSegments();
+    }
+
+    /**
+     * Read a pending record
+     *
+     * @param id the ID of the record
+     * @return the record, or null if it is no longer pending
+     * @throws IOException if the record could not be read
+     */
+    public synchronized Entry read(long id) throws IOException {
+        Location location = pending.get(id);
+        if (location == null) {
+            return null;
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(location.length);
+        if (location.segmentId == segmentId) {
+            readFully(segment, payload, location.position);
+        } else {
+            try (FileChannel channel = FileChannel.open(segmentPath(location.segmentId), StandardOpenOption.READ)) {
+                readFully(channel, payload, location.position);
+            }
+        }
+        return new Entry(id, payload.array());
+    }
+
+    /**
+     * Get the IDs of the pending records
+     *
+     * @return the IDs, in the order the records were appended
+     */
+    public synchronized List<Long> pendingIds() {
+        return new ArrayList<>(pending.keySet());
+    }
+
+    /**
+     * Get the number of pending records
+     *
+     * @return the number of records that were appended but not acknowledged
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Sync the records appended since the last sync to disk
+     *
+     * @throws IOException if the segment could not be synced
+     */
+    public synchronized void sync() throws IOException {
+        if (unsynced && segment != null) {
+            segment.force(false);
+            unsynced = false;
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (IOException e) {
+            System.err.println("Unable to sync the outbox: " + e.getMessage());
+        }
+    }
+
+    private void write(byte type, long id, byte[] payload) throws IOException {
+        CRC32 crc = checksum(type, id);
+        crc.update(payload);
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+        record.put(type).putLong(id).putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+        writeFully(record, segment.size());
+    }
+
+    private void writeHeader(byte type, long id, long length, CRC32 crc, long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.put(type).putLong(id).putInt((int) length).putInt((int) crc.getValue()).flip();
+        writeFully(header, position);
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += segment.write(buffer, position);
+        }
+    }
+
+    private static CRC32 checksum(byte type, long id) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(ByteBuffer.allocate(Long.BYTES).putLong(0, id).array());
+        return crc;
+    }
+
+    /**
+     * Writes the payload of a record into the segment behind the space left for its header, keeping track of its
+     * length and checksum
+     */
+    private class SegmentOutputStream extends OutputStream {
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private final CRC32 crc;
+        private long position;
+        private long length = 0;
+
+        private SegmentOutputStream(long position, CRC32 crc) {
+            this.position = position;
+            this.crc = crc;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) throws IOException {
+            while (count > 0) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int chunk = Math.min(count, buffer.remaining());
+                buffer.put(bytes, offset, chunk);
+                offset += chunk;
+                count -= chunk;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.array(), 0, buffer.limit());
+            length += buffer.limit();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("The record is too large for the outbox");
+            }
+            while (buffer.hasRemaining()) {
+                position += segment.write(buffer, position);
+            }
+            buffer.clear();
+        }
+    }
+
+    private void startSegment(long firstId) throws IOException {
+        if (segment != null) {
+            segment.force(false);
+            segment.close();
+        }
+
+        segmentId = firstId;
+        segment = FileChannel.open(segmentPath(segmentId), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        pendingPerSegment.putIfAbsent(segmentId, 0);
+        deleteAcknowledgedSegments();
+    }
+
+    /**
+     * Delete the oldest segments for as long as they hold no pending records, except the one being appended to
+     */
+    private void deleteAcknowledgedSegments() throws IOException {
+        while (!pendingPerSegment.isEmpty() && pendingPerSegment.firstKey() != segmentId
+                && pendingPerSegment.firstEntry().getValue() == 0) {
+            Files.deleteIfExists(segmentPath(pendingPerSegment.pollFirstEntry().getKey()));
+        }
+    }
+
+    private Path segmentPath(long firstId) {
+        return directory.resolve(String.format("segment-%020d.log", firstId));
+    }
+
+    /**
+     * Read the segments already in the directory, oldest first, and continue appending to the last one
+     */
+    private void load() throws IOException {
+        File[] files = directory.toFile().listFiles((dir, name) -> SEGMENT.matcher(name).matches());
+        if (files == null || files.length == 0) {
+            return;
+        }
+
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        for (File file : files) {
+            Matcher matcher = SEGMENT.matcher(file.getName());
+            matcher.matches();
+            loadSegment(Long.parseLong(matcher.group(1)), file.toPath());
+        }
+
+        // Segments that were fully acknowledged before they could be deleted
+        deleteAcknowledgedSegments();
+    }
+
+    private void loadSegment(long firstId, Path path) throws IOException {
+        pendingPerSegment.putIfAbsent(firstId, 0);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (true) {
+            header.clear();
+            if (!readFully(channel, header, position)) {
+                break;
+            }
+            header.flip();
+            byte type = header.get();
+            long id = header.getLong();
+            int length = header.getInt();
+            int checksum = header.getInt();
+
+            ByteBuffer payload = ByteBuffer.allocate(Math.max(length, 0));
+            if (length < 0 || !readFully(channel, payload, position + HEADER_BYTES)) {
+                break;
+            }
+            CRC32 crc = checksum(type, id);
+            crc.update(payload.array());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            if (type == RECORD) {
+                pending.put(id, new Location(firstId, position + HEADER_BYTES, length));
+                pendingPerSegment.merge(firstId, 1, Integer::sum);
+            } else if (type == ACK) {
+                Location location = pending.remove(id);
+                if (location != null) {
+                    pendingPerSegment.merge(location.segmentId, -1, Integer::sum);
+                }
+            }
+            nextId = Math.max(nextId, id + 1);
+            position += HEADER_BYTES + length;
+        }
+
+        if (position < channel.size()) {
+            // The rest of the segment was not completely written before Trawler stopped
+            System.err.println("Discarding " + (channel.size() - position) + " incomplete bytes at the end of " + path);
+            channel.truncate(position);
+        }
+
+        if (segment != null) {
+            segment.close();
+        }
+        segment = channel;
+        segmentId = firstId;
+    }
+
+    /**
+     * Read until the buffer is full
+     *
+     * @return false if the end of the file was reached first
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
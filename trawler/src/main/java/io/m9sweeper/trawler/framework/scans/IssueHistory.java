@@ -0,0 +1,177 @@
+package io.m9sweeper.trawler.framework.scans;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.m9sweeper.trawler.framework.metrics.TrawlerMetrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the issues the last scan of each image found for each policy, so that the next scan of the image can
+ * tell which issues are new, which are unchanged and which were fixed in between. Issues are told apart by their
+ * scanner, vulnerability ID, package and installed version.
+ * <p>
+ * The history is bounded, the images that were scanned least recently are forgotten first. Only what is needed to
+ * report a fixed issue is kept, not the description of the issues, and of their extra data only the package.
+ * A scan only becomes the one the next scan is compared with once its results are saved, so that the issues it
+ * reports as fixed are not lost when saving them fails. A scan reports a limited number of issues as fixed, so that
+ * an image that got rid of most of its issues does not make for an upload twice the usual size. The other fixed
+ * issues are remembered as if the scan had found them, and reported by the next scans.
+ * <p>
+ * The history is kept in memory. It starts out empty when Trawler starts, and each Trawler replica has its own.
+ */
+public class IssueHistory {
+    // The most issues a scan reports as fixed
+    private static final int MAX_FIXED = 500;
+
+    private final LinkedHashMap<String, Map<String, ScanResultIssue>> issues;
+
+    /**
+     * @param maxEntries the maximum number of (image, policy) pairs to remember the issues of
+     */
+    public IssueHistory(int maxEntries) {
+        this.issues = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, ScanResultIssue>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /** The issues a scan found compared with the previous scan, to be remembered once the scan is saved */
+    public class Comparison {
+        private final String key;
+        private final Map<String, ScanResultIssue> found;
+        private final List<ScanResultIssue> fixed;
+
+        private Comparison(String key, Map<String, ScanResultIssue> found, List<ScanResultIssue> fixed) {
+            this.key = key;
+            this.found = found;
+            this.fixed = fixed;
+        }
+
+        /**
+         * @return the issues of the previous scan that the scan no longer found, marked as fixed, or none if the
+         * image was not scanned for the policy before
+         */
+        public List<ScanResultIssue> getFixed() {
+            return fixed;
+        }
+
+        /**
+         * Remember the issues of the scan for the next scan, once the scan has been saved
+         */
+        public void commit() {
+            synchronized (IssueHistory.this) {
+                issues.put(key, found);
+            }
+        }
+    }
+
+    /**
+     * Compare the issues a scan found with the issues the previous scan of the same image and policy found. The
+     * issues are not remembered for the next scan until the comparison is {@link Comparison#commit() committed}.
+     *
+     * @param imageId the m9sweeper ID of the image
+     * @param policyId the ID of the policy
+     * @param current the issues the scan found
+     * @return the comparison
+     */
+    public Comparison diff(long imageId, long policyId, List<ScanResultIssue> current) {
+        Map<String, ScanResultIssue> found = new HashMap<>();
+        for (ScanResultIssue issue : current) {
+            JsonObject pkg = packageOf(issue);
+            found.put(issue.getScannerId() + "|" + issue.getType() + "|" + pkg, summaryOf(issue, pkg));
+        }
+
+        String key = imageId + "|" + policyId;
+        Map<String, ScanResultIssue> previous;
+        synchronized (this) {
+            previous = issues.get(key);
+        }
+
+        List<ScanResultIssue> fixed = new ArrayList<>();
+        Map<String, ScanResultIssue> deferred = new HashMap<>();
+        int unchanged = 0;
+        if (previous != null) {
+            for (Map.Entry<String, ScanResultIssue> entry : previous.entrySet()) {
+                if (found.containsKey(entry.getKey())) {
+                    unchanged++;
+                } else if (fixed.size() < MAX_FIXED) {
+                    fixed.add(fixedIssueOf(entry.getValue()));
+                } else {
+                    deferred.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        TrawlerMetrics.ISSUE_CHANGES.inc(found.size() - unchanged, "new");
+        TrawlerMetrics.ISSUE_CHANGES.inc(unchanged, "unchanged");
+        TrawlerMetrics.ISSUE_CHANGES.inc(fixed.size(), "fixed");
+
+        // Left for the next scan to report as fixed
+        found.putAll(deferred);
+        return new Comparison(key, found, fixed);
+    }
+
+    /**
+     * Get the number of (image, policy) pairs whose issues are remembered
+     *
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return issues.size();
+    }
+
+    /**
+     * Get the package and installed version an issue was found in from its extra data
+     */
+    private static JsonObject packageOf(ScanResultIssue issue) {
+        JsonObject pkg = new JsonObject();
+        if (issue.getExtraData() != null && !issue.getExtraData().isEmpty()) {
+            try {
+                JsonElement extraData = JsonParser.parseString(issue.getExtraData());
+                if (extraData.isJsonObject()) {
+                    pkg.addProperty("PkgName", getString(extraData.getAsJsonObject(), "PkgName"));
+                    pkg.addProperty("InstalledVersion", getString(extraData.getAsJsonObject(), "InstalledVersion"));
+                }
+            } catch (RuntimeException e) {
+                // Issues without valid extra data are told apart by their scanner and vulnerability ID only
+            }
+        }
+        return pkg;
+    }
+
+    private static String getString(JsonObject object, String name) {
+        JsonElement value = object.get(name);
+        return value == null || !value.isJsonPrimitive() ? "" : value.getAsString();
+    }
+
+    private static ScanResultIssue summaryOf(ScanResultIssue issue, JsonObject pkg) {
+        return new ScanResultIssueBuilder(issue.getScannerId(), issue.getScannerName())
+                .withName(issue.getName())
+                .withType(issue.getType())
+                .withSeverity(issue.getSeverity())
+                .withIsFixable(issue.isFixable())
+                .withVulnerabilityDescUrl(issue.getVulnerabilityDescUrl())
+                .withExtraData(pkg.toString())
+                .build();
+    }
+
+    /**
+     * Report an issue that is no longer found as fixed. A fixed issue never holds up the compliance of the image.
+     */
+    private static ScanResultIssue fixedIssueOf(ScanResultIssue issue) {
+        return new ScanResultIssueBuilder(issue.getScannerId(), issue.getScannerName())
+                .withIssue(issue)
+                .withDescription("")
+                .withIsCompliant(true)
+                .withWasFixed(true)
+                .build();
+    }
+}
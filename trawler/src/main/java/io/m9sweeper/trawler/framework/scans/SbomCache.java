@@ -0,0 +1,174 @@
+package io.m9sweeper.trawler.framework.scans;
+
+import io.m9sweeper.trawler.framework.metrics.TrawlerMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A bounded, least recently used cache of the SBOMs of images, kept on disk under the digest of their image. The
+ * packages in an image never change for a digest, so an SBOM stays valid for as long as it is cached and scanning
+ * it against the latest vulnerability DB finds the same issues as scanning the image itself.
+ * <p>
+ * SBOMs pinned by a scan that is still reading them are not evicted. The order SBOMs were used in is kept in their
+ * modification times, so it survives a restart.
+ */
+public class SbomCache {
+    private static final Pattern DIGEST = Pattern.compile("sha256:[a-f0-9]{64}");
+    private static final String EXTENSION = ".cdx.json";
+
+    private final Path directory;
+    private final int maxEntries;
+
+    // The digests of the cached SBOMs, least recently used first
+    private final LinkedHashMap<String, Boolean> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // How many scans are reading each pinned SBOM
+    private final Map<String, Integer> pins = new HashMap<>();
+
+    /**
+     * @param directory the directory to keep the SBOMs in, SBOMs already there are taken over
+     * @param maxEntries the maximum number of SBOMs to keep
+     */
+    public SbomCache(Path directory, int maxEntries) throws IOException {
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+        Files.createDirectories(directory);
+        load();
+    }
+
+    /**
+     * Get the cached SBOM of an image and pin it so it is not evicted until it is {@link #release(String) released}
+     *
+     * @param digest the digest of the image, such as sha256:...
+     * @return the SBOM file, or null if the SBOM of the image is not cached
+     */
+    public synchronized Path pin(String digest) {
+        checkDigest(digest);
+        // Looking the SBOM up marks it as the most recently used
+        if (entries.get(digest) == null) {
+            TrawlerMetrics.SBOM_CACHE.inc("miss");
+            return null;
+        }
+
+        TrawlerMetrics.SBOM_CACHE.inc("hit");
+        pins.merge(digest, 1, Integer::sum);
+        Path path = pathOf(digest);
+        path.toFile().setLastModified(System.currentTimeMillis());
+        return path;
+    }
+
+    /**
+     * Unpin an SBOM pinned with {@link #pin(String)}, allowing it to be evicted again
+     *
+     * @param digest the digest of the image
+     */
+    public synchronized void release(String digest) {
+        pins.computeIfPresent(digest, (key, count) -> count > 1 ? count - 1 : null);
+        evict();
+    }
+
+    /**
+     * Add the SBOM of an image to the cache, evicting the least recently used SBOMs if the cache is full
+     *
+     * @param digest the digest of the image
+     * @param sbom the SBOM file, which is copied into the cache
+     * @throws IOException if the SBOM could not be copied into the cache
+     */
+    public void put(String digest, Path sbom) throws IOException {
+        checkDigest(digest);
+        Path temp = Files.createTempFile(directory, "sbom-", ".tmp");
+        try {
+            Files.copy(sbom, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, pathOf(digest), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+
+        synchronized (this) {
+            entries.put(digest, Boolean.TRUE);
+            evict();
+        }
+    }
+
+    /**
+     * Get the number of cached SBOMs
+     *
+     * @return the number of SBOMs
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private Path pathOf(String digest) {
+        return directory.resolve(digest.substring("sha256:".length()) + EXTENSION);
+    }
+
+    /**
+     * Evict the least recently used SBOMs that are not pinned until the cache fits within its limit
+     */
+    private synchronized void evict() {
+        Iterator<String> iterator = entries.keySet().iterator();
+        while (entries.size() > maxEntries && iterator.hasNext()) {
+            String digest = iterator.next();
+            if (pins.containsKey(digest)) {
+                continue;
+            }
+
+            try {
+                Files.deleteIfExists(pathOf(digest));
+            } catch (IOException e) {
+                System.err.println("Unable to evict the SBOM of " + digest + ": " + e.getMessage());
+                continue;
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Take over the SBOMs already in the directory, least recently used first, and remove unfinished copies
+     */
+    private synchronized void load() {
+        File[] files = directory.toFile().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            String digest = "sha256:" + file.getName().replace(EXTENSION, "");
+            if (file.getName().endsWith(EXTENSION) && isCacheable(digest)) {
+                entries.put(digest, Boolean.TRUE);
+            } else if (file.getName().startsWith("sbom-") && file.getName().endsWith(".tmp")) {
+                file.delete();
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Whether the SBOM of an image can be cached under its digest
+     *
+     * @param digest the digest of the image
+     * @return whether the digest is a sha256 digest
+     */
+    public static boolean isCacheable(String digest) {
+        return digest != null && DIGEST.matcher(digest).matches();
+    }
+
+    private static void checkDigest(String digest) {
+        if (!isCacheable(digest)) {
+            throw new IllegalArgumentException("Unsupported image digest: " + digest);
+        }
+    }
+}
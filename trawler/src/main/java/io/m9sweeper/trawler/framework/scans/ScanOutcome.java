@@ -0,0 +1,42 @@
+package io.m9sweeper.trawler.framework.scans;
+
+import java.util.List;
+
+/**
+ * The issues a scanner found in an image. A ScanOutcome is shared by every policy and every job
+ * that needs the same scan of the same image, so it must not be modified once it has been created.
+ */
+public class ScanOutcome {
+    // The issues the scanner found
+    private final List<ScanResultIssue> issues;
+
+    // The hash of the scanned image as reported by the scanner
+    private final String imageHash;
+
+    /**
+     * @param issues the issues the scanner found
+     * @param imageHash the hash of the scanned image as reported by the scanner
+     */
+    public ScanOutcome(List<ScanResultIssue> issues, String imageHash) {
+        this.issues = issues;
+        this.imageHash = imageHash;
+    }
+
+    /**
+     * Get the issues the scanner found
+     *
+     * @return the list of issues
+     */
+    public List<ScanResultIssue> getIssues() {
+        return issues;
+    }
+
+    /**
+     * Get the hash of the scanned image as reported by the scanner
+     *
+     * @return the image hash
+     */
+    public String getImageHash() {
+        return imageHash;
+    }
+}
@@ -0,0 +1,189 @@
+package io.m9sweeper.trawler.framework.scans;
+
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of scan outcomes. Entries expire after a fixed time to live, and the key
+ * is expected to include everything that can change the outcome of a scan, such as the image digest, the scanner
+ * the version of the vulnerability DB and the parts of the report that are kept.
+ * <p>
+ * If a directory is provided each entry is also written to it, and the entries found there are loaded again
+ * when the cache is created so that a restart does not start with an empty cache.
+ */
+public class ScanResultCache {
+    private final Gson gson = new Gson();
+    private final long ttlMillis;
+    private final int maxEntries;
+    private final Path directory;
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * @param ttlMillis how long an entry stays valid, in milliseconds
+     * @param maxEntries the maximum number of entries to keep
+     * @param directory the directory to persist entries to, or null to only keep them in memory
+     */
+    public ScanResultCache(long ttlMillis, int maxEntries, Path directory) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+        this.directory = directory;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > ScanResultCache.this.maxEntries) {
+                    deleteFile(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        if (directory != null) {
+            load();
+        }
+    }
+
+    /**
+     * Get the cached outcome for a key
+     *
+     * @param key the cache key
+     * @return the outcome, or null if there is no valid entry for the key
+     */
+    public synchronized ScanOutcome get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (isExpired(entry)) {
+            entries.remove(key);
+            deleteFile(key);
+            return null;
+        }
+        return new ScanOutcome(entry.issues, entry.imageHash);
+    }
+
+    /**
+     * Add an outcome to the cache, evicting the least recently used entry if the cache is full
+     *
+     * @param key the cache key
+     * @param outcome the outcome to cache
+     */
+    public synchronized void put(String key, ScanOutcome outcome) {
+        Entry entry = new Entry(key, System.currentTimeMillis(), outcome.getImageHash(), outcome.getIssues());
+        entries.put(key, entry);
+        writeFile(entry);
+    }
+
+    /**
+     * Get the number of entries in the cache, including ones that have expired but were not looked up since
+     *
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private boolean isExpired(Entry entry) {
+        return System.currentTimeMillis() - entry.createdAt > ttlMillis;
+    }
+
+    /**
+     * Load the entries persisted to the cache directory, oldest first so the newest are kept if there are too many
+     */
+    private void load() {
+        File[] files = directory.toFile().listFiles((dir, name) -> name.endsWith(".json"));
+        if (files == null) {
+            return;
+        }
+
+        List<Entry> persisted = new ArrayList<>();
+        for (File file : files) {
+            try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                Entry entry = gson.fromJson(reader, Entry.class);
+                if (entry != null && entry.key != null && !isExpired(entry)) {
+                    persisted.add(entry);
+                } else {
+                    Files.deleteIfExists(file.toPath());
+                }
+            } catch (Exception e) {
+                System.err.println("Ignoring unreadable scan result cache entry " + file + ": " + e.getMessage());
+            }
+        }
+
+        persisted.sort(Comparator.comparingLong(entry -> entry.createdAt));
+        persisted.forEach(entry -> entries.put(entry.key, entry));
+    }
+
+    private void writeFile(Entry entry) {
+        if (directory == null) {
+            return;
+        }
+
+        try {
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, "entry-", ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                gson.toJson(entry, writer);
+            }
+            Files.move(temp, fileFor(entry.key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Unable to persist scan result cache entry: " + e.getMessage());
+        }
+    }
+
+    private void deleteFile(String key) {
+        if (directory == null) {
+            return;
+        }
+
+        try {
+            Files.deleteIfExists(fileFor(key));
+        } catch (IOException e) {
+            System.err.println("Unable to remove scan result cache entry: " + e.getMessage());
+        }
+    }
+
+    private Path fileFor(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return directory.resolve(HexFormat.of().formatHex(hash) + ".json");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** A cached outcome as it is kept in memory and written to disk */
+    static class Entry {
+        private String key;
+        private long createdAt;
+        private String imageHash;
+        private List<ScanResultIssue> issues;
+
+        Entry() {
+        }
+
+        Entry(String key, long createdAt, String imageHash, List<ScanResultIssue> issues) {
+            this.key = key;
+            this.createdAt = createdAt;
+            this.imageHash = imageHash;
+            this.issues = issues;
+        }
+    }
+}
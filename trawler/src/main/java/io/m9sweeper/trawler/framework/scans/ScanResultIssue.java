@@ -24,6 +24,9 @@ public class ScanResultIssue {
     // If the issue can be fixed by m9sweeper
     private boolean isFixable;
 
+    // If the issue was found by the previous scan of the image but is no longer found
+    private boolean wasFixed;
+
     private String vulnerabilityDescUrl;
 
     private String extraData;
@@ -155,6 +158,24 @@ public class ScanResultIssue {
         isFixable = fixable;
     }
 
+    /**
+     * Get if the issue was found by the previous scan of the image but is no longer found
+     *
+     * @return was the issue fixed
+     */
+    public boolean wasFixed() {
+        return wasFixed;
+    }
+
+    /**
+     * Set if the issue was found by the previous scan of the image but is no longer found
+     *
+     * @param wasFixed was the issue fixed
+     */
+    public void setWasFixed(boolean wasFixed) {
+        this.wasFixed = wasFixed;
+    }
+
     public String getScannerName() {
         return scannerName;
     }
@@ -190,6 +211,7 @@ public class ScanResultIssue {
                 ", description='" + description + '\'' +
                 ", isCompliant=" + isCompliant +
                 ", isFixable=" + isFixable +
+                ", wasFixed=" + wasFixed +
                 ", extraData=" + extraData +
                 '}';
     }
@@ -94,6 +94,17 @@ public class ScanResultIssueBuilder {
         return this;
     }
 
+    /**
+     * Provide a value for if the issue was found by the previous scan of the image but is no longer found
+     *
+     * @param wasFixed was the issue fixed
+     * @return ScanResultIssueBuilder with wasFixed value
+     */
+    public ScanResultIssueBuilder withWasFixed(boolean wasFixed) {
+        this.wasFixed = wasFixed;
+        return this;
+    }
+
     public ScanResultIssueBuilder withVulnerabilityDescUrl(String vulnerabilityDescUrl) {
         this.vulnerabilityDescUrl = vulnerabilityDescUrl;
         return this;
@@ -104,6 +115,26 @@ public class ScanResultIssueBuilder {
         return this;
     }
 
+    /**
+     * Copy the details of an existing issue, such as one produced by a scan that was shared
+     * between several scanners. The scanner ID and name of this builder are kept.
+     *
+     * @param issue the issue to copy
+     * @return ScanResultIssueBuilder with the values of the issue
+     */
+    public ScanResultIssueBuilder withIssue(ScanResultIssue issue) {
+        this.name = issue.getName();
+        this.type = issue.getType();
+        this.vulnerabilityDescUrl = issue.getVulnerabilityDescUrl();
+        this.severity = issue.getSeverity();
+        this.description = issue.getDescription();
+        this.isCompliant = issue.isCompliant();
+        this.isFixable = issue.isFixable();
+        this.wasFixed = issue.wasFixed();
+        this.extraData = issue.getExtraData();
+        return this;
+    }
+
     /**
      * Build the ScanResultIssue object using options provided to the
      * ScanResultIssueBuilder
@@ -122,6 +153,7 @@ public class ScanResultIssueBuilder {
         issue.setDescription(this.description);
         issue.setCompliant(this.isCompliant);
         issue.setFixable(this.isFixable);
+        issue.setWasFixed(this.wasFixed);
         issue.setExtraData(this.extraData);
 
         return issue;
@@ -0,0 +1,61 @@
+package io.m9sweeper.trawler.framework.scans;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Deduplicates concurrent work by key. The first caller for a key runs the work, while any caller that asks
+ * for the same key before it has finished waits for that result instead of running the work again.
+ *
+ * @param <K> the type of key identifying the work
+ * @param <V> the type of result the work produces
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Run the work for a key, or wait for the result of the work already running for that key.
+     *
+     * @param key the key identifying the work
+     * @param work the work to run if nothing is in flight for the key
+     * @return the result of the work
+     * @throws Exception the exception the work failed with, an error the work failed with is rethrown as is
+     */
+    public V execute(K key, Callable<V> work) throws Exception {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, flight);
+        if (existing != null) {
+            try {
+                return existing.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+
+        try {
+            V result = work.call();
+            flight.complete(result);
+            return result;
+        } catch (Exception | Error e) {
+            // Waiters must be released however the work failed, or they would wait forever
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * Get the number of keys that currently have work in flight
+     *
+     * @return the number of keys in flight
+     */
+    public int size() {
+        return inFlight.size();
+    }
+}
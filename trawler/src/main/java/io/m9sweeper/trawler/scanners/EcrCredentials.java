@@ -0,0 +1,132 @@
+package io.m9sweeper.trawler.scanners;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.ecr.AmazonECR;
+import com.amazonaws.services.ecr.AmazonECRClientBuilder;
+import com.amazonaws.services.ecr.model.AuthorizationData;
+import com.amazonaws.services.ecr.model.GetAuthorizationTokenRequest;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches Amazon ECR authorization tokens per registry and access key until shortly before they expire, so
+ * that scans of ECR images do not call GetAuthorizationToken for every job. One ECR client is shared per
+ * region and set of credentials. A token is requested by one caller while the others wait for it, outside of any
+ * lock on the cache, so a slow request to ECR does not hold up the tokens of other registries.
+ */
+public class EcrCredentials {
+    // Stores the active instance of EcrCredentials
+    private static EcrCredentials instance = null;
+
+    // How long before a token expires it is replaced with a new one
+    private static final Duration REFRESH_BEFORE_EXPIRY = Duration.ofMinutes(5);
+
+    // How long a token is used for if ECR does not report when it expires
+    private static final Duration DEFAULT_TOKEN_LIFETIME = Duration.ofHours(1);
+
+    private final ConcurrentHashMap<String, AmazonECR> clients = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Token>> tokens = new ConcurrentHashMap<>();
+
+    protected EcrCredentials() {
+    }
+
+    /**
+     * Returns a thread-safe, singleton instance of EcrCredentials.
+     *
+     * @return the ECR credential cache
+     */
+    public synchronized static EcrCredentials getInstance() {
+        if (instance == null) {
+            instance = new EcrCredentials();
+        }
+        return instance;
+    }
+
+    /**
+     * Get the password to log in to an ECR registry with the username AWS, requesting a new authorization
+     * token only if there is no cached one or it is about to expire.
+     *
+     * @param registryHostname hostname of the registry, which starts with the AWS account ID
+     * @param region the AWS region of the registry
+     * @param accessKey the AWS access key
+     * @param secretKey the AWS secret key
+     * @return the registry password
+     */
+    public String getPassword(String registryHostname, String region, String accessKey, String secretKey) {
+        String tokenKey = registryHostname + "|" + accessKey;
+        while (true) {
+            CompletableFuture<Token> token = tokens.get(tokenKey);
+            if (token != null && !isExpired(token)) {
+                return awaitToken(token).password;
+            }
+
+            // Only the caller that gets to replace the expired token requests a new one, the others wait for it
+            CompletableFuture<Token> request = new CompletableFuture<>();
+            boolean requesting = token == null ? tokens.putIfAbsent(tokenKey, request) == null
+                    : tokens.replace(tokenKey, token, request);
+            if (requesting) {
+                try {
+                    request.complete(requestToken(registryHostname, region, accessKey, secretKey));
+                } catch (RuntimeException | Error e) {
+                    // Let the next caller request a token again
+                    tokens.remove(tokenKey, request);
+                    request.completeExceptionally(e);
+                    throw e;
+                }
+                return request.join().password;
+            }
+        }
+    }
+
+    private static boolean isExpired(CompletableFuture<Token> token) {
+        return token.isDone() && (token.isCompletedExceptionally() || !Instant.now().isBefore(token.join().refreshAt));
+    }
+
+    private static Token awaitToken(CompletableFuture<Token> token) {
+        try {
+            return token.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Request a new authorization token from ECR
+     */
+    private Token requestToken(String registryHostname, String region, String accessKey, String secretKey) {
+        String awsAccountId = registryHostname.split("\\.")[0];
+        AmazonECR amazonECR = clients.computeIfAbsent(region + "|" + accessKey, key -> AmazonECRClientBuilder.standard()
+                .withRegion(region)
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials(accessKey, secretKey)))
+                .build());
+
+        //Get Auth Token for Repository using it's registry Id
+        AuthorizationData authorizationData = amazonECR
+                .getAuthorizationToken(new GetAuthorizationTokenRequest().withRegistryIds(awsAccountId))
+                .getAuthorizationData().get(0);
+        String decodedString = new String(Base64.getDecoder().decode(authorizationData.getAuthorizationToken()));
+        String password = decodedString.substring(4); // skip AWS: at the start of the string
+
+        Instant expiresAt = authorizationData.getExpiresAt() != null
+                ? authorizationData.getExpiresAt().toInstant()
+                : Instant.now().plus(DEFAULT_TOKEN_LIFETIME);
+        return new Token(password, expiresAt.minus(REFRESH_BEFORE_EXPIRY));
+    }
+
+    /** A cached registry password and when it should be replaced */
+    private static class Token {
+        private final String password;
+        private final Instant refreshAt;
+
+        private Token(String password, Instant refreshAt) {
+            this.password = password;
+            this.refreshAt = refreshAt;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package io.m9sweeper.trawler.scanners;
+
+import io.m9sweeper.trawler.TrawlerConfiguration;
+import io.m9sweeper.trawler.framework.docker.DockerImage;
+import io.m9sweeper.trawler.framework.metrics.TrawlerMetrics;
+import io.m9sweeper.trawler.framework.scans.ScanConfig;
+
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Pulls the images of queued scan jobs while the scan workers are still busy with earlier jobs, so that pulling
+ * an image from its registry overlaps with scanning other images instead of holding up its own scan.
+ * <p>
+ * Images are turned into their cached SBOM, or else pulled into the layer store or the layer cache of the trivy
+ * server, see {@link Trivy#prefetch()}. Without a layer store prefetching only happens while the trivy server is healthy: a
+ * trivy process scanning on its own locks its cache while it runs, so a prefetch would hold up the scan it is
+ * meant to speed up.
+ */
+public class ImagePrefetcher {
+    // Stores the active instance of ImagePrefetcher
+    private static ImagePrefetcher instance = null;
+
+    // Prefetches that are queued or running, by the image reference trivy pulls
+    private final Map<String, FutureTask<Void>> prefetches = new ConcurrentHashMap<>();
+
+    // Runs the prefetches, null until the prefetcher is started
+    private volatile ExecutorService executor;
+
+    protected ImagePrefetcher() {
+    }
+
+    /**
+     * Returns a thread-safe, singleton instance of ImagePrefetcher.
+     *
+     * @return the image prefetcher
+     */
+    public synchronized static ImagePrefetcher getInstance() {
+        if (instance == null) {
+            instance = new ImagePrefetcher();
+        }
+        return instance;
+    }
+
+    /**
+     * Start prefetching the images passed to {@link #prefetch(DockerImage)}. Until started, prefetching is off.
+     *
+     * @param parallelPrefetches the maximum number of images to pull at the same time
+     */
+    public synchronized void start(int parallelPrefetches) {
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors.newFixedThreadPool(parallelPrefetches, runnable -> {
+            Thread thread = new Thread(runnable, "image-prefetcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queue an image to be pulled ahead of its scan. Does nothing if prefetching is off, there is no layer store and
+     * the trivy server is not healthy, or the image is already being prefetched.
+     *
+     * @param image the image of a queued scan job
+     */
+    public void prefetch(DockerImage image) {
+        boolean layerStore = !TrawlerConfiguration.getInstance().layerStoreDir().isEmpty();
+        if (executor == null || (!layerStore && !TrivyServer.getInstance().isHealthy())) {
+            return;
+        }
+
+        String reference = image.buildFullPath(true, true);
+        FutureTask<Void> prefetch = new FutureTask<>(() -> pull(image), null);
+        if (prefetches.putIfAbsent(reference, prefetch) == null) {
+            executor.execute(() -> {
+                try {
+                    prefetch.run();
+                } finally {
+                    prefetches.remove(reference, prefetch);
+                }
+            });
+        }
+    }
+
+    /**
+     * Called before an image is scanned. Waits for a prefetch of the image that is already pulling it, so the image
+     * is not pulled twice. A prefetch that has not started yet is cancelled and the scan pulls the image itself.
+     *
+     * @param image the image about to be scanned
+     */
+    public void awaitPrefetch(DockerImage image) {
+        FutureTask<Void> prefetch = prefetches.get(image.buildFullPath(true, true));
+        if (prefetch == null || prefetch.cancel(false)) {
+            return;
+        }
+
+        try {
+            prefetch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | CancellationException e) {
+            // Failed prefetches are logged when they fail, the scan pulls the image itself
+        }
+    }
+
+    private void pull(DockerImage image) {
+        ScanConfig scanConfig = new ScanConfig();
+        scanConfig.setImage(image);
+        Trivy trivy = new Trivy();
+        trivy.initScanner(scanConfig);
+
+        long startedAt = System.nanoTime();
+        try {
+            trivy.prefetch();
+            TrawlerMetrics.PREFETCH.observeSince(startedAt, "pulled");
+        } catch (Exception e) {
+            TrawlerMetrics.PREFETCH.observeSince(startedAt, "failed");
+            System.err.println("Prefetching " + image.buildFullPath(true, true) + " failed, its scan will pull it instead: " + e.getMessage());
+        }
+    }
+}
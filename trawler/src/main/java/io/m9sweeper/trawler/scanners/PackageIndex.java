@@ -0,0 +1,537 @@
+package io.m9sweeper.trawler.scanners;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.m9sweeper.trawler.TrawlerConfiguration;
+import io.m9sweeper.trawler.framework.metrics.Gauge;
+import io.m9sweeper.trawler.framework.metrics.TrawlerMetrics;
+import io.m9sweeper.trawler.framework.scans.ScanConfig;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Keeps track of the packages installed in every scanned image, so that when the vulnerability DB is updated only
+ * the images with a package whose advisories changed have to be scanned again.
+ * <p>
+ * The advisories of the indexed packages are evaluated by scanning a synthetic SBOM of the packages, one per distro
+ * and one for all language packages, rather than the images themselves. After every DB update they are evaluated
+ * again and the scan jobs of the images that have a package whose advisories changed are re-queued. Packages recorded
+ * since the last evaluation count as changed, so an image is never missed, at worst it is scanned once too often.
+ * <p>
+ * The index is written to a file in its directory so it survives a restart. If the DB changed while Trawler was not
+ * running the affected images are re-queued once the DB has been downloaded.
+ */
+public class PackageIndex {
+    // Stores the active instance of PackageIndex
+    private static PackageIndex instance = null;
+
+    private static final String FILE_NAME = "package-index.json";
+
+    // How often packages recorded since the last evaluation are evaluated, and the index is written if it changed
+    private static final long EVALUATE_INTERVAL_SECONDS = 60;
+
+    // Package URL types of OS packages, whose advisories depend on the distro they were installed from
+    private static final Set<String> OS_PACKAGE_TYPES = Set.of("deb", "rpm", "apk");
+
+    // The group of the packages that are not OS packages
+    private static final String LANGUAGE_PACKAGES = "";
+
+    private final Gson gson = new Gson();
+    private State state = new State();
+
+    // The images each package is installed in, derived from the images of the state
+    private final Map<String, Set<Integer>> imagesByPackage = new HashMap<>();
+
+    private Path file;
+    private Consumer<String> requeue;
+    private boolean dirty = false;
+
+    // Evaluates the advisories of the packages, null until the index is started
+    private ScheduledExecutorService executor;
+
+    protected PackageIndex() {
+    }
+
+    /**
+     * Returns a thread-safe, singleton instance of PackageIndex.
+     *
+     * @return the package index
+     */
+    public synchronized static PackageIndex getInstance() {
+        if (instance == null) {
+            instance = new PackageIndex();
+        }
+        return instance;
+    }
+
+    /**
+     * Load the index from its directory and start re-queueing the scan jobs of images affected by vulnerability DB
+     * updates. Until started, nothing is recorded.
+     *
+     * @param directory the directory to keep the index in
+     * @param requeue publishes the raw message of a scan job to the scan queue again
+     * @throws IOException if the directory could not be created
+     */
+    public synchronized void start(Path directory, Consumer<String> requeue) throws IOException {
+        if (executor != null) {
+            return;
+        }
+
+        Files.createDirectories(directory);
+        this.file = directory.resolve(FILE_NAME);
+        this.requeue = requeue;
+        load();
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "package-index");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::evaluate, EVALUATE_INTERVAL_SECONDS, EVALUATE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        TrivyDatabase.getInstance().addUpdateListener(() -> executor.execute(this::evaluate));
+
+        TrawlerMetrics.register(new Gauge("trawler_package_index_packages",
+                "Packages in the index of the packages installed in scanned images.", this::size));
+    }
+
+    /**
+     * Whether the index has been started
+     *
+     * @return whether packages are recorded
+     */
+    public synchronized boolean isStarted() {
+        return executor != null;
+    }
+
+    /**
+     * Record the packages installed in an image, replacing the packages recorded for it before
+     *
+     * @param imageId the m9sweeper ID of the image
+     * @param reported the packages from the scan report of the image
+     * @param sbom the SBOM of the image listing all of its packages, or null if there is none
+     */
+    public void recordPackages(int imageId, Collection<TrivyReportParser.PackageAdvisories> reported, Path sbom) {
+        Map<String, String> components = new LinkedHashMap<>();
+        if (sbom != null) {
+            try {
+                readComponents(sbom, components);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Unable to read the packages of image " + imageId + " from its SBOM: " + e.getMessage());
+            }
+        }
+
+        // Without an SBOM the packages are known from the report, which lists all of them for the index
+        for (TrivyReportParser.PackageAdvisories advisories : reported) {
+            if (!advisories.getPurl().isEmpty() && !components.containsKey(advisories.getPurl())) {
+                JsonObject component = new JsonObject();
+                component.addProperty("type", "library");
+                component.addProperty("name", advisories.getName());
+                component.addProperty("version", advisories.getVersion());
+                component.addProperty("purl", advisories.getPurl());
+                components.put(advisories.getPurl(), component.toString());
+            }
+        }
+        components.keySet().removeIf(purl -> groupOf(purl) == null);
+
+        synchronized (this) {
+            if (!isStarted()) {
+                return;
+            }
+
+            components.forEach((purl, component) -> {
+                imagesByPackage.computeIfAbsent(purl, key -> new HashSet<>()).add(imageId);
+                state.packages.computeIfAbsent(purl, key -> new Package(component));
+            });
+
+            // Packages that are still installed keep the advisories they were evaluated with
+            List<String> previous = state.images.put(imageId, new ArrayList<>(components.keySet()));
+            if (previous != null) {
+                previous.stream().filter(purl -> !components.containsKey(purl)).forEach(purl -> unlink(purl, imageId));
+            }
+            dirty = true;
+        }
+    }
+
+    /**
+     * Record the scan job of an image, which is re-queued once a DB update changes the advisories of its packages
+     *
+     * @param imageId the m9sweeper ID of the image
+     * @param message the raw message of the scan job
+     */
+    public synchronized void recordJob(int imageId, String message) {
+        if (!isStarted()) {
+            return;
+        }
+
+        state.jobs.put(imageId, message);
+        dirty = true;
+    }
+
+    /**
+     * Get the number of packages in the index
+     *
+     * @return the number of distinct packages
+     */
+    public synchronized int size() {
+        return state.packages.size();
+    }
+
+    private void unlink(String purl, int imageId) {
+        Set<Integer> images = imagesByPackage.get(purl);
+        if (images != null) {
+            images.remove(imageId);
+            if (images.isEmpty()) {
+                imagesByPackage.remove(purl);
+                state.packages.remove(purl);
+            }
+        }
+    }
+
+    /**
+     * Evaluate the advisories of the packages against the current DB. If the DB changed since the last evaluation
+     * all packages are evaluated and the jobs of the images with changed packages are re-queued, otherwise only the
+     * packages recorded since the last evaluation are.
+     */
+    private void evaluate() {
+        try {
+            String revision = TrivyDatabase.getInstance().getRevision();
+            if (revision == null) {
+                // The DB has not been downloaded yet
+                return;
+            }
+
+            Map<String, Package> packages;
+            boolean updated;
+            synchronized (this) {
+                updated = state.revision != null && !state.revision.equals(revision);
+                packages = new HashMap<>();
+                state.packages.forEach((purl, pkg) -> {
+                    if (updated || pkg.advisories == null) {
+                        packages.put(purl, pkg);
+                    }
+                });
+            }
+
+            if (!packages.isEmpty()) {
+                long evaluateStartedAt = System.nanoTime();
+                Map<String, String> advisories = evaluate(packages);
+                TrawlerMetrics.PACKAGE_EVALUATE.observeSince(evaluateStartedAt);
+                apply(revision, updated, advisories);
+            } else {
+                synchronized (this) {
+                    dirty |= !revision.equals(state.revision);
+                    state.revision = revision;
+                }
+            }
+            save();
+        } catch (Exception e) {
+            System.err.println("Unable to evaluate the advisories of the package index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Store the evaluated advisories of packages and, after a DB update, re-queue the jobs of the images with a
+     * package whose advisories changed
+     */
+    private void apply(String revision, boolean updated, Map<String, String> advisories) {
+        Set<Integer> affected = new HashSet<>();
+        List<String> jobs = new ArrayList<>();
+        int changed = 0;
+        synchronized (this) {
+            for (Map.Entry<String, String> entry : advisories.entrySet()) {
+                Package pkg = state.packages.get(entry.getKey());
+                if (pkg == null) {
+                    // The package was removed with the images it was installed in while it was evaluated
+                    continue;
+                }
+
+                if (updated && !entry.getValue().equals(pkg.advisories)) {
+                    changed++;
+                    affected.addAll(imagesByPackage.getOrDefault(entry.getKey(), Set.of()));
+                }
+                pkg.advisories = entry.getValue();
+            }
+
+            for (Integer imageId : affected) {
+                String job = state.jobs.get(imageId);
+                if (job != null) {
+                    jobs.add(job);
+                }
+            }
+            state.revision = revision;
+            dirty = true;
+        }
+
+        if (updated) {
+            System.out.println("Vulnerability DB update changed the advisories of " + changed + " of " +
+                    advisories.size() + " packages, re-queueing the scans of " + jobs.size() + " images");
+        }
+        for (String job : jobs) {
+            try {
+                requeue.accept(job);
+                TrawlerMetrics.REQUEUED.inc();
+            } catch (RuntimeException e) {
+                System.err.println("Unable to re-queue a scan job: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Scan synthetic SBOMs of packages, one per distro plus one for the language packages
+     *
+     * @return the advisory fingerprint of every package, empty for packages without advisories
+     */
+    private Map<String, String> evaluate(Map<String, Package> packages) throws Exception {
+        Map<String, Map<String, Package>> groups = new HashMap<>();
+        packages.forEach((purl, pkg) -> groups.computeIfAbsent(groupOf(purl), key -> new HashMap<>()).put(purl, pkg));
+
+        Map<String, String> advisories = new HashMap<>();
+        for (Map.Entry<String, Map<String, Package>> group : groups.entrySet()) {
+            advisories.putAll(evaluateGroup(group.getKey(), group.getValue()));
+        }
+        return advisories;
+    }
+
+    private Map<String, String> evaluateGroup(String group, Map<String, Package> packages) throws Exception {
+        File sbom = File.createTempFile("trivyPackages-", ".cdx.json");
+        File report = File.createTempFile("trivyPackagesReport-", ".json");
+        try {
+            Files.writeString(sbom.toPath(), syntheticSbom(group, packages).toString(), StandardCharsets.UTF_8);
+            Trivy.scanSbom(sbom.toPath(), report);
+
+            TrivyReportParser parser = new TrivyReportParser(new ScanConfig()).collectPackages();
+            try (Reader reader = new BufferedReader(new FileReader(report, StandardCharsets.UTF_8))) {
+                parser.parse(reader, issue -> { });
+            }
+
+            // Trivy reports the package URL of the package, or else its name and version
+            Map<String, String> byNameVersion = new HashMap<>();
+            for (String purl : packages.keySet()) {
+                byNameVersion.put(nameVersionOf(purl), purl);
+            }
+
+            Map<String, String> advisories = new HashMap<>();
+            packages.keySet().forEach(purl -> advisories.put(purl, ""));
+            parser.getPackages().forEach((key, found) -> {
+                String purl = packages.containsKey(key) ? key : byNameVersion.get(found.getName() + "@" + found.getVersion());
+                if (purl != null) {
+                    advisories.put(purl, found.getFingerprint());
+                }
+            });
+            return advisories;
+        } finally {
+            sbom.delete();
+            report.delete();
+        }
+    }
+
+    /**
+     * Build a CycloneDX SBOM of packages. OS packages depend on an operating system component for their distro, the
+     * way Trivy lays out the SBOMs of images, and language packages are left for Trivy to group by their type.
+     */
+    private static JsonObject syntheticSbom(String group, Map<String, Package> packages) {
+        JsonObject root = new JsonObject();
+        root.addProperty("bom-ref", "trawler-package-index");
+        root.addProperty("type", "container");
+        root.addProperty("name", "trawler-package-index");
+        JsonObject metadata = new JsonObject();
+        metadata.add("component", root);
+
+        JsonArray components = new JsonArray();
+        JsonArray packageRefs = new JsonArray();
+        packages.forEach((purl, pkg) -> {
+            JsonObject component = JsonParser.parseString(pkg.component).getAsJsonObject();
+            component.addProperty("bom-ref", purl);
+            components.add(component);
+            packageRefs.add(purl);
+        });
+
+        JsonArray dependencies = new JsonArray();
+        if (!LANGUAGE_PACKAGES.equals(group)) {
+            String[] distro = group.split(" ", 2);
+            JsonObject os = new JsonObject();
+            os.addProperty("bom-ref", "operating-system");
+            os.addProperty("type", "operating-system");
+            os.addProperty("name", distro[0]);
+            os.addProperty("version", distro[1]);
+            components.add(os);
+
+            dependencies.add(dependency(root.get("bom-ref").getAsString(), "operating-system"));
+            JsonObject osDependency = new JsonObject();
+            osDependency.addProperty("ref", "operating-system");
+            osDependency.add("dependsOn", packageRefs);
+            dependencies.add(osDependency);
+        }
+
+        JsonObject sbom = new JsonObject();
+        sbom.addProperty("bomFormat", "CycloneDX");
+        sbom.addProperty("specVersion", "1.5");
+        sbom.addProperty("version", 1);
+        sbom.add("metadata", metadata);
+        sbom.add("components", components);
+        sbom.add("dependencies", dependencies);
+        return sbom;
+    }
+
+    private static JsonObject dependency(String ref, String dependsOn) {
+        JsonArray refs = new JsonArray();
+        refs.add(dependsOn);
+        JsonObject dependency = new JsonObject();
+        dependency.addProperty("ref", ref);
+        dependency.add("dependsOn", refs);
+        return dependency;
+    }
+
+    /**
+     * Get the group a package is evaluated in: its distro and distro version for OS packages, such as "debian 12.4"
+     *
+     * @return the group, or null if the package URL does not say which distro an OS package is from
+     */
+    static String groupOf(String purl) {
+        if (!purl.startsWith("pkg:")) {
+            return null;
+        }
+
+        String type = purl.substring("pkg:".length(), Math.max(purl.indexOf('/'), "pkg:".length()));
+        if (!OS_PACKAGE_TYPES.contains(type)) {
+            return LANGUAGE_PACKAGES;
+        }
+
+        String[] namespace = purl.substring(purl.indexOf('/') + 1).split("/", 2);
+        int qualifiers = purl.indexOf('?');
+        if (namespace.length < 2 || qualifiers < 0) {
+            return null;
+        }
+
+        for (String qualifier : purl.substring(qualifiers + 1).split("#")[0].split("&")) {
+            if (qualifier.startsWith("distro=")) {
+                String family = namespace[0];
+                String distro = URLDecoder.decode(qualifier.substring("distro=".length()), StandardCharsets.UTF_8);
+                String version = distro.startsWith(family + "-") ? distro.substring(family.length() + 1) : distro;
+                return version.isEmpty() ? null : family + " " + version;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the name@version of a package from its package URL
+     */
+    private static String nameVersionOf(String purl) {
+        String path = purl.split("[?#]")[0];
+        String nameVersion = path.substring(path.lastIndexOf('/') + 1);
+        return URLDecoder.decode(nameVersion, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read the components with a package URL from a CycloneDX SBOM
+     */
+    private static void readComponents(Path sbom, Map<String, String> components) throws IOException {
+        JsonObject bom;
+        try (Reader reader = Files.newBufferedReader(sbom, StandardCharsets.UTF_8)) {
+            bom = JsonParser.parseReader(reader).getAsJsonObject();
+        }
+        if (!bom.has("components")) {
+            return;
+        }
+
+        for (JsonElement element : bom.getAsJsonArray("components")) {
+            JsonObject component = element.getAsJsonObject();
+            if (component.has("purl") && "library".equals(component.get("type").getAsString())) {
+                component.remove("bom-ref");
+                components.put(component.get("purl").getAsString(), component.toString());
+            }
+        }
+    }
+
+    /**
+     * Load the index written by an earlier run of Trawler, starting with an empty index if there is none
+     */
+    private synchronized void load() {
+        if (Files.notExists(file)) {
+            return;
+        }
+
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            State loaded = gson.fromJson(reader, State.class);
+            if (loaded != null && loaded.packages != null && loaded.images != null && loaded.jobs != null) {
+                state = loaded;
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Unable to load the package index, starting with an empty one: " + e.getMessage());
+        }
+
+        state.images.forEach((imageId, purls) ->
+                purls.forEach(purl -> imagesByPackage.computeIfAbsent(purl, key -> new HashSet<>()).add(imageId)));
+        if (TrawlerConfiguration.getInstance().getDebug()) {
+            System.out.println("Loaded the packages of " + state.images.size() + " images into the package index");
+        }
+    }
+
+    /**
+     * Write the index if it changed, replacing the file atomically so a crash never leaves a partial index behind
+     */
+    private synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+
+        Path temp = Files.createTempFile(file.getParent(), "package-index-", ".tmp");
+        try {
+            try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                gson.toJson(state, writer);
+            }
+            dirty = false;
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /** The index as it is written to disk */
+    static class State {
+        // The DB revision the advisories of the packages were evaluated against
+        String revision;
+        Map<String, Package> packages = new HashMap<>();
+        Map<Integer, List<String>> images = new HashMap<>();
+        Map<Integer, String> jobs = new HashMap<>();
+    }
+
+    /** A package installed in at least one image */
+    static class Package {
+        // The CycloneDX component of the package
+        String component;
+
+        // The advisory fingerprint of the package, null until the package has been evaluated
+        String advisories;
+
+        Package(String component) {
+            this.component = component;
+        }
+    }
+}
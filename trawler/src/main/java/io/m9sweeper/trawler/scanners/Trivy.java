@@ -1,32 +1,43 @@
 package io.m9sweeper.trawler.scanners;
 
 
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.services.ecr.AmazonECR;
-import com.amazonaws.services.ecr.AmazonECRClientBuilder;
-import com.amazonaws.services.ecr.model.GetAuthorizationTokenRequest;
-import com.amazonaws.services.ecr.model.GetAuthorizationTokenResult;
-import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
 import io.m9sweeper.trawler.TrawlerConfiguration;
+import io.m9sweeper.trawler.framework.docker.DockerImage;
 import io.m9sweeper.trawler.framework.docker.DockerRegistry;
+import io.m9sweeper.trawler.framework.metrics.TrawlerMetrics;
+import io.m9sweeper.trawler.framework.oci.ImageLayout;
+import io.m9sweeper.trawler.framework.oci.LayerStore;
+import io.m9sweeper.trawler.framework.oci.RegistryClient;
 import io.m9sweeper.trawler.framework.scans.*;
 import org.apache.commons.text.StringEscapeUtils;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Trivy implements Scanner {
+    // Shared by every scan, null until the first scan if images are pulled into a layer store
+    private static LayerStore layerStore;
+
+    // Shared by every scan, null until the first scan if SBOMs are cached
+    private static SbomCache sbomCache;
+
+    // Generates the SBOM of each digest once, however many scans need it at the same time
+    private static final SingleFlight<String, Boolean> SBOM_GENERATIONS = new SingleFlight<>();
+
+    // Held by the trivy process that runs without the trivy server, so parallel scans do not share the cache directory
+    private static final ReentrantLock LOCAL_PROCESS_LOCK = new ReentrantLock(true);
 
     private ScanConfig config;
-    private String rawResults;
+    private File reportFile;
     private String imageHash;
+    private String scannedDigest;
+    private String dbRevision;
     ArrayList<ScanResultIssue> allIssues;
 
     /**
@@ -50,9 +61,10 @@ public class Trivy implements Scanner {
      */
     @Override
     public void prepSystem() {
-        this.rawResults = "";
+        this.reportFile = null;
         this.allIssues = new ArrayList<>(0);
         this.imageHash = "";
+        this.scannedDigest = null;
     }
 
     /**
@@ -65,13 +77,296 @@ public class Trivy implements Scanner {
     public void runScan() throws Exception {
         System.out.println("Initiating scan of " + config.getImage().buildFullPath(false, true) +
                 " with trivy for " + config.getPolicy().getName() + ":" + config.getScannerName());
-        StringBuilder trivyScanCommandBuilder = new StringBuilder();
 
-        // If registry is Amazon Container Registry, set aws access key and secret key to get token
+        // Let a prefetch of the image that is already pulling it finish instead of pulling the image twice
+        ImagePrefetcher.getInstance().awaitPrefetch(config.getImage());
+
+        // Make sure the vulnerability DB is available, it is kept up to date in the background
+        TrivyDatabase trivyDatabase = TrivyDatabase.getInstance();
+        trivyDatabase.ensureDownloaded();
+        if (TrawlerConfiguration.getInstance().getDebug()) {
+            System.out.println("Trivy vulnerability DB version " + trivyDatabase.getVersion() + ", age " + trivyDatabase.getAge());
+        }
+
+        // Trivy writes the JSON report to a file so that it can be streamed into the parser
+        reportFile = File.createTempFile("trivyReport-", ".json");
+        reportFile.deleteOnExit();
+
+        // Scan the cached SBOM of the image instead of the image itself if SBOMs are cached, generating it first
+        // if this is the first scan of the digest
+        Path sbom = null;
+        String digest = "sha256:" + config.getImage().getHash();
+        if (getSbomCache() != null && !config.getImage().hasTempHash() && SbomCache.isCacheable(digest)) {
+            sbom = pinSbom(digest);
+            scannedDigest = digest;
+        }
+
+        // Otherwise pull the image into the shared layer store if there is one, Trivy then reads it from there
+        ImageLayout imageLayout = null;
+        if (sbom == null && getLayerStore() != null) {
+            imageLayout = pullImage();
+            scannedDigest = imageLayout.getDigest();
+        }
+
+        // Trivy only pulls the image itself if it reads neither an SBOM nor a layout
+        boolean pullsImage = sbom == null && imageLayout == null;
         DockerRegistry registry = config.getImage().getRegistry();
+        StringBuilder trivyScanCommandBuilder = new StringBuilder(pullsImage ? credentialExports(registry) : "");
+
+        // run trivy scan, against the local trivy server when it is available
+        boolean server = TrivyServer.getInstance().acquireClient();
+        trivyScanCommandBuilder.append(trivyCommand(sbom == null ? "image" : "sbom", server));
+        trivyScanCommandBuilder.append("--timeout 30m --scanners vuln -f json ");
+        if (PackageIndex.getInstance().isStarted()) {
+            // The package index needs every installed package, not only the ones with a vulnerability
+            trivyScanCommandBuilder.append("--list-all-pkgs ");
+        }
+        trivyScanCommandBuilder.append("-o '");
+        trivyScanCommandBuilder.append(escapeXsi(reportFile.getAbsolutePath()));
+        trivyScanCommandBuilder.append("' ");
+        if (sbom != null) {
+            trivyScanCommandBuilder.append("'").append(escapeXsi(sbom.toString())).append("';");
+        } else {
+            trivyScanCommandBuilder.append(imageTarget(imageLayout));
+        }
+
+        if (pullsImage) {
+            trivyScanCommandBuilder.append(credentialUnsets(registry));
+        }
+
+        if (TrawlerConfiguration.getInstance().getDebug()) {
+            System.out.println("Scan command: " + trivyScanCommandBuilder.toString());
+        }
+
+        ProcessBuilder processBuilder = new ProcessBuilder();
+        processBuilder.command("bash", "-c", trivyScanCommandBuilder.toString());
+        processBuilder.redirectErrorStream(true);
+
+        // Keep the vulnerability DB from being refreshed while this scan is reading it
+        trivyDatabase.scanLock().lock();
+        try {
+            dbRevision = trivyDatabase.getRevision();
+            long processStartedAt = System.nanoTime();
+            runTrivyProcess(processBuilder, server);
+            TrawlerMetrics.TRIVY_PROCESS.observeSince(processStartedAt);
+        } catch (Exception e) {
+            cleanup();
+            throw e;
+        } finally {
+            trivyDatabase.scanLock().unlock();
+            if (server) {
+                TrivyServer.getInstance().releaseClient();
+            }
+            if (imageLayout != null) {
+                imageLayout.close();
+            }
+            if (sbom != null) {
+                getSbomCache().release(digest);
+            }
+        }
+    }
+
+    /**
+     * Scan an SBOM for vulnerabilities against the current vulnerability DB, outside of any scan job
+     *
+     * @param sbom the CycloneDX SBOM to scan
+     * @param report the file to write the JSON report to
+     * @throws Exception if trivy failed to scan the SBOM
+     */
+    static void scanSbom(Path sbom, File report) throws Exception {
+        boolean server = TrivyServer.getInstance().acquireClient();
+        String command = trivyCommand("sbom", server) + "--timeout 30m --scanners vuln -f json -o '" +
+                escapeXsi(report.getAbsolutePath()) + "' '" + escapeXsi(sbom.toString()) + "';";
+
+        ProcessBuilder processBuilder = new ProcessBuilder();
+        processBuilder.command("bash", "-c", command);
+        processBuilder.redirectErrorStream(true);
+
+        TrivyDatabase trivyDatabase = TrivyDatabase.getInstance();
+        trivyDatabase.scanLock().lock();
+        try {
+            runTrivyProcess(processBuilder, server);
+        } finally {
+            trivyDatabase.scanLock().unlock();
+            if (server) {
+                TrivyServer.getInstance().releaseClient();
+            }
+        }
+    }
+
+    /**
+     * Build the start of a trivy command, which runs against the local trivy server when it is available
+     *
+     * @param subcommand the trivy subcommand, image or sbom
+     * @param server whether to run against the trivy server, see {@link #runTrivyProcess(ProcessBuilder, boolean)}
+     */
+    private static String trivyCommand(String subcommand, boolean server) {
+        StringBuilder commandBuilder = new StringBuilder("trivy -q ").append(TrivyDatabase.getInstance().cacheDirOption());
+        commandBuilder.append(subcommand);
+        if (server) {
+            commandBuilder.append(" --server '").append(StringEscapeUtils.escapeXSI(TrivyServer.getInstance().getAddress())).append("' ");
+        } else {
+            commandBuilder.append(" --skip-db-update ");
+        }
+        return commandBuilder.toString();
+    }
+
+    /**
+     * Build the argument that tells trivy which image to read, the image layout if there is one and otherwise the
+     * image in its registry
+     */
+    private String imageTarget(ImageLayout imageLayout) {
+        if (imageLayout != null) {
+            return "--input '" + escapeXsi(imageLayout.getDirectory().toString()) + "';";
+        }
+        return "'" + escapeXsi(config.getImage().buildFullPath(true, true)) + "';";
+    }
+
+    /**
+     * Get the cached SBOM of the image and pin it, generating the SBOM if it is not cached yet
+     *
+     * @param digest the digest of the image
+     * @return the SBOM file, which must be released from the SBOM cache once it is no longer read
+     */
+    private Path pinSbom(String digest) throws Exception {
+        SbomCache cache = getSbomCache();
+        Path sbom = cache.pin(digest);
+        if (sbom != null) {
+            return sbom;
+        }
+
+        SBOM_GENERATIONS.execute(digest, () -> {
+            File sbomFile = File.createTempFile("trivySbom-", ".cdx.json");
+            try {
+                long generateStartedAt = System.nanoTime();
+                generateSbom(sbomFile.getAbsolutePath());
+                TrawlerMetrics.SBOM_GENERATE.observeSince(generateStartedAt);
+                cache.put(digest, sbomFile.toPath());
+            } finally {
+                sbomFile.delete();
+            }
+            return true;
+        });
+
+        sbom = cache.pin(digest);
+        if (sbom == null) {
+            throw new IOException("The SBOM of " + digest + " was evicted before it could be scanned, the SBOM cache is too small");
+        }
+        return sbom;
+    }
+
+    /**
+     * Have Trivy analyze the packages of the image into a CycloneDX SBOM, without scanning them for vulnerabilities
+     *
+     * @param output the file to write the SBOM to
+     */
+    private void generateSbom(String output) throws Exception {
+        ImageLayout imageLayout = getLayerStore() != null ? pullImage() : null;
+        boolean server = TrivyServer.getInstance().acquireClient();
+        try {
+            DockerRegistry registry = config.getImage().getRegistry();
+            StringBuilder trivySbomCommandBuilder = new StringBuilder(imageLayout == null ? credentialExports(registry) : "");
+            trivySbomCommandBuilder.append(trivyCommand("image", server));
+            trivySbomCommandBuilder.append("--timeout 30m -f cyclonedx -o '").append(escapeXsi(output)).append("' ");
+            trivySbomCommandBuilder.append(imageTarget(imageLayout));
+            if (imageLayout == null) {
+                trivySbomCommandBuilder.append(credentialUnsets(registry));
+            }
+
+            if (TrawlerConfiguration.getInstance().getDebug()) {
+                System.out.println("SBOM command: " + trivySbomCommandBuilder.toString());
+            }
+
+            ProcessBuilder processBuilder = new ProcessBuilder();
+            processBuilder.command("bash", "-c", trivySbomCommandBuilder.toString());
+            processBuilder.redirectErrorStream(true);
+            runTrivyProcess(processBuilder, server);
+        } finally {
+            if (server) {
+                TrivyServer.getInstance().releaseClient();
+            }
+            if (imageLayout != null) {
+                imageLayout.close();
+            }
+        }
+    }
+
+    /**
+     * Pull the image of the ScanConfig into the layer store, downloading only the layers the store does not hold yet
+     *
+     * @return the image laid out for Trivy to read, which must be closed once Trivy is done with it
+     */
+    private ImageLayout pullImage() throws Exception {
+        DockerImage image = config.getImage();
+        String reference = image.hasTempHash() ? image.getTag() : "sha256:" + image.getHash();
+        return ImageLayout.pull(getLayerStore(), registryClient(image), reference, image.getTag());
+    }
+
+    /**
+     * Build a client of the image's repository that logs in the same way Trivy does with {@link #credentialExports}
+     */
+    private RegistryClient registryClient(DockerImage image) {
+        DockerRegistry registry = image.getRegistry();
+        String username = null;
+        String password = null;
         if ("ACR".equals(registry.getAuthType())) {
+            Map<String, Object> authDetails = (Map<String, Object>) registry.getAuthDetails();
+            username = "AWS";
+            password = EcrCredentials.getInstance().getPassword(registry.getHostname(),
+                    authDetails.getOrDefault("acrDefaultRegion", "").toString(),
+                    authDetails.getOrDefault("acrAccessKey", "").toString(),
+                    authDetails.getOrDefault("acrSecretKey", "").toString());
+        } else if ("GCR".equals(registry.getAuthType())) {
+            // Google registries accept the service account key itself as the password
+            Map<String, Object> authDetails = (Map<String, Object>) registry.getAuthDetails();
+            username = "_json_key";
+            password = authDetails.getOrDefault("gcrAuthJson", "").toString();
+        } else if ("AZCR".equals(registry.getAuthType())) {
+            // Azure Container Registry accepts the Client ID and Secret of the service principal as a login
+            Map<String, Object> authDetails = (Map<String, Object>) registry.getAuthDetails();
+            username = authDetails.getOrDefault("azureClientId", "").toString();
+            password = authDetails.getOrDefault("azureClientSecret", "").toString();
+        } else if (registry.getIsLoginRequired()) {
+            username = registry.getUsername();
+            password = registry.getPassword();
+        }
+        return new RegistryClient(registry.getHostname(), image.getName(), username, password);
+    }
+
+    /**
+     * Get the layer store shared by every scan
+     *
+     * @return the layer store, or null if images are not pulled into one
+     */
+    private static synchronized LayerStore getLayerStore() throws IOException {
+        String directory = TrawlerConfiguration.getInstance().layerStoreDir();
+        if (layerStore == null && !directory.isEmpty()) {
+            layerStore = new LayerStore(Paths.get(directory), TrawlerConfiguration.getInstance().layerStoreMaxSize() * 1024L * 1024L);
+        }
+        return layerStore;
+    }
+
+    /**
+     * Get the SBOM cache shared by every scan
+     *
+     * @return the SBOM cache, or null if SBOMs are not cached
+     */
+    private static synchronized SbomCache getSbomCache() throws IOException {
+        String directory = TrawlerConfiguration.getInstance().sbomCacheDir();
+        if (sbomCache == null && !directory.isEmpty()) {
+            sbomCache = new SbomCache(Paths.get(directory), TrawlerConfiguration.getInstance().sbomCacheSize());
+        }
+        return sbomCache;
+    }
+
+    /**
+     * Build the shell commands that export the credentials trivy needs to pull images from a registry
+     */
+    private String credentialExports(DockerRegistry registry) throws IOException {
+        StringBuilder commandBuilder = new StringBuilder();
 
-            String aws_account_id = TrawlerConfiguration.getInstance().dockerImageUrl().split("\\.")[0];
+        // If registry is Amazon Container Registry, set aws access key and secret key to get token
+        if ("ACR".equals(registry.getAuthType())) {
 
             try {
                 Map<String, Object> authDetails = (Map<String, Object>) registry.getAuthDetails();
@@ -80,22 +375,11 @@ public class Trivy implements Scanner {
                 String accessKey = authDetails.getOrDefault("acrAccessKey", "").toString();
                 String secretKey = authDetails.getOrDefault("acrSecretKey", "").toString();
 
-                AWSCredentials awsCredentials = new BasicAWSCredentials(accessKey, secretKey);
-                AmazonECR amazonECR = AmazonECRClientBuilder.standard()
-                        .withRegion(region)
-                        .withCredentials(new AWSStaticCredentialsProvider(awsCredentials))
-                        .build();
-
-                //Get Auth Token for Repository using it's registry Id
-                GetAuthorizationTokenResult authorizationData = amazonECR
-                        .getAuthorizationToken(new GetAuthorizationTokenRequest().withRegistryIds(aws_account_id));
-                String authTokenBase64 = authorizationData.getAuthorizationData().get(0).getAuthorizationToken();
-                byte[] decodedBytes = Base64.getDecoder().decode(authTokenBase64);
-                String decodedString = new String(decodedBytes);
-                String authToken = decodedString.substring(4); // skip AWS: at the start of the string
-
-                trivyScanCommandBuilder.append("export TRIVY_USERNAME=").append(escapeXsi("AWS")).append("; ");
-                trivyScanCommandBuilder.append("export TRIVY_PASSWORD=").append(escapeXsi(authToken)).append("; ");
+                // Authorization tokens are cached until shortly before they expire
+                String authToken = EcrCredentials.getInstance().getPassword(registry.getHostname(), region, accessKey, secretKey);
+
+                commandBuilder.append("export TRIVY_USERNAME=").append(escapeXsi("AWS")).append("; ");
+                commandBuilder.append("export TRIVY_PASSWORD=").append(escapeXsi(authToken)).append("; ");
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -118,7 +402,7 @@ public class Trivy implements Scanner {
             gcrAuthFile.deleteOnExit();
 
             // Export the location of this file so that Trivy can utilize it
-            trivyScanCommandBuilder.append("export GOOGLE_APPLICATION_CREDENTIALS=").append(gcrAuthFile.getAbsolutePath()).append("; ");
+            commandBuilder.append("export GOOGLE_APPLICATION_CREDENTIALS=").append(gcrAuthFile.getAbsolutePath()).append("; ");
         } else if ("AZCR".equals(registry.getAuthType())) {
             // Azure Container Registry images are accessed with a service principal set up beforehand. Trawler only needs to
             // export the Client ID, Secret, and Tenant ID of the service principal to allow Trivy to connect to it
@@ -128,58 +412,84 @@ public class Trivy implements Scanner {
             String clientSecret = authDetails.getOrDefault("azureClientSecret", "").toString();
             String tenantId = authDetails.getOrDefault("azureTenantId", "").toString();
 
-            trivyScanCommandBuilder.append("export AZURE_CLIENT_ID=").append(escapeXsi(clientId)).append("; ");
-            trivyScanCommandBuilder.append("export AZURE_CLIENT_SECRET=").append(escapeXsi(clientSecret)).append("; ");
-            trivyScanCommandBuilder.append("export AZURE_TENANT_ID=").append(escapeXsi(tenantId)).append("; ");
+            commandBuilder.append("export AZURE_CLIENT_ID=").append(escapeXsi(clientId)).append("; ");
+            commandBuilder.append("export AZURE_CLIENT_SECRET=").append(escapeXsi(clientSecret)).append("; ");
+            commandBuilder.append("export AZURE_TENANT_ID=").append(escapeXsi(tenantId)).append("; ");
         } else if (registry.getIsLoginRequired()) {
-            trivyScanCommandBuilder.append("export TRIVY_USERNAME=").append(escapeXsi(registry.getUsername())).append("; ");
-            trivyScanCommandBuilder.append("export TRIVY_PASSWORD=").append(escapeXsi(registry.getPassword())).append("; ");
+            commandBuilder.append("export TRIVY_USERNAME=").append(escapeXsi(registry.getUsername())).append("; ");
+            commandBuilder.append("export TRIVY_PASSWORD=").append(escapeXsi(registry.getPassword())).append("; ");
         }
 
-        // Clear Trivy cache
-        ProcessBuilder clearCacheProcessBuilder = new ProcessBuilder();
-        clearCacheProcessBuilder.command("bash", "-c", "trivy image --clear-cache");
-        clearCacheProcessBuilder.redirectErrorStream(true);
-
-        Process clearCacheProcess = clearCacheProcessBuilder.start();
-        clearCacheProcess.waitFor();
-        
-        // run trivy scan
-        trivyScanCommandBuilder.append("trivy -q image --timeout 30m --scanners vuln -f json '");
-        trivyScanCommandBuilder.append(escapeXsi(
-                config.getImage().buildFullPath(true, true)
-        ));
-        trivyScanCommandBuilder.append("';");
+        return commandBuilder.toString();
+    }
 
+    /**
+     * Build the shell commands that remove the credentials exported by {@link #credentialExports(DockerRegistry)}
+     */
+    private static String credentialUnsets(DockerRegistry registry) {
+        StringBuilder commandBuilder = new StringBuilder();
         if (registry.getIsLoginRequired()) {
-            trivyScanCommandBuilder.append(" unset TRIVY_USERNAME; unset TRIVY_PASSWORD;");
+            commandBuilder.append(" unset TRIVY_USERNAME; unset TRIVY_PASSWORD;");
         }
         if ("AZCR".equals(registry.getAuthType())) {
-            trivyScanCommandBuilder.append(" unset AZURE_CLIENT_ID; unset AZURE_CLIENT_SECRET; unset AZURE_TENANT_ID;");
+            commandBuilder.append(" unset AZURE_CLIENT_ID; unset AZURE_CLIENT_SECRET; unset AZURE_TENANT_ID;");
         }
+        return commandBuilder.toString();
+    }
 
-        if (TrawlerConfiguration.getInstance().getDebug()) {
-            System.out.println("Scan command: " + trivyScanCommandBuilder.toString());
+    /**
+     * Get the image of the ScanConfig ready to be scanned without scanning it for vulnerabilities. If SBOMs are cached
+     * and the trivy server is available the SBOM of the image is generated, which the scan then reads. Otherwise the
+     * image is pulled into the layer store if there is one, or else into the cache of the trivy server: Trivy analyzes
+     * the layers of the image into an SBOM that is thrown away, which stores the layers in the cache. Either way a
+     * later {@link #runScan()} of the image only needs to pull what is still missing.
+     */
+    public void prefetch() throws Exception {
+        String digest = "sha256:" + config.getImage().getHash();
+        if (getSbomCache() != null && !config.getImage().hasTempHash() && SbomCache.isCacheable(digest)
+                && TrivyServer.getInstance().isHealthy()) {
+            pinSbom(digest);
+            getSbomCache().release(digest);
+            return;
         }
 
-        ProcessBuilder processBuilder = new ProcessBuilder();
-        processBuilder.command("bash", "-c", trivyScanCommandBuilder.toString());
-        processBuilder.redirectErrorStream(true);
+        if (getLayerStore() != null) {
+            // The layers stay in the store once the layout is closed
+            pullImage().close();
+            return;
+        }
 
+        generateSbom("/dev/null");
+    }
+
+    /**
+     * Run the trivy scan process and collect any error it reports. A process that does not run against the trivy
+     * server opens the databases in the cache directory itself, and those can only be opened by one process at a time,
+     * so such processes are run one after the other.
+     *
+     * @param server whether the process runs against the trivy server
+     */
+    private static void runTrivyProcess(ProcessBuilder processBuilder, boolean server) throws Exception {
+        if (server) {
+            runTrivyProcess(processBuilder);
+            return;
+        }
+        LOCAL_PROCESS_LOCK.lock();
+        try {
+            runTrivyProcess(processBuilder);
+        } finally {
+            LOCAL_PROCESS_LOCK.unlock();
+        }
+    }
+
+    private static void runTrivyProcess(ProcessBuilder processBuilder) throws Exception {
         Process process = processBuilder.start();
 
-        StringBuilder output = new StringBuilder();
         StringBuilder errorOutput = new StringBuilder();
-        StringBuilder jsonScanResultOutput = new StringBuilder();
 
         BufferedReader reader = new BufferedReader(
                 new InputStreamReader(process.getInputStream()));
 
-//        BufferedReader readerErr = new BufferedReader(
-//                new InputStreamReader(process.getErrorStream()));
-
-        boolean isJsonOutputStarted = false;
-
         String line;
         if (TrawlerConfiguration.getInstance().getDebug()) {
             System.out.println("RAW TRIVY STDOUT:");
@@ -190,20 +500,6 @@ public class Trivy implements Scanner {
                 System.out.println(line);
             }
 
-            output.append(line + "\n");
-
-            if (line.startsWith("{") && jsonScanResultOutput.length() == 0) {
-                isJsonOutputStarted = true;
-            }
-
-            if (isJsonOutputStarted) {
-                jsonScanResultOutput.append(line);
-            }
-
-            if (line.startsWith("}") && line.length() == 1 && jsonScanResultOutput.length() > 0) {
-                isJsonOutputStarted = false;
-            }
-
             if (!line.isEmpty()) {
                 if (line.contains("FATAL") || errorOutput.length() > 0) {
                     errorOutput.append(line + "\n");
@@ -216,18 +512,12 @@ public class Trivy implements Scanner {
         }
 
         int exitVal = process.waitFor();
-        if (exitVal == 0) {
-            if (errorMessage.length() > 0) {
-                throw new Exception(errorMessage);
-            } else {
-                rawResults = jsonScanResultOutput.toString();
-            }
-        } else {
+        if (exitVal != 0 || errorMessage.length() > 0) {
             throw new Exception(errorMessage);
         }
     }
 
-    private String escapeXsi(String authToken) {
+    private static String escapeXsi(String authToken) {
         return StringEscapeUtils.escapeXSI(authToken);
     }
 
@@ -238,55 +528,62 @@ public class Trivy implements Scanner {
      */
     @Override
     public void parseResults() {
+        parseReport(reportFile);
+    }
 
-        Gson parser = new Gson();
-        JsonObject imageScanObject = parser.fromJson(rawResults, JsonObject.class);
-        if (TrawlerConfiguration.getInstance().getDebug() || imageScanObject == null) {
-            System.out.println("Parsed Trivy Scan Results: " + imageScanObject.toString());
+    /**
+     * Parse a Trivy JSON report file into the issues of this scan
+     */
+    void parseReport(File reportFile) {
+        long parseStartedAt = System.nanoTime();
+        TrivyReportParser parser = new TrivyReportParser(config);
+        PackageIndex packageIndex = PackageIndex.getInstance();
+        if (packageIndex.isStarted()) {
+            parser.collectPackages();
+        }
+        try (Reader report = new BufferedReader(new FileReader(reportFile, StandardCharsets.UTF_8))) {
+            parser.parse(report, allIssues::add);
+        } catch (IOException e) {
+            cleanup();
+            throw new RuntimeException("Unable to parse the Trivy scan report: " + e.getMessage(), e);
+        }
+        this.imageHash = parser.getImageHash();
+        if (this.imageHash.isEmpty() && scannedDigest != null) {
+            // Trivy does not know the digest of images read from a layout or an SBOM
+            this.imageHash = scannedDigest.substring("sha256:".length());
         }
+        TrawlerMetrics.REPORT_PARSE.observeSince(parseStartedAt);
 
-        if (imageScanObject.get("Metadata") != null && !imageScanObject.get("Metadata").isJsonNull()) {
-            JsonObject imageScanMetadata = imageScanObject.getAsJsonObject("Metadata");
-            if (imageScanMetadata.get("RepoDigests") != null && !imageScanMetadata.get("RepoDigests").isJsonNull()) {
-                JsonArray repoDigests = imageScanMetadata.getAsJsonArray("RepoDigests");
-                this.imageHash = repoDigests.get(0).getAsString().split("sha256:")[1];
-            }
+        if (packageIndex.isStarted()) {
+            recordPackages(packageIndex, parser);
         }
 
-        if (imageScanObject.get("Results") != null && !imageScanObject.get("Results").isJsonNull()) {
-            JsonArray imageScanResults = imageScanObject.getAsJsonArray("Results");
-            if (TrawlerConfiguration.getInstance().getDebug())
-                System.out.println("Image scan result size: " + imageScanResults.size());
-            if (imageScanResults != null && imageScanResults.size() > 0) {
-                for (int i = 0; i < imageScanResults.size(); i++) {
-                    JsonObject imageScanResult = (JsonObject) imageScanResults.get(i);
-                    if (imageScanResult.get("Vulnerabilities") != null && !imageScanResult.get("Vulnerabilities").isJsonNull()) {
-                        JsonArray vulnerabilities = imageScanResult.getAsJsonArray("Vulnerabilities");
-                        if (vulnerabilities != null && vulnerabilities.size() > 0) {
-                            if (TrawlerConfiguration.getInstance().getDebug())
-                                System.out.println("Total vulnerabilities found: " + vulnerabilities.size());
-                            vulnerabilities.forEach(vulnerability -> {
-                                JsonObject v = vulnerability.getAsJsonObject();
-                                boolean isHighSeverity = IssueSeverity.CRITICAL.equals(v.get("Severity")) || IssueSeverity.HIGH.equals(v.get("Severity"));
-                                ScanResultIssue issue = new ScanResultIssueBuilder(config.getScanId(), config.getScannerName())
-                                        .withName(v.get("Title") == null ? "" : v.get("Title").getAsString())
-                                        .withDescription(v.get("Description") == null ? "" : v.get("Description").getAsString())
-                                        .withSeverity(v.get("Severity") == null ? null : IssueSeverity.valueOf(v.get("Severity").getAsString()))
-                                        .withIsCompliant(!isHighSeverity) // TODO: Should reflect policy settings when the feature becomes available
-                                        .withType(v.get("VulnerabilityID") == null ? "" : v.get("VulnerabilityID").getAsString())
-                                        .withIsFixable(!(v.get("FixedVersion") == null ? "" : v.get("FixedVersion").getAsString()).isEmpty())
-                                        .withVulnerabilityDescUrl(v.get("PrimaryURL") == null ? "" : v.get("PrimaryURL").getAsString())
-                                        .withExtraData(v.toString())
-                                        .build();
-
-                                // only valid issues
-                                if (!IssueSeverity.UNKNOWN.equals(issue.getSeverity())) {
-                                    allIssues.add(issue);
-                                }
-                            });
-                        }
-                    }
-                }
+        if (TrawlerConfiguration.getInstance().getDebug()) {
+            System.out.println("Total vulnerabilities found: " + parser.getVulnerabilityCount());
+        }
+    }
+
+    /**
+     * Record the packages of the scanned image in the package index, from its SBOM if that is cached and otherwise
+     * from the packages listed in the report
+     */
+    private void recordPackages(PackageIndex packageIndex, TrivyReportParser parser) {
+        SbomCache cache;
+        try {
+            cache = getSbomCache();
+        } catch (IOException e) {
+            cache = null;
+        }
+
+        Path sbom = null;
+        if (cache != null && SbomCache.isCacheable(scannedDigest) && !config.getImage().hasTempHash()) {
+            sbom = cache.pin(scannedDigest);
+        }
+        try {
+            packageIndex.recordPackages(config.getImage().getId(), parser.getPackages().values(), sbom);
+        } finally {
+            if (sbom != null) {
+                cache.release(scannedDigest);
             }
         }
     }
@@ -298,6 +595,13 @@ public class Trivy implements Scanner {
 
     public String getImageHash() { return imageHash; }
 
+    /**
+     * Get the revision of the vulnerability DB the scan was run against
+     *
+     * @return the DB revision, or null if it is unknown
+     */
+    public String getDbRevision() { return dbRevision; }
+
     /**
      * Cleans up the host system and any plugin specific items. This is run after the
      * method and should be used to remove any containers, images,
@@ -305,6 +609,9 @@ public class Trivy implements Scanner {
      */
     @Override
     public void cleanup() {
-
+        if (reportFile != null) {
+            reportFile.delete();
+            reportFile = null;
+        }
     }
 }
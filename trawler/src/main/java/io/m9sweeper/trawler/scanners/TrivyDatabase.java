@@ -0,0 +1,353 @@
+package io.m9sweeper.trawler.scanners;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import io.m9sweeper.trawler.TrawlerConfiguration;
+import io.m9sweeper.trawler.framework.metrics.Gauge;
+import io.m9sweeper.trawler.framework.metrics.TrawlerMetrics;
+import io.m9sweeper.trawler.framework.scans.SingleFlight;
+import org.apache.commons.text.StringEscapeUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Manages the lifecycle of the Trivy vulnerability database. The database is downloaded once into the Trivy
+ * cache directory and then refreshed on a schedule in the background, so that scans can be run with
+ * --skip-db-update instead of downloading the database for every image.
+ * <p>
+ * Scans hold the read lock returned by {@link #scanLock()} while Trivy is running, which prevents the database
+ * from being replaced underneath them by a refresh. A refresh downloads the database into a staging directory
+ * without holding the lock, and only takes the write lock to move the new files into place.
+ */
+public class TrivyDatabase {
+    // Stores the active instance of TrivyDatabase
+    private static TrivyDatabase instance = null;
+
+    // How long a refresh waits for a moment without scans to swap in a new database, before it waits in line
+    private static final long SWAP_WAIT = TimeUnit.MINUTES.toMillis(5);
+    private static final long SWAP_POLL_INTERVAL = 250;
+
+    // Runs one download at a time, callers that want the database meanwhile wait for that download
+    private final SingleFlight<String, Void> downloads = new SingleFlight<>();
+
+    // Guards the database files, scans share the read lock and refreshes take the write lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Runs the scheduled background refreshes
+    private ScheduledExecutorService refresher;
+
+    // Notified whenever a refresh replaced the database
+    private final List<Runnable> updateListeners = new CopyOnWriteArrayList<>();
+
+    // Whether the database has been downloaded since Trawler started
+    private volatile boolean downloaded = false;
+
+    // Metadata of the database that is currently on disk
+    private volatile String version = "";
+    private volatile Instant updatedAt;
+    private volatile Instant downloadedAt;
+
+    protected TrivyDatabase() {
+        TrawlerMetrics.register(new Gauge("trawler_trivy_db_age_seconds",
+                "Age of the Trivy vulnerability DB on disk.", () -> updatedAt == null ? Double.NaN : getAge().getSeconds()));
+    }
+
+    /**
+     * Returns a thread-safe, singleton instance of TrivyDatabase.
+     *
+     * @return the Trivy database manager
+     */
+    public synchronized static TrivyDatabase getInstance() {
+        if (instance == null) {
+            instance = new TrivyDatabase();
+        }
+        return instance;
+    }
+
+    /**
+     * Download the database if that has not been done yet since Trawler started.
+     *
+     * @throws Exception if the database could not be downloaded
+     */
+    public void ensureDownloaded() throws Exception {
+        if (!downloaded) {
+            downloads.execute("db", () -> {
+                if (!downloaded) {
+                    download();
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Download the latest database into the Trivy cache directory. Trivy itself skips the download if the
+     * database on disk is still current. Scans are only blocked while the new database is moved into place.
+     *
+     * @throws Exception if Trivy failed to download the database
+     */
+    public void update() throws Exception {
+        downloads.execute("db", () -> {
+            download();
+            return null;
+        });
+    }
+
+    private void download() throws Exception {
+        Instant previousUpdatedAt = updatedAt;
+        Path db = cacheDir().resolve("db");
+        Path staging = cacheDir().resolve("db-staging");
+
+        // Trivy compares the metadata of the database on disk to decide whether a new one has to be downloaded
+        deleteRecursively(staging);
+        Files.createDirectories(staging.resolve("db"));
+        if (Files.exists(db.resolve("metadata.json"))) {
+            Files.copy(db.resolve("metadata.json"), staging.resolve("db").resolve("metadata.json"));
+        }
+        runTrivy("--cache-dir '" + StringEscapeUtils.escapeXSI(staging.toString()) + "' image --download-db-only");
+
+        swapIn(staging.resolve("db"), db);
+        deleteRecursively(staging);
+        downloaded = true;
+        System.out.println("Trivy vulnerability DB version " + version + " updated at " + updatedAt + " (age " + getAge() + ")");
+
+        if (previousUpdatedAt != null && !previousUpdatedAt.equals(updatedAt)) {
+            updateListeners.forEach(Runnable::run);
+        }
+    }
+
+    /**
+     * Move a downloaded database into the cache directory, while no scan is running. The files are replaced one by
+     * one with a rename, so a process that still has the old files open keeps reading the old database.
+     */
+    private void swapIn(Path stagedDb, Path db) throws Exception {
+        boolean replaced = Files.exists(stagedDb.resolve("trivy.db"));
+        acquireWriteLock();
+        try {
+            if (replaced) {
+                Files.createDirectories(db);
+                // The database before its metadata, so the metadata never claims a database that is not there yet
+                Files.move(stagedDb.resolve("trivy.db"), db.resolve("trivy.db"),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(stagedDb.resolve("metadata.json"), db.resolve("metadata.json"),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            readMetadata(db.resolve("metadata.json"));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Take the write lock at a moment no scan is running. A writer that waits in line for the lock holds up every
+     * scan that starts after it, so the lock is only waited for in line once no such moment came up for a while.
+     */
+    private void acquireWriteLock() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SWAP_WAIT;
+        while (!lock.writeLock().tryLock()) {
+            if (System.currentTimeMillis() > deadline) {
+                lock.writeLock().lock();
+                return;
+            }
+            Thread.sleep(SWAP_POLL_INTERVAL);
+        }
+    }
+
+    /**
+     * Get the cache directory Trivy keeps its database in
+     */
+    private static Path cacheDir() {
+        String cacheDir = TrawlerConfiguration.getInstance().trivyCacheDir();
+        if (!cacheDir.isEmpty()) {
+            return Paths.get(cacheDir);
+        }
+        // Trivy's default cache directory
+        String xdgCacheHome = System.getenv("XDG_CACHE_HOME");
+        return (xdgCacheHome == null || xdgCacheHome.isEmpty()
+                ? Paths.get(System.getProperty("user.home"), ".cache") : Paths.get(xdgCacheHome)).resolve("trivy");
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (var paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Register a callback to run after a refresh has replaced the database with a newer one.
+     *
+     * @param listener the callback to run
+     */
+    public void addUpdateListener(Runnable listener) {
+        updateListeners.add(listener);
+    }
+
+    /**
+     * Start refreshing the database in the background.
+     *
+     * @param intervalMinutes how often to refresh the database
+     */
+    public synchronized void startRefreshing(long intervalMinutes) {
+        if (refresher != null) {
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "trivy-db-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        refresher.scheduleWithFixedDelay(() -> {
+            try {
+                update();
+            } catch (Exception e) {
+                // Keep scanning with the database already on disk and try again on the next refresh
+                System.err.println("Failed to refresh the Trivy vulnerability DB: " + e.getMessage());
+            }
+        }, 0, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Stop the background refreshes.
+     */
+    public synchronized void stopRefreshing() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /**
+     * Get the lock that scans must hold while Trivy reads the database.
+     *
+     * @return the shared scan lock
+     */
+    public Lock scanLock() {
+        return lock.readLock();
+    }
+
+    /**
+     * Build the global Trivy options that point Trivy at the managed cache directory.
+     *
+     * @return the options, or an empty string if Trivy's default cache directory is used
+     */
+    public String cacheDirOption() {
+        String cacheDir = TrawlerConfiguration.getInstance().trivyCacheDir();
+        return cacheDir.isEmpty() ? "" : "--cache-dir '" + StringEscapeUtils.escapeXSI(cacheDir) + "' ";
+    }
+
+    /**
+     * Get the schema version of the database on disk
+     *
+     * @return the database version
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Get when the database on disk was built by the Trivy project
+     *
+     * @return the database build time, or null if it is unknown
+     */
+    public Instant getUpdatedAt() {
+        return updatedAt;
+    }
+
+    /**
+     * Get when the database on disk was downloaded
+     *
+     * @return the database download time, or null if it is unknown
+     */
+    public Instant getDownloadedAt() {
+        return downloadedAt;
+    }
+
+    /**
+     * Get an identifier of the exact database on disk, which changes whenever a refresh brings in new data
+     *
+     * @return the database revision, or null if it is unknown
+     */
+    public String getRevision() {
+        return updatedAt == null ? null : version + "@" + updatedAt;
+    }
+
+    /**
+     * Get how old the database on disk is
+     *
+     * @return the age of the database, or null if it is unknown
+     */
+    public Duration getAge() {
+        return updatedAt == null ? null : Duration.between(updatedAt, Instant.now());
+    }
+
+    /**
+     * Read the metadata Trivy keeps next to the database on disk.
+     */
+    private void readMetadata(Path metadataFile) throws IOException {
+        if (!Files.exists(metadataFile)) {
+            return;
+        }
+
+        JsonObject db;
+        try (Reader reader = Files.newBufferedReader(metadataFile)) {
+            db = new Gson().fromJson(reader, JsonObject.class);
+        }
+        if (db == null) {
+            return;
+        }
+        version = db.get("Version") == null ? "" : db.get("Version").getAsString();
+        updatedAt = db.get("UpdatedAt") == null ? null : OffsetDateTime.parse(db.get("UpdatedAt").getAsString()).toInstant();
+        downloadedAt = db.get("DownloadedAt") == null ? null : OffsetDateTime.parse(db.get("DownloadedAt").getAsString()).toInstant();
+    }
+
+    /**
+     * Run a trivy command and return its output.
+     */
+    private String runTrivy(String arguments) throws Exception {
+        String command = "trivy -q " + arguments;
+        if (TrawlerConfiguration.getInstance().getDebug()) {
+            System.out.println("Trivy DB command: " + command);
+        }
+
+        ProcessBuilder processBuilder = new ProcessBuilder();
+        processBuilder.command("bash", "-c", command);
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+
+        StringBuilder output = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.append(line).append("\n");
+            }
+        }
+
+        if (process.waitFor() != 0) {
+            throw new Exception("trivy " + arguments + " failed: " + output);
+        }
+        return output.toString();
+    }
+}
@@ -0,0 +1,117 @@
+package io.m9sweeper.trawler.scanners;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import io.m9sweeper.trawler.TrawlerConfiguration;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Which parts of a Trivy vulnerability are kept as the extra data of an issue. Fields that are not kept are
+ * skipped while the report is read, and references beyond the limit are skipped the same way.
+ */
+public class TrivyExtraDataProjection {
+    // m9sweeper reads these from the extra data of every issue, so they are always kept
+    private static final Set<String> REQUIRED_FIELDS = Set.of("PkgName", "InstalledVersion", "FixedVersion");
+
+    /** Keeps the whole vulnerability */
+    public static final TrivyExtraDataProjection ALL = new TrivyExtraDataProjection(null, -1, 0);
+
+    private final Set<String> fields;
+    private final int maxReferences;
+    private final int maxDescriptionLength;
+
+    /**
+     * @param fields the fields to keep, or null to keep every field
+     * @param maxReferences the maximum number of references to keep, or -1 to keep all of them
+     * @param maxDescriptionLength the maximum length of the description, or 0 to keep the whole description
+     */
+    public TrivyExtraDataProjection(Set<String> fields, int maxReferences, int maxDescriptionLength) {
+        if (fields != null) {
+            fields = new HashSet<>(fields);
+            fields.addAll(REQUIRED_FIELDS);
+        }
+        this.fields = fields;
+        this.maxReferences = maxReferences;
+        this.maxDescriptionLength = maxDescriptionLength;
+    }
+
+    /**
+     * Build the projection set up in the Trawler configuration
+     */
+    public static TrivyExtraDataProjection fromConfig() {
+        TrawlerConfiguration config = TrawlerConfiguration.getInstance();
+        Set<String> fields = null;
+        if (!config.trivyExtraDataFields().isBlank()) {
+            fields = Arrays.stream(config.trivyExtraDataFields().split(","))
+                    .map(String::trim)
+                    .filter(field -> !field.isEmpty())
+                    .collect(Collectors.toSet());
+        }
+        return new TrivyExtraDataProjection(fields, config.trivyExtraDataMaxReferences(), config.trivyExtraDataMaxDescription());
+    }
+
+    /**
+     * Describe what this projection keeps, so that issues read with another projection can be told apart
+     */
+    public String fingerprint() {
+        String keptFields = fields == null ? "*" : fields.stream().sorted().collect(Collectors.joining(","));
+        return keptFields + ";" + maxReferences + ";" + maxDescriptionLength;
+    }
+
+    /**
+     * Whether a field of the vulnerability is kept
+     */
+    public boolean keeps(String field) {
+        return fields == null || fields.contains(field);
+    }
+
+    /**
+     * Read the value of a kept field of the vulnerability, applying the limits of this projection
+     *
+     * @param field the name of the field
+     * @param reader reader positioned at the value of the field
+     * @return the value to keep
+     */
+    JsonElement read(String field, JsonReader reader) throws IOException {
+        if ("References".equals(field) && maxReferences >= 0 && reader.peek() == JsonToken.BEGIN_ARRAY) {
+            JsonArray references = new JsonArray();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (references.size() < maxReferences) {
+                    references.add(JsonParser.parseReader(reader));
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endArray();
+            return references;
+        }
+        return JsonParser.parseReader(reader);
+    }
+
+    /**
+     * Apply the limits of this projection to a field that was also read for the issue itself
+     *
+     * @param field the name of the field
+     * @param value the whole value of the field
+     * @return the value to keep
+     */
+    JsonElement project(String field, JsonElement value) {
+        if ("Description".equals(field) && maxDescriptionLength > 0 && value.isJsonPrimitive()) {
+            String description = value.getAsString();
+            if (description.length() > maxDescriptionLength) {
+                return new JsonPrimitive(description.substring(0, maxDescriptionLength));
+            }
+        }
+        return value;
+    }
+}
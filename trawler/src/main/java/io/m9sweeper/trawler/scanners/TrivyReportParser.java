@@ -0,0 +1,314 @@
+package io.m9sweeper.trawler.scanners;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import io.m9sweeper.trawler.framework.scans.IssueSeverity;
+import io.m9sweeper.trawler.framework.scans.ScanConfig;
+import io.m9sweeper.trawler.framework.scans.ScanResultIssue;
+import io.m9sweeper.trawler.framework.scans.ScanResultIssueBuilder;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+/**
+ * Pull parser for Trivy JSON reports. The report is read token by token and each vulnerability is turned into
+ * a {@link ScanResultIssue} as soon as it has been read, so only one vulnerability is held in memory at a time
+ * no matter how large the report is. Only the parts of a vulnerability kept by the {@link TrivyExtraDataProjection}
+ * end up in the extra data of its issue.
+ */
+public class TrivyReportParser {
+    // Fields of a vulnerability that the issue itself is built from
+    private static final Set<String> ISSUE_FIELDS = Set.of("Title", "Description", "Severity", "VulnerabilityID",
+            "FixedVersion", "PrimaryURL");
+
+    // Fields of a vulnerability that identify its package and advisory, read when packages are collected
+    private static final Set<String> PACKAGE_FIELDS = Set.of("PkgIdentifier", "PkgName", "InstalledVersion", "Status");
+
+    private final ScanConfig config;
+    private final TrivyExtraDataProjection projection;
+    private String imageHash = "";
+    private int vulnerabilityCount = 0;
+
+    // The advisories of each installed package, null unless packages are collected
+    private Map<String, PackageAdvisories> packages;
+
+    /**
+     * @param config the ScanConfig of the scan that produced the report
+     */
+    public TrivyReportParser(ScanConfig config) {
+        this(config, TrivyExtraDataProjection.fromConfig());
+    }
+
+    /**
+     * @param config the ScanConfig of the scan that produced the report
+     * @param projection the parts of each vulnerability to keep as the extra data of its issue
+     */
+    public TrivyReportParser(ScanConfig config, TrivyExtraDataProjection projection) {
+        this.config = config;
+        this.projection = projection;
+    }
+
+    /**
+     * Parse a Trivy JSON report, passing each valid issue to the consumer as it is read.
+     *
+     * @param report reader positioned at the start of the report
+     * @param issueConsumer receives every issue that does not have an unknown severity
+     * @throws IOException if the report could not be read or is not valid JSON
+     */
+    public void parse(Reader report, Consumer<ScanResultIssue> issueConsumer) throws IOException {
+        JsonReader reader = new JsonReader(report);
+        if (reader.peek() == JsonToken.END_DOCUMENT) {
+            throw new IOException("Trivy did not produce a scan report");
+        }
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("Metadata".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                parseMetadata(reader);
+            } else if ("Results".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    parseResult(reader, issueConsumer);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Get the hash of the scanned image as reported by Trivy
+     *
+     * @return the image hash without the sha256: prefix, or an empty string if Trivy did not report one
+     */
+    public String getImageHash() {
+        return imageHash;
+    }
+
+    /**
+     * Also collect the advisories of each package while parsing, see {@link #getPackages()}. Packages without a
+     * vulnerability are only in the report if Trivy was run with --list-all-pkgs.
+     *
+     * @return this parser
+     */
+    public TrivyReportParser collectPackages() {
+        packages = new LinkedHashMap<>();
+        return this;
+    }
+
+    /**
+     * Get the advisories of each package in the report, collected if {@link #collectPackages()} was called
+     *
+     * @return the advisories by the package URL of their package, or by name@version for packages without one
+     */
+    public Map<String, PackageAdvisories> getPackages() {
+        return packages;
+    }
+
+    /**
+     * Get the number of vulnerabilities in the report, including the ones with an unknown severity
+     *
+     * @return the number of vulnerabilities read
+     */
+    public int getVulnerabilityCount() {
+        return vulnerabilityCount;
+    }
+
+    private void parseMetadata(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("RepoDigests".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    String repoDigest = reader.nextString();
+                    if (repoDigest.contains("sha256:")) {
+                        imageHash = repoDigest.split("sha256:")[1];
+                    }
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void parseResult(JsonReader reader, Consumer<ScanResultIssue> issueConsumer) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return;
+        }
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("Vulnerabilities".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    vulnerabilityCount++;
+
+                    ScanResultIssue issue = readVulnerability(reader);
+
+                    // only valid issues
+                    if (!IssueSeverity.UNKNOWN.equals(issue.getSeverity())) {
+                        issueConsumer.accept(issue);
+                    }
+                }
+                reader.endArray();
+            } else if ("Packages".equals(name) && packages != null && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    JsonElement p = JsonParser.parseReader(reader);
+                    if (p.isJsonObject()) {
+                        readPackage(p.getAsJsonObject());
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Add an installed package listed by --list-all-pkgs, which has no advisories unless a vulnerability names it
+     */
+    private void readPackage(JsonObject p) {
+        String name = getString(p, "Name");
+        String version = getString(p, "Version");
+        JsonElement identifier = p.get("Identifier");
+        String purl = identifier != null && identifier.isJsonObject() ? getString(identifier.getAsJsonObject(), "PURL") : "";
+
+        String key = purl.isEmpty() ? name + "@" + version : purl;
+        packages.computeIfAbsent(key, ignored -> new PackageAdvisories(purl, name, version));
+    }
+
+    /**
+     * Read a vulnerability, keeping only the fields the issue is built from and the fields of the projection
+     */
+    private ScanResultIssue readVulnerability(JsonReader reader) throws IOException {
+        JsonObject v = new JsonObject();
+        JsonObject extraData = new JsonObject();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            boolean issueField = ISSUE_FIELDS.contains(name) || (packages != null && PACKAGE_FIELDS.contains(name));
+            if (!projection.keeps(name)) {
+                if (issueField) {
+                    v.add(name, JsonParser.parseReader(reader));
+                } else {
+                    reader.skipValue();
+                }
+            } else if (issueField) {
+                JsonElement value = JsonParser.parseReader(reader);
+                v.add(name, value);
+                extraData.add(name, projection.project(name, value));
+            } else {
+                extraData.add(name, projection.read(name, reader));
+            }
+        }
+        reader.endObject();
+
+        if (packages != null) {
+            collectPackage(v);
+        }
+        return toIssue(v, extraData);
+    }
+
+    private void collectPackage(JsonObject v) {
+        String name = getString(v, "PkgName");
+        String version = getString(v, "InstalledVersion");
+        JsonElement identifier = v.get("PkgIdentifier");
+        String purl = identifier != null && identifier.isJsonObject() ? getString(identifier.getAsJsonObject(), "PURL") : "";
+
+        String key = purl.isEmpty() ? name + "@" + version : purl;
+        packages.computeIfAbsent(key, ignored -> new PackageAdvisories(purl, name, version))
+                .add(String.join(":", getString(v, "VulnerabilityID"), getString(v, "Severity"),
+                        getString(v, "FixedVersion"), getString(v, "Status")));
+    }
+
+    private static String getString(JsonObject object, String name) {
+        JsonElement value = object.get(name);
+        return value == null || !value.isJsonPrimitive() ? "" : value.getAsString();
+    }
+
+    private ScanResultIssue toIssue(JsonObject v, JsonObject extraData) {
+        boolean isHighSeverity = IssueSeverity.CRITICAL.equals(v.get("Severity")) || IssueSeverity.HIGH.equals(v.get("Severity"));
+        return new ScanResultIssueBuilder(config.getScanId(), config.getScannerName())
+                .withName(v.get("Title") == null ? "" : v.get("Title").getAsString())
+                .withDescription(v.get("Description") == null ? "" : v.get("Description").getAsString())
+                .withSeverity(v.get("Severity") == null ? null : IssueSeverity.valueOf(v.get("Severity").getAsString()))
+                .withIsCompliant(!isHighSeverity) // TODO: Should reflect policy settings when the feature becomes available
+                .withType(v.get("VulnerabilityID") == null ? "" : v.get("VulnerabilityID").getAsString())
+                .withIsFixable(!(v.get("FixedVersion") == null ? "" : v.get("FixedVersion").getAsString()).isEmpty())
+                .withVulnerabilityDescUrl(v.get("PrimaryURL") == null ? "" : v.get("PrimaryURL").getAsString())
+                .withExtraData(extraData.toString())
+                .build();
+    }
+
+    /** The advisories a report lists for one package */
+    public static class PackageAdvisories {
+        private final String purl;
+        private final String name;
+        private final String version;
+        private final SortedSet<String> advisories = new TreeSet<>();
+
+        PackageAdvisories(String purl, String name, String version) {
+            this.purl = purl;
+            this.name = name;
+            this.version = version;
+        }
+
+        private void add(String advisory) {
+            advisories.add(advisory);
+        }
+
+        /**
+         * Get the package URL of the package
+         *
+         * @return the package URL, or an empty string if Trivy did not report one
+         */
+        public String getPurl() {
+            return purl;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * Get the advisories of the package in a form that only changes when one of its advisories changes
+         *
+         * @return the ID, severity, fixed version and status of every advisory of the package, in order
+         */
+        public String getFingerprint() {
+            return String.join("|", advisories);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package io.m9sweeper.trawler.scanners;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import io.m9sweeper.trawler.TrawlerConfiguration;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Supervises a long-lived trivy server child process. Scans run in client mode against this server so the
+ * vulnerability DB is loaded into memory once and shared by every scan instead of once per scan.
+ * <p>
+ * The server is health checked on a schedule and restarted if it crashes or stops responding. While it is not
+ * healthy, {@link #isHealthy()} returns false and scans fall back to running Trivy locally.
+ * <p>
+ * Scans hold a client slot from {@link #acquireClient()} while they run against the server, so that a restart for
+ * a new vulnerability DB only stops the server once the scans that are still using it are done.
+ */
+public class TrivyServer {
+    // Stores the active instance of TrivyServer
+    private static TrivyServer instance = null;
+
+    // How often the server is health checked, in seconds
+    private static final int HEALTH_CHECK_INTERVAL = 10;
+
+    // How long to wait for a freshly started server to become healthy, in seconds
+    private static final int STARTUP_TIMEOUT = 60;
+
+    private final OkHttpClient httpClient = new OkHttpClient();
+
+    // Runs the scheduled health checks
+    private ScheduledExecutorService supervisor;
+
+    // The running trivy server process
+    private Process process;
+
+    private volatile boolean healthy = false;
+
+    // Scans against the server share the read lock, a restart takes the write lock to stop the server
+    private final ReentrantReadWriteLock clients = new ReentrantReadWriteLock();
+
+    protected TrivyServer() {
+        httpClient.setConnectTimeout(2, TimeUnit.SECONDS);
+        httpClient.setReadTimeout(2, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns a thread-safe, singleton instance of TrivyServer.
+     *
+     * @return the trivy server supervisor
+     */
+    public synchronized static TrivyServer getInstance() {
+        if (instance == null) {
+            instance = new TrivyServer();
+        }
+        return instance;
+    }
+
+    /**
+     * Start the trivy server and supervise it in the background. The server is restarted whenever the
+     * managed vulnerability DB is refreshed so that it serves the new DB.
+     */
+    public synchronized void start() {
+        if (supervisor != null) {
+            return;
+        }
+
+        supervisor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "trivy-server-supervisor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        supervisor.scheduleWithFixedDelay(this::supervise, 0, HEALTH_CHECK_INTERVAL, TimeUnit.SECONDS);
+
+        TrivyDatabase.getInstance().addUpdateListener(this::scheduleRestart);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+    }
+
+    /**
+     * Stop supervising and shut down the trivy server.
+     */
+    public synchronized void stop() {
+        if (supervisor != null) {
+            supervisor.shutdownNow();
+            supervisor = null;
+        }
+        destroyProcess();
+    }
+
+    /**
+     * Restart the trivy server. Scans that start before it is healthy again fall back to local mode, while the
+     * server is only stopped once the scans that were already running against it are done.
+     */
+    public synchronized void restart() {
+        if (supervisor == null) {
+            return;
+        }
+        healthy = false;
+        clients.writeLock().lock();
+        try {
+            destroyProcess();
+        } finally {
+            clients.writeLock().unlock();
+        }
+        launch();
+    }
+
+    /**
+     * Restart the trivy server on the supervisor thread, so the caller does not wait for the running scans.
+     */
+    private synchronized void scheduleRestart() {
+        if (supervisor != null) {
+            supervisor.execute(this::restart);
+        }
+    }
+
+    /**
+     * Claim a client slot to run a scan against the server. The server is not stopped for a restart while the slot
+     * is held, so it must be released with {@link #releaseClient()} once the scan is done.
+     *
+     * @return true if the scan can run against the server, false if it has to run in local mode
+     */
+    public boolean acquireClient() {
+        // A restart that is waiting for the running scans does not hold up the scans that start meanwhile
+        if (!healthy || !clients.readLock().tryLock()) {
+            return false;
+        }
+        if (!healthy) {
+            clients.readLock().unlock();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Release a client slot claimed with {@link #acquireClient()}.
+     */
+    public void releaseClient() {
+        clients.readLock().unlock();
+    }
+
+    /**
+     * Wait for the server that was just started to answer health checks.
+     *
+     * @param timeoutSeconds how long to wait at most
+     * @return true if scans can be run against the server
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitHealthy(int timeoutSeconds) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        while (!healthy && System.currentTimeMillis() < deadline) {
+            Thread.sleep(250);
+        }
+        return healthy;
+    }
+
+    /**
+     * Get whether the server is up and answering health checks.
+     *
+     * @return true if scans can be run against the server
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * Get the address scans should pass to trivy image --server
+     *
+     * @return server address
+     */
+    public String getAddress() {
+        return "http://127.0.0.1:" + TrawlerConfiguration.getInstance().trivyServerPort();
+    }
+
+    /**
+     * Make sure the server is running and healthy, relaunching it if it has died or stopped responding.
+     */
+    private synchronized void supervise() {
+        try {
+            if (process == null || !process.isAlive()) {
+                if (process != null) {
+                    System.err.println("Trivy server exited with code " + process.exitValue() + ", restarting it");
+                }
+                launch();
+            } else if (!checkHealth()) {
+                System.err.println("Trivy server failed its health check, restarting it");
+                destroyProcess();
+                launch();
+            }
+        } catch (Exception e) {
+            healthy = false;
+            System.err.println("Failed to supervise the Trivy server: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Launch the trivy server and wait for it to become healthy.
+     */
+    private void launch() {
+        healthy = false;
+        try {
+            // The server reads the DB managed by TrivyDatabase, so it must never update it on its own
+            TrivyDatabase.getInstance().ensureDownloaded();
+
+            String command = "exec trivy -q " + TrivyDatabase.getInstance().cacheDirOption() +
+                    "server --skip-db-update --listen 127.0.0.1:" + TrawlerConfiguration.getInstance().trivyServerPort();
+            if (TrawlerConfiguration.getInstance().getDebug()) {
+                System.out.println("Trivy server command: " + command);
+            }
+
+            ProcessBuilder processBuilder = new ProcessBuilder();
+            processBuilder.command("bash", "-c", command);
+            processBuilder.redirectErrorStream(true);
+            processBuilder.redirectOutput(TrawlerConfiguration.getInstance().getDebug()
+                    ? ProcessBuilder.Redirect.INHERIT : ProcessBuilder.Redirect.DISCARD);
+            process = processBuilder.start();
+
+            for (int i = 0; i < STARTUP_TIMEOUT && process.isAlive(); i++) {
+                if (checkHealth()) {
+                    System.out.println("Trivy server is listening on " + getAddress());
+                    return;
+                }
+                Thread.sleep(1000);
+            }
+            System.err.println("Trivy server did not become healthy, scans will run in local mode");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("Failed to start the Trivy server, scans will run in local mode: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Call the server's health endpoint and record the outcome.
+     */
+    private boolean checkHealth() {
+        Request request = new Request.Builder().url(getAddress() + "/healthz").get().build();
+        try {
+            Response response = httpClient.newCall(request).execute();
+            response.body().close();
+            healthy = response.isSuccessful();
+        } catch (Exception e) {
+            healthy = false;
+        }
+        return healthy;
+    }
+
+    private void destroyProcess() {
+        healthy = false;
+        if (process != null) {
+            process.destroy();
+            try {
+                if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+            process = null;
+        }
+    }
+}